@@ -0,0 +1,132 @@
+package turmite.simulator.benchmarks;
+
+import com.sun.management.ThreadMXBean;
+import turmite.simulator.SimulationEngine;
+import turmite.simulator.models.ChunkedGridStore;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.PackedGridStore;
+import turmite.simulator.models.TorusGridStore;
+import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.Ruleset;
+
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+/**
+ * Checks that stepping allocates nothing once a simulation is in its steady state, by counting the bytes the thread
+ * allocates over a million steps through every step path. Exits with status {@code 1} if any path allocated a byte,
+ * after printing every path that did. Prints nothing if none did.
+ * <p>
+ * A growing pattern allocates the chunks it walks into, which is not garbage. To leave only the step path itself,
+ * every measured run is stepped on a Grid whose chunks were allocated up front, blank, by an identical run.
+ * The measured million steps come after a million steps of warm-up, so the simulation's own buffers are grown,
+ * and the code is compiled.
+ * <p>
+ * The {@code verify} phase of the benchmarks build runs the check, and fails if it does. Rulesets are read from the
+ * {@code rulesets} directory, so the check is started from the project's root:
+ * {@code java -cp benchmarks/target/benchmarks.jar turmite.simulator.benchmarks.AllocationCheck}
+ */
+public class AllocationCheck {
+    private static final long STEPS = 1_000_000;
+    private static final int SINGLE_STEPS_PER_CALL = 1;
+    private static final int BATCH_STEPS = 1000;
+    private static final int WARMUP_RUNS = 3;
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private AllocationCheck() {}
+
+    public static void main(String[] args) throws Exception {
+        int failed = 0;
+        for (String rulesetFile : new String[]{"LangtonsAnt.json", "BinaryCounterAnt.json", "BridgerAnt.json", "FerkelsAnt.json"}) {
+            Ruleset ruleset = new Ruleset();
+            ruleset.readRulesetFromFile(rulesetFile);
+
+            failed += check(rulesetFile, "Turmite.step(GridStore)", () -> new Turmite(ruleset), ChunkedGridStore::new, SINGLE_STEPS_PER_CALL);
+            failed += check(rulesetFile, "Turmite.step(GridStore, long)", () -> new Turmite(ruleset), PackedGridStore::new, BATCH_STEPS);
+            failed += checkEngine(rulesetFile, "engine", ruleset, PackedGridStore::new, false, false);
+            failed += checkEngine(rulesetFile, "engine, fast-forward", ruleset, PackedGridStore::new, true, false);
+            failed += checkEngine(rulesetFile, "engine, two Turmites", ruleset, () -> new TorusGridStore(1024, 1024), false, true);
+            failed += checkEngine(rulesetFile, "engine, torus", ruleset, () -> new TorusGridStore(1024, 1024), true, false);
+        }
+
+        if (failed > 0) {
+            System.err.println(failed + " step paths allocated.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Measures one Turmite stepped directly on a Grid.
+     *
+     * @return {@code 1} if the steps allocated, {@code 0} otherwise.
+     */
+    private static int check(String rulesetFile, String path, Supplier<Turmite> turmiteFactory, Supplier<GridStore> gridStoreFactory, int stepsPerCall) {
+        return measure(rulesetFile, path, gridStoreFactory, gridStore -> {
+            Turmite turmite = turmiteFactory.get();
+            return steps -> {
+                for (long i = 0; i < steps; i += stepsPerCall) {
+                    if (stepsPerCall == 1) turmite.step(gridStore);
+                    else turmite.step(gridStore, stepsPerCall);
+                }
+            };
+        });
+    }
+
+    /**
+     * Measures a {@link SimulationEngine} stepped in batches, like the Simulator steps it.
+     *
+     * @return {@code 1} if the steps allocated, {@code 0} otherwise.
+     */
+    private static int checkEngine(String rulesetFile, String path, Ruleset ruleset, Supplier<GridStore> gridStoreFactory,
+                                   boolean fastForward, boolean secondTurmite) {
+        return measure(rulesetFile, path, gridStoreFactory, gridStore -> {
+            SimulationEngine engine = new SimulationEngine(ruleset, gridStore);
+            engine.setFastForwardEnabled(fastForward);
+            // A torus takes no reservations, so however far apart the Turmites walk, they are stepped in order on this
+            // thread. Rounds stepped in parallel allocate the tasks they are dispatched with.
+            if (secondTurmite) engine.addTurmite(ruleset, 3, 5, 1);
+            return steps -> {
+                for (long i = 0; i < steps; i += BATCH_STEPS) engine.step(BATCH_STEPS);
+            };
+        });
+    }
+
+    /**
+     * Warms up a step path on fresh Grids, then measures the bytes its second million steps allocate, on a Grid
+     * holding blank copies of every chunk the warm-up runs allocated.
+     *
+     * @return {@code 1} if the steps allocated, {@code 0} otherwise.
+     */
+    private static int measure(String rulesetFile, String path, Supplier<GridStore> gridStoreFactory, Simulation simulation) {
+        GridStore walked = null;
+        for (int run = 0; run < WARMUP_RUNS; run++) {
+            walked = gridStoreFactory.get();
+            simulation.start(walked).step(2 * STEPS);
+        }
+
+        GridStore gridStore = gridStoreFactory.get();
+        byte[] blank = new byte[GridStore.CHUNK_AREA];
+        walked.forEachChunk((chunkX, chunkY, cells) -> gridStore.writeChunk(chunkX, chunkY, blank));
+
+        Stepper stepper = simulation.start(gridStore);
+        stepper.step(STEPS);
+        long before = THREADS.getCurrentThreadAllocatedBytes();
+        stepper.step(STEPS);
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - before;
+
+        if (allocated == 0) return 0;
+        System.err.printf("%-24s %-32s %,12d bytes%n", rulesetFile, path, allocated);
+        return 1;
+    }
+
+    @FunctionalInterface
+    private interface Simulation {
+        Stepper start(GridStore gridStore);
+    }
+
+    @FunctionalInterface
+    private interface Stepper {
+        void step(long steps);
+    }
+}
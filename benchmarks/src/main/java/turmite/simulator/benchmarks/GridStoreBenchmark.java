@@ -0,0 +1,101 @@
+package turmite.simulator.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import turmite.simulator.models.ChunkedGridStore;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.MappedGridStore;
+import turmite.simulator.models.PackedGridStore;
+import turmite.simulator.models.TorusGridStore;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Grid reads and writes as the visited area grows. The store is filled with a square of {@code side * side}
+ * colored Grids, then random Grids inside the square are read or written.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GridStoreBenchmark {
+    private static final int ACCESSES = 1 << 16;
+
+    @Param({"64", "1024", "8192"})
+    private int side;
+
+    @Param({"chunked", "packed", "torus", "mapped"})
+    private String store;
+
+    private GridStore gridStore;
+    private Path mappedFile;
+    private int[] xs;
+    private int[] ys;
+
+    @Setup(Level.Trial)
+    public void fillGrid() throws IOException {
+        if (store.equals("mapped")) {
+            mappedFile = Files.createTempFile("grid-store-benchmark", ".grid");
+            Files.delete(mappedFile);
+            gridStore = MappedGridStore.open(mappedFile);
+        } else if (store.equals("torus")) {
+            gridStore = new TorusGridStore(side, side);
+        } else if (store.equals("packed")) {
+            gridStore = new PackedGridStore(3);
+        } else {
+            gridStore = new ChunkedGridStore();
+        }
+
+        int offset = side / 2;
+        for (int y = 0; y < side; y++)
+            for (int x = 0; x < side; x++) gridStore.setColor(x - offset, y - offset, 1 + ((x ^ y) & 1));
+
+        xs = new int[ACCESSES];
+        ys = new int[ACCESSES];
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < ACCESSES; i++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            xs[i] = (int) Math.floorMod(seed, (long) side) - offset;
+            ys[i] = (int) Math.floorMod(seed >>> 32, (long) side) - offset;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void closeGrid() throws IOException {
+        if (gridStore instanceof MappedGridStore mapped) {
+            mapped.close();
+            Files.deleteIfExists(mappedFile);
+        }
+    }
+
+    /**
+     * Reads random Grids of the visited area, reported per read.
+     *
+     * @return The sum of the Colors read, so the reads are not optimized away.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public int read() {
+        int sum = 0;
+        for (int i = 0; i < ACCESSES; i++) sum += gridStore.getColor(xs[i], ys[i]);
+        return sum;
+    }
+
+    /**
+     * Reads and rewrites random Grids of the visited area, like a Turmite's step does, reported per write.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ACCESSES)
+    public void readWrite() {
+        for (int i = 0; i < ACCESSES; i++) {
+            int color = gridStore.getColor(xs[i], ys[i]);
+            gridStore.setColor(xs[i], ys[i], color == 1 ? 2 : 1);
+        }
+    }
+}
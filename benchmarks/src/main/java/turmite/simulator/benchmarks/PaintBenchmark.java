@@ -0,0 +1,58 @@
+package turmite.simulator.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import turmite.simulator.SimulationEngine;
+import turmite.simulator.ui.SquareGridPanel;
+import turmite.simulator.utils.Ruleset;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the time it takes to paint a full frame of the {@link SquareGridPanel}, at several zoom levels.
+ * The panel paints into an offscreen image, so the benchmark runs headless.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class PaintBenchmark {
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 800;
+
+    @Param({"0.25", "1", "4"})
+    private double zoom;
+
+    @Param({"11000", "1000000"})
+    private long steps;
+
+    private SquareGridPanel gridPanel;
+    private BufferedImage frame;
+
+    @Setup(Level.Trial)
+    public void drawGrid() throws Exception {
+        Ruleset ruleset = new Ruleset();
+        ruleset.readRulesetFromFile("LangtonsAnt.json");
+        SimulationEngine engine = new SimulationEngine(ruleset);
+        engine.step(steps);
+
+        gridPanel = new SquareGridPanel(engine);
+        gridPanel.setSize(WIDTH, HEIGHT);
+        gridPanel.setZoom(zoom);
+        gridPanel.centerMap();
+        frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Paints one full frame.
+     */
+    @Benchmark
+    public void paintFrame() {
+        Graphics2D g = frame.createGraphics();
+        gridPanel.paint(g);
+        g.dispose();
+    }
+}
@@ -0,0 +1,72 @@
+package turmite.simulator.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import turmite.simulator.SimulationEngine;
+import turmite.simulator.models.ChunkedGridStore;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.Ruleset;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the step throughput of every Ruleset shipped in the {@code rulesets} directory.
+ * The Grid is cleared before every iteration, so each iteration walks the same part of the Ruleset's pattern.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StepBenchmark {
+    private static final int BULK_STEPS = 100_000;
+
+    @Param({"LangtonsAnt.json", "BinaryCounterAnt.json", "BridgerAnt.json", "FerkelsAnt.json"})
+    private String rulesetFile;
+
+    private Ruleset ruleset;
+    private GridStore gridStore;
+    private Turmite turmite;
+    private SimulationEngine engine;
+
+    @Setup(Level.Trial)
+    public void loadRuleset() throws Exception {
+        ruleset = new Ruleset();
+        ruleset.readRulesetFromFile(rulesetFile);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetGrid() {
+        gridStore = new ChunkedGridStore();
+        turmite = new Turmite(ruleset);
+        engine = new SimulationEngine(ruleset);
+        engine.setFastForwardEnabled(false);
+    }
+
+    /**
+     * One call of {@link Turmite#step(GridStore)}, the path the UI's timer takes.
+     */
+    @Benchmark
+    public void singleStep() {
+        turmite.step(gridStore);
+    }
+
+    /**
+     * The tight loop of {@link Turmite#step(GridStore, long)}, reported per step.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BULK_STEPS)
+    public void bulkStep() {
+        turmite.step(gridStore, BULK_STEPS);
+    }
+
+    /**
+     * Bulk steps through the {@link SimulationEngine}, without fast-forwarding highways, reported per step.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BULK_STEPS)
+    public void engineStep() {
+        engine.step(BULK_STEPS);
+    }
+}
@@ -0,0 +1,366 @@
+package turmite.simulator;
+
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.MappedGridStore;
+import turmite.simulator.models.PackedGridStore;
+import turmite.simulator.models.Rule;
+import turmite.simulator.models.TorusGridStore;
+import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.CanonicalRuleset;
+import turmite.simulator.utils.Checkpoint;
+import turmite.simulator.utils.GridImageExporter;
+import turmite.simulator.utils.Ruleset;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+import javax.json.JsonWriterFactory;
+import javax.json.stream.JsonGenerator;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * A headless batch run of Ruleset files. Every Ruleset is run for the same number of steps on a worker pool,
+ * then its final Grid is written as a PNG, and its statistics as a JSON file, into the output directory.
+ * <p>
+ * Runs can save a {@link Checkpoint} into the output directory every so many steps, and a later batch can resume them
+ * from there, so a long batch that was stopped does not start over.
+ * <p>
+ * The runner does not depend on any UI, so it starts without loading Swing. AWT is only loaded to encode the images.
+ */
+public class BatchRunner {
+    public static final String IMAGE_EXT = ".png";
+    public static final String STATS_EXT = ".stats.json";
+    public static final String CHECKPOINT_EXT = ".checkpoint";
+
+    private final long steps;
+    private final Path outputDir;
+    private final GridStoreFactory gridStoreFactory;
+    private long checkpointSteps;
+    private boolean resume;
+
+    public BatchRunner(long steps, Path outputDir) {
+        this(steps, outputDir, (name, numOfColors) -> new PackedGridStore(numOfColors));
+    }
+
+    /**
+     * @param steps The number of steps to run every Ruleset for.
+     * @param outputDir The directory to write the results into.
+     * @param gridStoreFactory Creates the Grid of every run. Grids that are {@link Closeable} are closed after the run.
+     */
+    public BatchRunner(long steps, Path outputDir, GridStoreFactory gridStoreFactory) {
+        if (steps < 0) throw new IllegalArgumentException("The number of steps cannot be negative: " + steps);
+
+        this.steps = steps;
+        this.outputDir = outputDir;
+        this.gridStoreFactory = gridStoreFactory;
+    }
+
+    /**
+     * Sets how often every run saves a checkpoint into {@code <name>.checkpoint} in the output directory.
+     *
+     * @param checkpointSteps The number of steps between two saves, or {@code 0} to never save.
+     * @throws IllegalArgumentException If the number of steps is negative.
+     */
+    public void setCheckpointSteps(long checkpointSteps) {
+        if (checkpointSteps < 0) throw new IllegalArgumentException("The number of steps cannot be negative: " + checkpointSteps);
+        this.checkpointSteps = checkpointSteps;
+    }
+
+    /**
+     * Sets whether runs with a checkpoint in the output directory continue from it, instead of starting over.
+     *
+     * @param resume Whether to resume from the checkpoints.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Runs every Ruleset file on a pool of worker threads. A Ruleset that fails is reported on the standard error,
+     * and does not stop the others.
+     *
+     * @param rulesetFiles The Ruleset files to run.
+     * @param parallelism The number of worker threads.
+     * @return The number of Rulesets that failed.
+     * @throws IOException If the output directory cannot be created.
+     * @throws InterruptedException If the thread is interrupted while waiting for the workers.
+     */
+    public int run(List<Path> rulesetFiles, int parallelism) throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+
+        List<Future<?>> results = new ArrayList<>(rulesetFiles.size());
+        int failed = 0;
+        try (ExecutorService pool = Executors.newFixedThreadPool(parallelism)) {
+            for (Path rulesetFile : rulesetFiles) results.add(pool.submit(() -> runRuleset(rulesetFile)));
+
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (ExecutionException e) {
+                    System.err.printf("%s: %s%n", rulesetFiles.get(i), e.getCause());
+                    failed++;
+                }
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Runs one Ruleset file, and writes its image and statistics. The run continues from its checkpoint, if there is
+     * one and resuming is enabled.
+     *
+     * @param rulesetFile The Ruleset file.
+     * @return {@code null}, so the task can throw checked exceptions.
+     * @throws Exception If the Ruleset cannot be read, its checkpoint cannot be resumed or saved, or the results
+     * cannot be written.
+     */
+    private Void runRuleset(Path rulesetFile) throws Exception {
+        Ruleset ruleset = new Ruleset();
+        ruleset.readRulesetFromFile(rulesetFile);
+
+        String name = getName(rulesetFile);
+        GridStore gridStore = gridStoreFactory.create(name, ruleset.getNumOfColors());
+        long nanos = 0;
+        try {
+            Checkpoint checkpoint = new Checkpoint(outputDir.resolve(name + CHECKPOINT_EXT));
+            SimulationEngine engine;
+            if (resume && Files.exists(checkpoint.getFile())) {
+                engine = loadCheckpoint(checkpoint, gridStore, ruleset);
+            } else {
+                // A new run starts from a blank Grid, even if the factory opened a file an earlier run left chunks in.
+                gridStore.clear();
+                engine = new SimulationEngine(ruleset, gridStore);
+            }
+
+            while (engine.getStepCount() < steps) {
+                long target = checkpointSteps > 0 ? Math.min(steps, engine.getStepCount() + checkpointSteps) : steps;
+                long start = System.nanoTime();
+                engine.stepTo(target);
+                nanos += System.nanoTime() - start;
+                if (checkpointSteps > 0) checkpoint.save(engine);
+            }
+
+            GridImageExporter.writePng(gridStore, ruleset.getNumOfColors(), outputDir.resolve(name + IMAGE_EXT));
+            writeStats(outputDir.resolve(name + STATS_EXT), name, ruleset, engine, nanos);
+        } finally {
+            if (gridStore instanceof Closeable closeable) closeable.close();
+        }
+
+        System.out.printf("%s: %,d steps in %.1f s%n", name, steps, nanos / 1e9);
+        return null;
+    }
+
+    /**
+     * Loads a run from its checkpoint.
+     *
+     * @param checkpoint The checkpoint of the run.
+     * @param gridStore The Grid of the run.
+     * @param ruleset The Ruleset of the run.
+     * @return The loaded run.
+     * @throws IOException If the checkpoint cannot be loaded onto the Grid, holds other Rules, or is past the number
+     * of steps to run.
+     */
+    private SimulationEngine loadCheckpoint(Checkpoint checkpoint, GridStore gridStore, Ruleset ruleset) throws IOException {
+        SimulationEngine engine = checkpoint.load(gridStore);
+        if (engine.getTurmites().size() != 1 || !sameRules(engine.getTurmite().getRuleset().getRules(), ruleset.getRules()))
+            throw new IOException("The checkpoint holds another Ruleset: " + checkpoint.getFile());
+        if (engine.getStepCount() > steps)
+            throw new IOException(String.format("The checkpoint is already at step %,d: %s", engine.getStepCount(), checkpoint.getFile()));
+        return engine;
+    }
+
+    /**
+     * @param rules Some Rules.
+     * @param otherRules Other Rules.
+     * @return Whether both hold the same Rules, in the same order.
+     */
+    private static boolean sameRules(List<Rule> rules, List<Rule> otherRules) {
+        if (rules.size() != otherRules.size()) return false;
+        for (int i = 0; i < rules.size(); i++) {
+            Rule rule = rules.get(i);
+            Rule other = otherRules.get(i);
+            if (rule.getCurrState() != other.getCurrState() || rule.getCurrColor() != other.getCurrColor()
+                    || rule.getTurnDir() != other.getTurnDir() || rule.getNewColor() != other.getNewColor()
+                    || rule.getNewState() != other.getNewState()) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the statistics of a finished run as a JSON object.
+     *
+     * @param file The file to write.
+     * @param name The name of the Ruleset.
+     * @param ruleset The Ruleset.
+     * @param engine The finished simulation.
+     * @param nanos The time it took to step the simulation.
+     * @throws IOException If the file cannot be written.
+     */
+    private void writeStats(Path file, String name, Ruleset ruleset, SimulationEngine engine, long nanos) throws IOException {
+        long[] histogram = new long[ruleset.getNumOfColors()];
+        long[] bounds = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+        engine.getGridStore().forEachCell((x, y, color) -> {
+            histogram[color]++;
+            bounds[0] = Math.min(bounds[0], x);
+            bounds[1] = Math.min(bounds[1], y);
+            bounds[2] = Math.max(bounds[2], x);
+            bounds[3] = Math.max(bounds[3], y);
+        });
+
+        long colored = 0;
+        JsonArrayBuilder histogramArray = Json.createArrayBuilder();
+        for (int color = 1; color < histogram.length; color++) {
+            colored += histogram[color];
+            histogramArray.add(histogram[color]);
+        }
+        if (colored == 0) bounds[0] = bounds[1] = bounds[2] = bounds[3] = 0;
+
+        Turmite turmite = engine.getTurmite();
+        JsonObjectBuilder stats = Json.createObjectBuilder()
+                .add("ruleset", name)
+                .add("states", ruleset.getNumOfStates())
+                .add("colors", ruleset.getNumOfColors())
+                .add("steps", engine.getStepCount())
+                .add("seconds", nanos / 1e9)
+                .add("coloredCells", colored)
+                .add("colorHistogram", histogramArray)
+                .add("minX", bounds[0])
+                .add("minY", bounds[1])
+                .add("maxX", bounds[2])
+                .add("maxY", bounds[3])
+                .add("chunks", engine.getGridStore().getChunkCount())
+                .add("turmiteX", turmite.getX())
+                .add("turmiteY", turmite.getY())
+                .add("turmiteHeading", turmite.getHeading())
+                .add("turmiteState", turmite.getState())
+                .add("fingerprint", String.format("%016x", engine.getFingerprint()));
+        // Rulesets with too many States and Colors have no 64-bit ID.
+        try {
+            stats.add("canonicalId", CanonicalRuleset.getCanonicalId(ruleset.getRules()));
+        } catch (ArithmeticException e) {
+            stats.addNull("canonicalId");
+        }
+
+        JsonWriterFactory writerFactory = Json.createWriterFactory(Map.of(JsonGenerator.PRETTY_PRINTING, true));
+        try (OutputStream outputStream = Files.newOutputStream(file);
+             JsonWriter writer = writerFactory.createWriter(outputStream)) {
+            writer.write(stats.build());
+        }
+    }
+
+    /**
+     * @param rulesetFile The Ruleset file.
+     * @return The name of the file without its extension.
+     */
+    private static String getName(Path rulesetFile) {
+        String fileName = rulesetFile.getFileName().toString();
+        return fileName.endsWith(TurmiteJFrame.RULESET_EXT) ? fileName.substring(0, fileName.length() - TurmiteJFrame.RULESET_EXT.length()) : fileName;
+    }
+
+    /**
+     * Expands the arguments into Ruleset files. A directory stands for every Ruleset file directly inside it.
+     *
+     * @param paths The files and directories.
+     * @return The Ruleset files, directories expanded in name order.
+     * @throws IOException If a directory cannot be listed.
+     */
+    private static List<Path> findRulesetFiles(List<Path> paths) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (Path path : paths) {
+            if (!Files.isDirectory(path)) {
+                files.add(path);
+                continue;
+            }
+            try (Stream<Path> listing = Files.list(path)) {
+                listing.filter(file -> file.getFileName().toString().endsWith(TurmiteJFrame.RULESET_EXT))
+                        .sorted()
+                        .forEach(files::add);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Runs a batch from the command line. Exits with {@code 2} if any Ruleset failed.
+     * <p>
+     * Usage: {@code BatchRunner <steps> <outputDir> [rulesets...]}, where every Ruleset is a file or a directory
+     * of them, {@code rulesets/} by default. The {@code threads} system property sets the number of workers,
+     * all cores by default. The {@code torus} system property, like {@code 1024x1024}, runs every Ruleset on
+     * a torus of that size instead of the unbounded plane. The {@code mapped} system property names a file to map
+     * the Grid into, see {@link MappedGridStore}. A batch of more than one Ruleset maps every Grid into a file of its
+     * own, named after the Ruleset: {@code <file>.<name>}. The {@code checkpoint} system property saves a checkpoint of
+     * every run every so many steps, and the {@code resume} system property continues the runs from their checkpoints.
+     * A mapped Grid that still holds the last save of its checkpoint is resumed as it is.
+     *
+     * @param args The command line arguments.
+     * @throws IOException If a directory cannot be listed, or the output directory cannot be created.
+     * @throws InterruptedException If the batch is interrupted.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchRunner <steps> <outputDir> [rulesets...]");
+            System.exit(1);
+        }
+        if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+
+        List<Path> paths = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) paths.add(Path.of(args[i]));
+        if (paths.isEmpty()) paths.add(Path.of(TurmiteJFrame.RULESET_DIR));
+
+        int parallelism = Integer.getInteger("threads", Runtime.getRuntime().availableProcessors());
+        List<Path> rulesetFiles = findRulesetFiles(paths);
+        String torus = System.getProperty("torus");
+        String mapped = System.getProperty("mapped");
+        if (torus != null && mapped != null) throw new IllegalArgumentException("A torus cannot be mapped into a file.");
+
+        long checkpointSteps = Long.getLong("checkpoint", 0);
+        boolean resume = Boolean.getBoolean("resume");
+
+        BatchRunner runner;
+        if (torus != null) {
+            String[] size = torus.split("x");
+            if (size.length != 2) throw new IllegalArgumentException("The torus size must look like <width>x<height> (got " + torus + ").");
+            int width = Integer.parseInt(size[0]);
+            int height = Integer.parseInt(size[1]);
+            runner = new BatchRunner(Long.parseLong(args[0]), Path.of(args[1]), (name, numOfColors) -> new TorusGridStore(width, height));
+        } else if (mapped != null) {
+            Path mappedFile = Path.of(mapped);
+            boolean shared = rulesetFiles.size() == 1;
+            runner = new BatchRunner(Long.parseLong(args[0]), Path.of(args[1]), (name, numOfColors) ->
+                    MappedGridStore.open(shared ? mappedFile : mappedFile.resolveSibling(mappedFile.getFileName() + "." + name)));
+        } else {
+            runner = new BatchRunner(Long.parseLong(args[0]), Path.of(args[1]));
+        }
+        runner.setCheckpointSteps(checkpointSteps);
+        runner.setResume(resume);
+        if (runner.run(rulesetFiles, parallelism) > 0) System.exit(2);
+    }
+
+    /**
+     * Creates the Grid of one run. The Grid may hold chunks left by an earlier run: they are cleared for a new run,
+     * and kept when the run is resumed from its checkpoint.
+     */
+    @FunctionalInterface
+    public interface GridStoreFactory {
+        /**
+         * @param name The name of the Ruleset.
+         * @param numOfColors The number of Colors of the Ruleset.
+         * @return The Grid to run the Ruleset on.
+         * @throws IOException If the Grid cannot be created.
+         */
+        GridStore create(String name, int numOfColors) throws IOException;
+    }
+}
@@ -0,0 +1,405 @@
+package turmite.simulator;
+
+import turmite.simulator.models.Direction;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.TransitionTable;
+
+import java.util.Arrays;
+
+/**
+ * Detects when a Turmite has settled into a highway: a sequence of steps that repeats with a fixed period,
+ * and moves the Turmite by a constant, non-zero offset every period. Once detected, the Turmite is fast-forwarded by
+ * whole periods by writing the repeated Grid pattern directly, without evaluating the Ruleset.
+ * <p>
+ * Fast-forwarding is exact. The Grid, the Turmite and the step counter end up exactly as if every step
+ * had been simulated. Before jumping, every Grid that a skipped period would read for the first time is checked
+ * to hold the Color the repeated pattern expects, so a highway running into earlier tracks is never skipped over.
+ * <p>
+ * Skipping a period saves evaluating the Ruleset, not writing the Grid: every Grid a skipped period leaves colored is
+ * still written, and every Grid it reads for the first time is still checked. So the time and the memory a highway
+ * takes still grow with the number of steps skipped, only with a smaller constant than stepping. The highway is not
+ * kept as a pattern to be drawn later, as the raster, the exports, the checkpoints and the fingerprints all read
+ * the Grid's chunks from its GridStore.
+ * <p>
+ * Checks run every {@code CHECK_INTERVAL} steps for as long as the Turmite is stepped, so they allocate nothing:
+ * the footprint of a period is built in buffers sized for {@code MAX_PERIOD}, allocated by the first check.
+ */
+public class HighwayDetector {
+    public static final int CHECK_INTERVAL = 1 << 14;
+    public static final int MAX_PERIOD = 1 << 12;
+
+    private static final int INITIAL_TRACE_SIZE = 1 << 10;
+    private static final int TRACE_SIZE = 1 << 16;
+    private static final int MIN_REPEATS = 3;
+
+    private int[] trace = new int[INITIAL_TRACE_SIZE];
+    private long traceCount;
+    private long stepsUntilCheck = CHECK_INTERVAL;
+    private TransitionTable tracedTable;
+    private Highway highway;
+
+    /**
+     * Steps the Turmite and records the steps, so highways can be detected later.
+     *
+     * @param turmite The Turmite to step.
+     * @param gridStore The Grid the Turmite is walking on.
+     * @param n The number of steps, must not be more than {@link #getStepsUntilCheck()}.
+     */
+    public void step(Turmite turmite, GridStore gridStore, long n) {
+        TransitionTable table = turmite.getRuleset().getTransitionTable();
+        if (table != tracedTable) {
+            tracedTable = table;
+            traceCount = 0;
+        }
+        growTrace(traceCount + n);
+
+        turmite.stepTraced(gridStore, n, trace, traceCount);
+        traceCount += n;
+        stepsUntilCheck -= n;
+    }
+
+    /**
+     * Grows the trace ring buffer, so short runs do not pay for the full trace.
+     *
+     * @param needed The number of entries that should fit, capped at {@code TRACE_SIZE}.
+     */
+    private void growTrace(long needed) {
+        if (trace.length >= TRACE_SIZE || trace.length >= needed) return;
+
+        int newSize = trace.length;
+        while (newSize < TRACE_SIZE && newSize < needed) newSize *= 2;
+
+        int[] newTrace = new int[newSize];
+        int oldMask = trace.length - 1;
+        int newMask = newSize - 1;
+        for (long i = Math.max(0, traceCount - trace.length); i < traceCount; i++)
+            newTrace[(int) i & newMask] = trace[(int) i & oldMask];
+        trace = newTrace;
+    }
+
+    /**
+     * @return The number of steps left until the next highway check is due.
+     */
+    public long getStepsUntilCheck() {
+        return stepsUntilCheck;
+    }
+
+    /**
+     * Checks whether the recorded steps form a highway, and if they do, fast-forwards the Turmite by as many whole
+     * periods as fit into {@code maxSteps}.
+     *
+     * @param turmite The Turmite that was stepped with {@link #step(Turmite, GridStore, long)}.
+     * @param gridStore The Grid the Turmite is walking on.
+     * @param maxSteps The maximum number of steps to skip.
+     * @return The number of steps skipped, always a multiple of the highway's period.
+     */
+    public long fastForward(Turmite turmite, GridStore gridStore, long maxSteps) {
+        stepsUntilCheck = CHECK_INTERVAL;
+
+        int period = findPeriod();
+        if (period == 0 || maxSteps < period) return 0;
+
+        if (highway == null) highway = new Highway();
+        if (!analyze(period, turmite)) return 0;
+
+        long periods = maxPeriods(highway, turmite, maxSteps / period);
+        periods = verifiedPeriods(highway, turmite, gridStore, periods);
+        if (periods == 0) return 0;
+
+        writePeriods(highway, turmite, gridStore, periods);
+        turmite.translate(periods * highway.dx, periods * highway.dy);
+        return periods * period;
+    }
+
+    /**
+     * Forgets every recorded step.
+     */
+    public void reset() {
+        traceCount = 0;
+        stepsUntilCheck = CHECK_INTERVAL;
+        tracedTable = null;
+    }
+
+    /**
+     * Finds the shortest period the recorded steps have been repeating with for at least {@code MIN_REPEATS} periods.
+     *
+     * @return The period, or {@code 0} if there is none.
+     */
+    private int findPeriod() {
+        int available = (int) Math.min(traceCount, trace.length);
+        for (int period = 1; period <= MAX_PERIOD && period * MIN_REPEATS <= available; period++)
+            if (countRepeats(period) >= MIN_REPEATS) return period;
+
+        return 0;
+    }
+
+    /**
+     * @param period The period to check.
+     * @return The number of whole periods at the end of the trace that repeat the last period.
+     */
+    private int countRepeats(int period) {
+        int available = (int) Math.min(traceCount, trace.length);
+        int mask = trace.length - 1;
+        long last = traceCount - 1;
+
+        int matching = 0;
+        while (matching + period < available
+                && trace[(int) (last - matching) & mask] == trace[(int) (last - matching - period) & mask])
+            matching++;
+
+        return (matching + period) / period;
+    }
+
+    /**
+     * Builds the footprint of the last recorded period into {@link #highway}: every Grid it touched relative to where
+     * the period started, with the Color first read from it and the Color last written to it.
+     *
+     * @param period The period of the highway.
+     * @param turmite The Turmite, standing where the last period ended.
+     * @return Whether the footprint is a highway: {@code false} if the period does not move the Turmite or is not
+     * verified for long enough.
+     */
+    private boolean analyze(int period, Turmite turmite) {
+        int mask = trace.length - 1;
+        long first = traceCount - period;
+
+        int dx = 0;
+        int dy = 0;
+        for (int i = 0; i < period; i++) {
+            int heading = Turmite.traceHeading(trace[(int) (first + i) & mask]);
+            dx += Direction.getHeadingDx(heading);
+            dy += Direction.getHeadingDy(heading);
+        }
+        if (dx == 0 && dy == 0) return false;
+
+        Highway footprint = highway;
+        CellTable cellIndices = footprint.cellIndices;
+        cellIndices.clear();
+        int[] cellX = footprint.cellX;
+        int[] cellY = footprint.cellY;
+        int[] firstRead = footprint.firstRead;
+        int[] lastWrite = footprint.lastWrite;
+        int cells = 0;
+
+        int x = 0;
+        int y = 0;
+        for (int i = 0; i < period; i++) {
+            int entry = trace[(int) (first + i) & mask];
+            int color = Turmite.traceColor(entry);
+            int newColor = TransitionTable.newColor(tracedTable.get(Turmite.traceState(entry), color));
+
+            int cell = cellIndices.get(x, y);
+            if (cell < 0) {
+                cell = cells++;
+                cellIndices.put(x, y, cell);
+                cellX[cell] = x;
+                cellY[cell] = y;
+                firstRead[cell] = color;
+            }
+            lastWrite[cell] = newColor;
+
+            int heading = Turmite.traceHeading(entry);
+            x += Direction.getHeadingDx(heading);
+            y += Direction.getHeadingDy(heading);
+        }
+
+        int minX = 0;
+        int maxX = 0;
+        int minY = 0;
+        int maxY = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            minX = Math.min(minX, cellX[cell]);
+            maxX = Math.max(maxX, cellX[cell]);
+            minY = Math.min(minY, cellY[cell]);
+            maxY = Math.max(maxY, cellY[cell]);
+        }
+        int maxOffset = Math.max(maxX - minX, maxY - minY) / Math.max(Math.abs(dx), Math.abs(dy)) + 1;
+
+        // A Grid is "settled" if no later period touches it again, and "fresh" if no earlier period touched it.
+        // The last earlier period that touched a Grid decides what it holds when it is read.
+        boolean[] settled = footprint.settled;
+        boolean[] fresh = footprint.fresh;
+        int rewriteDepth = 0;
+        int readDepth = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            int lastLater = 0;
+            int firstEarlier = 0;
+            for (int m = 1; m <= maxOffset; m++) {
+                if (cellIndices.get(cellX[cell] - m * dx, cellY[cell] - m * dy) >= 0) lastLater = m;
+                if (firstEarlier == 0 && cellIndices.get(cellX[cell] + m * dx, cellY[cell] + m * dy) >= 0)
+                    firstEarlier = m;
+            }
+            settled[cell] = lastLater == 0;
+            fresh[cell] = firstEarlier == 0;
+            rewriteDepth = Math.max(rewriteDepth, lastLater);
+            readDepth = Math.max(readDepth, firstEarlier);
+        }
+
+        // Every period a skipped one depends on must have been simulated and repeated.
+        if (countRepeats(period) < readDepth + 1) return false;
+
+        footprint.dx = dx;
+        footprint.dy = dy;
+        footprint.cells = cells;
+        footprint.rewriteDepth = rewriteDepth;
+        return true;
+    }
+
+    /**
+     * @param highway The highway.
+     * @param turmite The Turmite.
+     * @param periods The number of periods wanted.
+     * @return The number of periods that can be skipped without the Turmite's coordinates overflowing. With 64-bit
+     * coordinates, that takes a highway quintillions of steps.
+     */
+    private static long maxPeriods(Highway highway, Turmite turmite, long periods) {
+        long limit = Long.MAX_VALUE / 2;
+        if (highway.dx != 0) periods = Math.min(periods, (limit - Math.abs(turmite.getX())) / Math.abs(highway.dx));
+        if (highway.dy != 0) periods = Math.min(periods, (limit - Math.abs(turmite.getY())) / Math.abs(highway.dy));
+        return Math.max(periods, 0);
+    }
+
+    /**
+     * Checks the Grids that the skipped periods would read for the first time.
+     *
+     * @param highway The highway.
+     * @param turmite The Turmite, standing where a period starts.
+     * @param gridStore The Grid the Turmite is walking on.
+     * @param periods The number of periods wanted.
+     * @return The number of periods, from the first one, whose fresh Grids hold the expected Colors.
+     */
+    private static long verifiedPeriods(Highway highway, Turmite turmite, GridStore gridStore, long periods) {
+        for (long k = 0; k < periods; k++) {
+            long originX = turmite.getX() + k * highway.dx;
+            long originY = turmite.getY() + k * highway.dy;
+            for (int cell = 0; cell < highway.cells; cell++) {
+                if (!highway.fresh[cell]) continue;
+                if (gridStore.getColor(originX + highway.cellX[cell], originY + highway.cellY[cell]) != highway.firstRead[cell])
+                    return k;
+            }
+        }
+        return periods;
+    }
+
+    /**
+     * Writes the final Colors of the skipped periods. Grids that a later skipped period touches again are only written
+     * by the last period touching them.
+     *
+     * @param highway The highway.
+     * @param turmite The Turmite, standing where a period starts.
+     * @param gridStore The Grid the Turmite is walking on.
+     * @param periods The number of periods to write.
+     */
+    private static void writePeriods(Highway highway, Turmite turmite, GridStore gridStore, long periods) {
+        for (long k = 0; k < periods; k++) {
+            boolean settledOnly = k < periods - highway.rewriteDepth;
+            long originX = turmite.getX() + k * highway.dx;
+            long originY = turmite.getY() + k * highway.dy;
+            for (int cell = 0; cell < highway.cells; cell++) {
+                if (settledOnly && !highway.settled[cell]) continue;
+                gridStore.setColor(originX + highway.cellX[cell], originY + highway.cellY[cell], highway.lastWrite[cell]);
+            }
+        }
+    }
+
+    /**
+     * The footprint of one period of a highway. Its buffers are sized for the longest period, and are overwritten
+     * by every check.
+     */
+    private static final class Highway {
+        /** The index of every touched Grid, by its coordinates relative to where the period starts. */
+        private final CellTable cellIndices = new CellTable();
+        /** The X coordinates of the touched Grids, relative to where the period starts. */
+        private final int[] cellX = new int[MAX_PERIOD];
+        /** The Y coordinates of the touched Grids, relative to where the period starts. */
+        private final int[] cellY = new int[MAX_PERIOD];
+        /** The Color first read from each touched Grid. */
+        private final int[] firstRead = new int[MAX_PERIOD];
+        /** The Color last written to each touched Grid. */
+        private final int[] lastWrite = new int[MAX_PERIOD];
+        /** Whether a touched Grid is never touched again by later periods. */
+        private final boolean[] settled = new boolean[MAX_PERIOD];
+        /** Whether a touched Grid was never touched by earlier periods. */
+        private final boolean[] fresh = new boolean[MAX_PERIOD];
+        /** The change of the X coordinate per period. */
+        private int dx;
+        /** The change of the Y coordinate per period. */
+        private int dy;
+        /** The number of Grids touched in one period. */
+        private int cells;
+        /** The most periods after which a Grid is touched again. */
+        private int rewriteDepth;
+    }
+
+    /**
+     * An open-addressing hash table from relative Grid coordinates to the index of a touched Grid, with room for
+     * every Grid of the longest period. Slots are stamped with the generation they were written in, so clearing the
+     * table is one increment instead of a fill.
+     */
+    private static final class CellTable {
+        private static final int CAPACITY = Integer.highestOneBit(MAX_PERIOD) * 4;
+
+        private final long[] keys = new long[CAPACITY];
+        private final int[] indices = new int[CAPACITY];
+        private final int[] generations = new int[CAPACITY];
+        private int generation = 1;
+
+        /**
+         * @param x The relative X coordinate.
+         * @param y The relative Y coordinate.
+         * @return The index stored for the Grid, or {@code -1} if it is not in the table.
+         */
+        int get(int x, int y) {
+            long key = cellKey(x, y);
+            int i = hash(key);
+            while (generations[i] == generation) {
+                if (keys[i] == key) return indices[i];
+                i = (i + 1) & (CAPACITY - 1);
+            }
+            return -1;
+        }
+
+        /**
+         * @param x The relative X coordinate, of a Grid not yet in the table.
+         * @param y The relative Y coordinate, of a Grid not yet in the table.
+         * @param index The index to store for the Grid.
+         */
+        void put(int x, int y, int index) {
+            long key = cellKey(x, y);
+            int i = hash(key);
+            while (generations[i] == generation) i = (i + 1) & (CAPACITY - 1);
+            keys[i] = key;
+            indices[i] = index;
+            generations[i] = generation;
+        }
+
+        /**
+         * Removes every Grid from the table.
+         */
+        void clear() {
+            if (++generation == 0) {
+                Arrays.fill(generations, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * @param x The relative X coordinate.
+         * @param y The relative Y coordinate.
+         * @return The key of the relative coordinates.
+         */
+        private static long cellKey(int x, int y) {
+            return ((long) x << 32) | (y & 0xFFFFFFFFL);
+        }
+
+        /**
+         * @param key The key of the relative coordinates.
+         * @return The first slot to probe for the key.
+         */
+        private static int hash(long key) {
+            long h = key * 0x9e3779b97f4a7c15L;
+            return (int) (h >>> (64 - Integer.numberOfTrailingZeros(CAPACITY)));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package turmite.simulator;
+
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.PackedGridStore;
+import turmite.simulator.models.Turmite;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Steps many Turmites on one shared Grid.
+ * <p>
+ * One simulation step steps every Turmite once, in the order they were added. This order decides conflicts
+ * deterministically: when two Turmites meet, the one added earlier colors the Grid first.
+ * <p>
+ * Steps are run in rounds of {@code ROUND_STEPS}. Turmites that cannot reach each other's chunks within a round are
+ * grouped into separate clusters, and the clusters are stepped in parallel. Inside a cluster, Turmites are stepped in
+ * order, so the result is the same as stepping every Turmite in order on one thread. Clusters never write into the same
+ * chunk, so stores that pack many Grids into one word, like {@link PackedGridStore}, can be stepped in parallel too.
+ * <p>
+ * Clusters are found in scratch arrays kept from round to round, so a round stepped on one thread allocates nothing.
+ */
+public class ParallelStepper {
+    public static final int ROUND_STEPS = 32;
+
+    // Scratch arrays of the cluster search, kept between rounds so stepping allocates nothing.
+    private int[] parents = new int[0];
+    private int[] byX = new int[0];
+    private int[] clusterOf = new int[0];
+    private int[] clusterStarts = new int[1];
+    private int[] members = new int[0];
+
+    /**
+     * Steps every Turmite {@code n} times.
+     *
+     * @param turmites The Turmites, in the order they were added.
+     * @param gridStore The Grid the Turmites are walking on.
+     * @param n The number of steps.
+     */
+    public void step(Turmite[] turmites, GridStore gridStore, long n) {
+        if (byX.length != turmites.length) resize(turmites.length);
+
+        long remaining = n;
+        while (remaining > 0) {
+            int round = (int) Math.min(remaining, ROUND_STEPS);
+            stepRound(turmites, gridStore, round);
+            remaining -= round;
+        }
+    }
+
+    /**
+     * Sizes the scratch arrays for a number of Turmites.
+     *
+     * @param count The number of Turmites.
+     */
+    private void resize(int count) {
+        parents = new int[count];
+        byX = new int[count];
+        clusterOf = new int[count];
+        clusterStarts = new int[count + 1];
+        members = new int[count];
+        for (int i = 0; i < count; i++) byX[i] = i;
+    }
+
+    /**
+     * Steps one round, in parallel if the Turmites are far enough apart.
+     *
+     * @param turmites The Turmites, in the order they were added.
+     * @param gridStore The Grid the Turmites are walking on.
+     * @param steps The number of steps in the round.
+     */
+    private void stepRound(Turmite[] turmites, GridStore gridStore, int steps) {
+        int clusters = findClusters(turmites, steps);
+        if (clusters == 1 || !reserve(turmites, gridStore, steps)) {
+            for (int i = 0; i < turmites.length; i++) members[i] = i;
+            stepCluster(turmites, members, 0, turmites.length, gridStore, steps);
+            return;
+        }
+
+        int[] starts = clusterStarts;
+        int[] grouped = members;
+        IntStream.range(0, clusters).parallel()
+                .forEach(cluster -> stepCluster(turmites, grouped, starts[cluster], starts[cluster + 1], gridStore, steps));
+    }
+
+    /**
+     * @param turmites The Turmites.
+     * @param members The indices of the Turmites, grouped by cluster.
+     * @param from The position in {@code members} of the cluster's first Turmite.
+     * @param to The position in {@code members} after the cluster's last Turmite.
+     * @param gridStore The Grid the Turmites are walking on.
+     * @param steps The number of steps.
+     */
+    private static void stepCluster(Turmite[] turmites, int[] members, int from, int to, GridStore gridStore, int steps) {
+        if (to - from == 1) {
+            turmites[members[from]].step(gridStore, steps);
+            return;
+        }
+
+        for (int i = 0; i < steps; i++)
+            for (int member = from; member < to; member++) turmites[members[member]].step(gridStore);
+    }
+
+    /**
+     * Reserves the area every Turmite can reach in the round.
+     *
+     * @param turmites The Turmites.
+     * @param gridStore The Grid the Turmites are walking on.
+     * @param steps The number of steps in the round.
+     * @return Whether the Grid supports concurrent writes in every reserved area.
+     */
+    private static boolean reserve(Turmite[] turmites, GridStore gridStore, int steps) {
+        // Widening a packed Grid repacks every chunk, so it must not happen while the clusters are stepped.
+        if (gridStore instanceof PackedGridStore packed) {
+            for (Turmite turmite : turmites) packed.ensureColors(turmite.getRuleset().getNumOfColors());
+        }
+
+        for (Turmite turmite : turmites) {
+            if (!gridStore.reserve(turmite.getX() - steps, turmite.getY() - steps, turmite.getX() + steps, turmite.getY() + steps))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Groups the Turmites whose reachable areas overlap a common chunk in the round. The indices of every cluster's Turmites are
+     * written into {@code members} in ascending order, cluster {@code c} from {@code clusterStarts[c]} up to
+     * {@code clusterStarts[c + 1]}.
+     *
+     * @param turmites The Turmites.
+     * @param steps The number of steps in the round.
+     * @return The number of clusters.
+     */
+    private int findClusters(Turmite[] turmites, int steps) {
+        int count = turmites.length;
+        for (int i = 0; i < count; i++) parents[i] = i;
+
+        // Turmites move little in a round, so the order of the last round is nearly sorted already.
+        for (int i = 1; i < count; i++) {
+            int index = byX[i];
+            long x = turmites[index].getX();
+            int j = i - 1;
+            for (; j >= 0 && turmites[byX[j]].getX() > x; j--) byX[j + 1] = byX[j];
+            byX[j + 1] = index;
+        }
+
+        // Two reachable areas can only share a chunk if the Turmites are less than 2 * steps + CHUNK_SIZE apart on the X axis.
+        long reach = 2L * steps + GridStore.CHUNK_SIZE;
+        for (int i = 0; i < count; i++) {
+            Turmite a = turmites[byX[i]];
+            for (int j = i + 1; j < count; j++) {
+                Turmite b = turmites[byX[j]];
+                if (b.getX() - a.getX() >= reach) break;
+                if (sharesChunk(a.getX(), b.getX(), steps) && sharesChunk(a.getY(), b.getY(), steps))
+                    union(parents, byX[i], byX[j]);
+            }
+        }
+
+        int clusters = 0;
+        for (int i = 0; i < count; i++) if (find(parents, i) == i) clusterOf[i] = clusters++;
+        for (int i = 0; i < count; i++) clusterOf[i] = clusterOf[find(parents, i)];
+
+        // Counts the Turmites of every cluster, then places them in ascending order.
+        Arrays.fill(clusterStarts, 0, clusters + 1, 0);
+        for (int i = 0; i < count; i++) clusterStarts[clusterOf[i] + 1]++;
+        for (int c = 0; c < clusters; c++) clusterStarts[c + 1] += clusterStarts[c];
+        int[] next = parents;
+        System.arraycopy(clusterStarts, 0, next, 0, clusters);
+        for (int i = 0; i < count; i++) members[next[clusterOf[i]]++] = i;
+        return clusters;
+    }
+
+    /**
+     * @param a The coordinate of one Turmite on an axis.
+     * @param b The coordinate of another Turmite on the same axis.
+     * @param steps The number of steps in the round.
+     * @return Whether the chunks the Turmites can reach in the round overlap on the axis.
+     */
+    private static boolean sharesChunk(long a, long b, int steps) {
+        return (a - steps) >> GridStore.CHUNK_BITS <= (b + steps) >> GridStore.CHUNK_BITS
+                && (b - steps) >> GridStore.CHUNK_BITS <= (a + steps) >> GridStore.CHUNK_BITS;
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b) {
+        parents[find(parents, a)] = find(parents, b);
+    }
+}
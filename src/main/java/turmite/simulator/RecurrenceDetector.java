@@ -0,0 +1,245 @@
+package turmite.simulator;
+
+import turmite.simulator.models.Direction;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.TorusGridStore;
+import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.TransitionTable;
+
+import java.util.List;
+
+/**
+ * Detects when a simulation revisits an earlier state exactly: the same Grid, and the Turmite at the same position,
+ * with the same heading and State. From then on, the simulation repeats with a fixed period forever.
+ * <p>
+ * The state is hashed Zobrist-style. Every colored Grid has a pseudo-random 64-bit key of its coordinates and Color,
+ * and the hash of the Grid is the XOR of the keys of all its colored Grids, so one write updates it in constant time.
+ * The key of the Turmite is XORed on top. Keys are mixed from the coordinates, as the Grid is unbounded.
+ * <p>
+ * Every visited state's hash is looked up in a rolling table that keeps the most recent step of each hash,
+ * overwriting on collisions, and is compared against one anchor state that is moved at every power of two steps.
+ * Periods that fit into the table are found the first time they repeat, longer ones once the anchor lies on the
+ * cycle, after at most about twice the period and the steps before it. Two different states with the same 64-bit
+ * hash are so unlikely that a found recurrence is taken as exact.
+ * <p>
+ * The same hash identifies the state of a finished run, see {@link #fingerprint(GridStore, List)}.
+ */
+public class RecurrenceDetector {
+    public static final int TABLE_SIZE = 1 << 16;
+
+    private static final long X_MULTIPLIER = 0x9e3779b97f4a7c15L;
+    private static final long Y_MULTIPLIER = 0xc2b2ae3d27d4eb4fL;
+    private static final long COLOR_MULTIPLIER = 0x165667b19e3779f9L;
+    private static final long TURMITE_SALT = 0x27d4eb2f165667c5L;
+
+    private long[] hashes;
+    private long[] steps;
+    private long stepBase;
+    private long stepTop;
+    private boolean hashed;
+    private long gridHash;
+    private TransitionTable hashedTable;
+
+    private long anchorHash;
+    private long anchorStep = -1;
+    private long anchorSpan = 1;
+    private volatile Recurrence recurrence;
+
+    /**
+     * Steps the Turmite, hashing every state it passes through. The Grid is hashed in full on the first call after
+     * a reset.
+     *
+     * @param turmite The Turmite to step. It must be the only one on the Grid.
+     * @param gridStore The Grid the Turmite is walking on.
+     * @param stepCount The number of steps the simulation has taken so far.
+     * @param n The number of steps.
+     */
+    public void step(Turmite turmite, GridStore gridStore, long stepCount, long n) {
+        if (hashes == null) {
+            hashes = new long[TABLE_SIZE];
+            steps = new long[TABLE_SIZE];
+        }
+        if (!hashed) {
+            gridHash = hashGrid(gridStore);
+            hashed = true;
+            clearHistory();
+        }
+        TransitionTable table = turmite.getRuleset().getTransitionTable();
+        if (table != hashedTable) {
+            hashedTable = table;
+            clearHistory();
+        }
+
+        // On a torus, positions are kept wrapped like the Turmite's own torus loop does, so a state has one hash.
+        long xMask = -1;
+        long yMask = -1;
+        if (gridStore instanceof TorusGridStore torus) {
+            xMask = torus.getWidth() - 1;
+            yMask = torus.getHeight() - 1;
+        }
+        long currX = turmite.getX() & xMask;
+        long currY = turmite.getY() & yMask;
+        int currHeading = turmite.getHeading();
+        int currState = turmite.getState();
+        long currHash = gridHash;
+        boolean detecting = recurrence == null;
+
+        for (long i = 0; i < n; i++) {
+            if (detecting) detecting = !record(currHash ^ turmiteKey(currX, currY, currHeading, currState), stepCount + i);
+
+            int currColor = gridStore.getColor(currX, currY);
+            int entry = table.get(currState, currColor);
+            int newColor = TransitionTable.newColor(entry);
+            gridStore.setColor(currX, currY, newColor);
+            if (newColor != currColor) currHash ^= cellKey(currX, currY, currColor) ^ cellKey(currX, currY, newColor);
+            currHeading = (currHeading + TransitionTable.turnDelta(entry)) & 3;
+            currState = TransitionTable.newState(entry);
+            currX = (currX + Direction.getHeadingDx(currHeading)) & xMask;
+            currY = (currY + Direction.getHeadingDy(currHeading)) & yMask;
+        }
+
+        gridHash = currHash;
+        turmite.restore(currX, currY, currHeading, currState);
+    }
+
+    /**
+     * Looks up the hash of a visited state, and remembers it.
+     *
+     * @param stateHash The hash of the state.
+     * @param step The number of steps taken when the state was visited.
+     * @return Whether the state was visited before.
+     */
+    private boolean record(long stateHash, long step) {
+        int slot = (int) stateHash & (TABLE_SIZE - 1);
+        // Steps are stored plus one above the base, so a slot at or below the base is empty.
+        long stored = steps[slot];
+        if (stored > stepBase && hashes[slot] == stateHash) {
+            recurrence = new Recurrence(step, step - (stored - stepBase - 1));
+            return true;
+        }
+        if (anchorStep >= 0 && anchorHash == stateHash) {
+            recurrence = new Recurrence(step, step - anchorStep);
+            return true;
+        }
+
+        hashes[slot] = stateHash;
+        steps[slot] = stepBase + step + 1;
+        stepTop = Math.max(stepTop, steps[slot]);
+        if (step - anchorStep >= anchorSpan) {
+            if (anchorStep >= 0) anchorSpan *= 2;
+            anchorHash = stateHash;
+            anchorStep = step;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets every visited state, but keeps the hash of the Grid. The table is not filled, the base is raised above
+     * every stored step instead, so a reused detector clears in constant time.
+     */
+    private void clearHistory() {
+        stepBase = stepTop;
+        anchorStep = -1;
+        anchorSpan = 1;
+        recurrence = null;
+    }
+
+    /**
+     * Forgets every visited state and the hash of the Grid. Must be called whenever the Grid or the Turmite were
+     * changed other than through {@link #step(Turmite, GridStore, long, long)}.
+     */
+    public void reset() {
+        hashed = false;
+        recurrence = null;
+    }
+
+    /**
+     * @return The first recurrence found since the last reset, or {@code null} if there is none.
+     */
+    public Recurrence getRecurrence() {
+        return recurrence;
+    }
+
+    /**
+     * @param turmite The Turmite that was stepped with {@link #step(Turmite, GridStore, long, long)}.
+     * @return The hash of the current state, the same as {@link #fingerprint(GridStore, List)} would compute, or
+     * {@code 0} if the Grid was not hashed since the last reset.
+     */
+    public long getStateHash(Turmite turmite) {
+        if (!hashed) return 0;
+        return gridHash ^ turmiteKey(turmite.getX(), turmite.getY(), turmite.getHeading(), turmite.getState());
+    }
+
+    /**
+     * Hashes the state of a simulation from scratch. Two runs that end in the same state have the same fingerprint,
+     * so it can be used to find duplicate runs.
+     *
+     * @param gridStore The Grid of the simulation.
+     * @param turmites Every Turmite of the simulation, in the order they are stepped.
+     * @return The fingerprint of the state.
+     */
+    public static long fingerprint(GridStore gridStore, List<Turmite> turmites) {
+        long hash = hashGrid(gridStore);
+        for (int i = 0; i < turmites.size(); i++) {
+            Turmite turmite = turmites.get(i);
+            // Turmites are rotated by their order, so swapping two Turmites changes the fingerprint.
+            hash ^= Long.rotateLeft(turmiteKey(turmite.getX(), turmite.getY(), turmite.getHeading(), turmite.getState()), i);
+        }
+        return hash;
+    }
+
+    /**
+     * @param gridStore The Grid to hash.
+     * @return The XOR of the keys of every colored Grid.
+     */
+    public static long hashGrid(GridStore gridStore) {
+        long[] hash = {0};
+        gridStore.forEachCell((x, y, color) -> hash[0] ^= cellKey(x, y, color));
+        return hash[0];
+    }
+
+    /**
+     * @param x The X coordinate of the Grid.
+     * @param y The Y coordinate of the Grid.
+     * @param color The Color of the Grid.
+     * @return The key of the Grid in that Color, {@code 0} for Color {@code 0}, so blank Grids do not count.
+     */
+    public static long cellKey(long x, long y, int color) {
+        if (color == 0) return 0;
+        return mix(x * X_MULTIPLIER + y * Y_MULTIPLIER + color * COLOR_MULTIPLIER);
+    }
+
+    /**
+     * @param x The X coordinate of the Turmite.
+     * @param y The Y coordinate of the Turmite.
+     * @param heading The heading of the Turmite.
+     * @param state The State of the Turmite.
+     * @return The key of the Turmite.
+     */
+    public static long turmiteKey(long x, long y, int heading, int state) {
+        return mix((x * X_MULTIPLIER + y * Y_MULTIPLIER) ^ ((((long) state << 2) | heading) * COLOR_MULTIPLIER + TURMITE_SALT));
+    }
+
+    /**
+     * The finalizer of MurmurHash3, so neighbouring Grids get unrelated keys.
+     *
+     * @param h The value to mix.
+     * @return The mixed value.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A revisited state: the state after {@code step} steps equals the state after {@code step - period} steps.
+     *
+     * @param step The number of steps taken when the state was revisited.
+     * @param period The number of steps between the two visits, the period the simulation repeats with from then on.
+     */
+    public record Recurrence(long step, long period) {}
+}
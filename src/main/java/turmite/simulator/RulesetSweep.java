@@ -0,0 +1,348 @@
+package turmite.simulator;
+
+import turmite.simulator.models.ChunkIndex;
+import turmite.simulator.models.ChunkedGridStore;
+import turmite.simulator.models.Direction;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.Rule;
+import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.CanonicalRuleset;
+import turmite.simulator.utils.Ruleset;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * An exhaustive sweep over every valid Ruleset with a given number of States and Colors.
+ * <p>
+ * Rulesets are numbered in mixed radix: every Rule, in {@code currState-currColor} order, is one digit of
+ * {@code SQUARE_GRID_MAX_TURN_DIRS * numOfColors * numOfStates} values. Only indices whose Rules use the highest State
+ * and the highest Color are valid, as defined by the Ruleset's validation. Index ranges are split over a fork-join pool,
+ * and every result is written to the output as one JSON line as soon as its batch is done.
+ * <p>
+ * Equivalent Rulesets, see {@link CanonicalRuleset}, walk the same way in other Colors or mirrored, so by default only
+ * the representative of every class is run: the index equal to its canonical ID. Over the whole index space, every
+ * class is run exactly once, but a range may skip a class whose representative lies outside of it. A class whose
+ * canonical form is not a valid index is run in full. Every result holds its canonical ID, to group equivalent results.
+ * <p>
+ * Every result holds the fingerprint of the final state, so Rulesets that end up identical can be found. If recurrences
+ * are detected, the results of Rulesets that revisit an earlier state also hold the step and the period.
+ * <p>
+ * Every worker thread keeps one engine, with its detectors and Grid, and resets it between Rulesets, so the workers
+ * do not contend on allocating a new simulation for every Ruleset.
+ */
+public class RulesetSweep {
+    private static final int BATCH_SIZE = 64;
+
+    private final int numOfStates;
+    private final int numOfColors;
+    private final long steps;
+    private final boolean detectRecurrences;
+    private final boolean representativesOnly;
+    private final ThreadLocal<Worker> workers = ThreadLocal.withInitial(Worker::new);
+
+    public RulesetSweep(int numOfStates, int numOfColors, long steps) {
+        this(numOfStates, numOfColors, steps, false, true);
+    }
+
+    /**
+     * @param numOfStates The number of States of every Ruleset.
+     * @param numOfColors The number of Colors of every Ruleset.
+     * @param steps The number of steps to run every Ruleset for.
+     * @param detectRecurrences Whether to detect recurrences, see {@link SimulationEngine#setRecurrenceDetectionEnabled(boolean)}.
+     * @param representativesOnly Whether to run only one Ruleset of every class of equivalent Rulesets.
+     */
+    public RulesetSweep(int numOfStates, int numOfColors, long steps, boolean detectRecurrences, boolean representativesOnly) {
+        if (numOfStates < 1 || numOfStates > Ruleset.MAX_STATES)
+            throw new IllegalArgumentException(String.format("The number of States must be in the range 1-%d (got %d).", Ruleset.MAX_STATES, numOfStates));
+        if (numOfColors < 1 || numOfColors > Ruleset.MAX_COLORS)
+            throw new IllegalArgumentException(String.format("The number of Colors must be in the range 1-%d (got %d).", Ruleset.MAX_COLORS, numOfColors));
+        if (steps < 0) throw new IllegalArgumentException("The number of steps cannot be negative: " + steps);
+
+        this.numOfStates = numOfStates;
+        this.numOfColors = numOfColors;
+        this.steps = steps;
+        this.detectRecurrences = detectRecurrences;
+        this.representativesOnly = representativesOnly;
+    }
+
+    /**
+     * @return The number of Ruleset indices, valid or not.
+     * @throws ArithmeticException If the number of indices does not fit into a {@code long}.
+     */
+    public long getNumOfIndices() {
+        long radix = (long) Ruleset.SQUARE_GRID_MAX_TURN_DIRS * numOfColors * numOfStates;
+        long count = 1;
+        for (int i = 0; i < numOfStates * numOfColors; i++) count = Math.multiplyExact(count, radix);
+        return count;
+    }
+
+    /**
+     * Runs every valid Ruleset with an index in the range {@code [from, to)} on a fork-join pool,
+     * and writes the results into the output file.
+     *
+     * @param output The file to write the results into.
+     * @param from The first index, inclusive.
+     * @param to The last index, exclusive.
+     * @param parallelism The number of worker threads.
+     * @throws IOException If the output file cannot be written.
+     */
+    public void run(Path output, long from, long to, int parallelism) throws IOException {
+        if (from < 0 || to > getNumOfIndices() || from > to)
+            throw new IllegalArgumentException(String.format("Invalid index range [%d, %d).", from, to));
+
+        try (BufferedWriter writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8);
+             ForkJoinPool pool = new ForkJoinPool(parallelism)) {
+            pool.invoke(new SweepTask(writer, from, to));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param index The index of the Ruleset.
+     * @return The Rules of the Ruleset, or {@code null} if the index is not of a valid Ruleset.
+     */
+    public List<Rule> decodeRules(long index) {
+        List<Character> turnDirs = Direction.getSquareGridTurnDirs();
+        int radix = Ruleset.SQUARE_GRID_MAX_TURN_DIRS * numOfColors * numOfStates;
+        List<Rule> rules = new ArrayList<>(numOfStates * numOfColors);
+
+        int highestState = 0;
+        int highestColor = 0;
+        for (int state = 0; state < numOfStates; state++) {
+            for (int color = 0; color < numOfColors; color++) {
+                int digit = (int) (index % radix);
+                index /= radix;
+
+                int newColor = (digit / Ruleset.SQUARE_GRID_MAX_TURN_DIRS) % numOfColors;
+                int newState = digit / (Ruleset.SQUARE_GRID_MAX_TURN_DIRS * numOfColors);
+                highestState = Math.max(highestState, newState);
+                highestColor = Math.max(highestColor, newColor);
+
+                Direction turnDir = Direction.getTurnDirFromChar(turnDirs.get(digit % Ruleset.SQUARE_GRID_MAX_TURN_DIRS));
+                rules.add(new Rule(state, color, turnDir, newColor, newState));
+            }
+        }
+
+        if (highestState != numOfStates - 1 || highestColor != numOfColors - 1) return null;
+        return rules;
+    }
+
+    /**
+     * @param index The index of a valid Ruleset.
+     * @param canonicalId The canonical ID of the Ruleset.
+     * @return Whether the Ruleset is run: always if every Ruleset is run, otherwise if it is the representative of its
+     * class, or its class has no valid representative.
+     */
+    private boolean isRun(long index, long canonicalId) {
+        return !representativesOnly || canonicalId == index || decodeRules(canonicalId) == null;
+    }
+
+    /**
+     * Runs one Ruleset and formats its metrics as a JSON line.
+     *
+     * @param index The index of the Ruleset.
+     * @param canonicalId The canonical ID of the Ruleset.
+     * @param rules The Rules of the Ruleset.
+     * @return The JSON line of the result.
+     */
+    private String runRuleset(long index, long canonicalId, List<Rule> rules) {
+        Worker worker = workers.get();
+        TouchTrackingGridStore gridStore = worker.gridStore;
+        SimulationEngine engine = worker.engine;
+        try {
+            worker.ruleset.loadRules(rules);
+        } catch (Ruleset.InvalidRulesetException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+        engine.reset();
+        engine.step(steps);
+
+        long[] histogram = new long[numOfColors];
+        gridStore.forEachCell((x, y, color) -> histogram[color]++);
+        long colored = 0;
+        for (long count : histogram) colored += count;
+        histogram[0] = gridStore.touched - colored;
+
+        JsonArrayBuilder rulesArray = Json.createArrayBuilder();
+        for (Rule rule : rules)
+            rulesArray.add(String.format("%d-%d-%c-%d-%d", rule.getCurrState(), rule.getCurrColor(),
+                    Direction.getCharFromTurnDir(rule.getTurnDir()), rule.getNewColor(), rule.getNewState()));
+
+        JsonArrayBuilder histogramArray = Json.createArrayBuilder();
+        for (long count : histogram) histogramArray.add(count);
+
+        Turmite turmite = engine.getTurmite();
+        JsonObjectBuilder result = Json.createObjectBuilder()
+                .add("index", index)
+                .add("canonicalId", canonicalId)
+                .add("states", numOfStates)
+                .add("colors", numOfColors)
+                .add("ruleset", rulesArray)
+                .add("steps", steps)
+                .add("cellsTouched", gridStore.touched)
+                .add("minX", gridStore.minX)
+                .add("minY", gridStore.minY)
+                .add("maxX", gridStore.maxX)
+                .add("maxY", gridStore.maxY)
+                .add("colorHistogram", histogramArray)
+                .add("turmiteX", turmite.getX())
+                .add("turmiteY", turmite.getY())
+                .add("fingerprint", String.format("%016x", engine.getFingerprint()));
+
+        RecurrenceDetector.Recurrence recurrence = engine.getRecurrence();
+        if (recurrence != null) result.add("recurrenceStep", recurrence.step()).add("period", recurrence.period());
+        return result.build().toString();
+    }
+
+    /**
+     * A task that runs an index range, splitting it while it is larger than {@code BATCH_SIZE}.
+     */
+    private class SweepTask extends RecursiveAction {
+        private final transient Writer writer;
+        private final long from;
+        private final long to;
+
+        SweepTask(Writer writer, long from, long to) {
+            this.writer = writer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_SIZE) {
+                long mid = from + (to - from) / 2;
+                invokeAll(new SweepTask(writer, from, mid), new SweepTask(writer, mid, to));
+                return;
+            }
+
+            StringBuilder lines = new StringBuilder();
+            for (long index = from; index < to; index++) {
+                List<Rule> rules = decodeRules(index);
+                if (rules == null) continue;
+
+                long canonicalId = CanonicalRuleset.getCanonicalId(rules);
+                if (isRun(index, canonicalId)) lines.append(runRuleset(index, canonicalId, rules)).append('\n');
+            }
+
+            if (lines.isEmpty()) return;
+            try {
+                synchronized (writer) {
+                    writer.write(lines.toString());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * The simulation of one worker thread. Its Ruleset is reloaded, and the engine reset, for every Ruleset it runs.
+     */
+    private final class Worker {
+        private final Ruleset ruleset = new Ruleset();
+        private final TouchTrackingGridStore gridStore = new TouchTrackingGridStore();
+        private final SimulationEngine engine = new SimulationEngine(ruleset, gridStore);
+
+        Worker() {
+            engine.setRecurrenceDetectionEnabled(detectRecurrences);
+        }
+    }
+
+    /**
+     * A ChunkedGridStore that also tracks which Grids were ever written, and their bounding box. Written Grids are
+     * kept as one bit each, in blocks of one chunk found through a {@link ChunkIndex}.
+     */
+    private static final class TouchTrackingGridStore extends ChunkedGridStore {
+        private static final int WORDS_PER_CHUNK = GridStore.CHUNK_AREA / Long.SIZE;
+        private static final int INITIAL_CHUNKS = 16;
+
+        private final ChunkIndex touchedChunks = new ChunkIndex();
+        private long[] touchedBits = new long[INITIAL_CHUNKS * WORDS_PER_CHUNK];
+        private int touchedChunkCount;
+        private long touched;
+        private long minX;
+        private long minY;
+        private long maxX;
+        private long maxY;
+
+        @Override
+        public void setColor(long x, long y, int color) {
+            super.setColor(x, y, color);
+
+            long chunkX = x >> GridStore.CHUNK_BITS;
+            long chunkY = y >> GridStore.CHUNK_BITS;
+            int slot = touchedChunks.get(chunkX, chunkY);
+            if (slot < 0) {
+                slot = touchedChunkCount++;
+                if (touchedChunkCount * WORDS_PER_CHUNK > touchedBits.length)
+                    touchedBits = Arrays.copyOf(touchedBits, touchedBits.length * 2);
+                touchedChunks.put(chunkX, chunkY, slot);
+            }
+            int cell = (int) ((y & (GridStore.CHUNK_SIZE - 1)) << GridStore.CHUNK_BITS | (x & (GridStore.CHUNK_SIZE - 1)));
+            int word = slot * WORDS_PER_CHUNK + (cell >>> 6);
+            long bit = 1L << cell;
+            if ((touchedBits[word] & bit) != 0) return;
+
+            touchedBits[word] |= bit;
+            if (touched == 0) {
+                minX = maxX = x;
+                minY = maxY = y;
+            } else {
+                minX = Math.min(minX, x);
+                maxX = Math.max(maxX, x);
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+            }
+            touched++;
+        }
+
+        @Override
+        public void clear() {
+            super.clear();
+            touchedChunks.clear();
+            Arrays.fill(touchedBits, 0, touchedChunkCount * WORDS_PER_CHUNK, 0);
+            touchedChunkCount = 0;
+            touched = 0;
+        }
+    }
+
+    /**
+     * Runs a sweep from the command line.
+     * <p>
+     * Usage: {@code RulesetSweep <states> <colors> <steps> <output> [from] [to]}. The {@code recurrence} system
+     * property, set to {@code true}, detects the recurrences of every Ruleset. The {@code equivalents} system property,
+     * set to {@code true}, runs every valid Ruleset instead of one of every class of equivalent Rulesets.
+     *
+     * @param args The command line arguments.
+     * @throws IOException If the output file cannot be written.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: RulesetSweep <states> <colors> <steps> <output> [from] [to]");
+            System.exit(1);
+        }
+
+        RulesetSweep sweep = new RulesetSweep(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Long.parseLong(args[2]),
+                Boolean.getBoolean("recurrence"), !Boolean.getBoolean("equivalents"));
+        long from = args.length > 4 ? Long.parseLong(args[4]) : 0;
+        long to = args.length > 5 ? Long.parseLong(args[5]) : sweep.getNumOfIndices();
+
+        sweep.run(Path.of(args[3]), from, to, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,255 @@
+package turmite.simulator;
+
+import turmite.simulator.models.ChunkedGridStore;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.Ruleset;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A headless simulation of a Turmite. The engine owns the Turmite, the Grid it walks on and the step counter,
+ * and has no dependency on any UI. Viewers read its state, but are never called back while stepping.
+ * <p>
+ * More Turmites can be placed on the same Grid. Then one step steps every Turmite once, see {@link ParallelStepper}.
+ * <p>
+ * By default, a single Turmite's highways are detected and fast-forwarded, see {@link HighwayDetector}.
+ * A single Turmite's exact recurrences can be detected instead, see {@link RecurrenceDetector}.
+ * <p>
+ * Viewers on other threads read the state through {@link #takeSnapshot()}. Snapshots are published by whichever
+ * thread changes the simulation, while it holds the engine, so the stepping thread never waits for a viewer.
+ */
+public class SimulationEngine {
+    private final Turmite turmite;
+    private final List<Turmite> turmites = new CopyOnWriteArrayList<>();
+    private Turmite[] steppedTurmites;
+    private final GridStore gridStore;
+    private final HighwayDetector highwayDetector = new HighwayDetector();
+    private final ParallelStepper parallelStepper = new ParallelStepper();
+    private final RecurrenceDetector recurrenceDetector = new RecurrenceDetector();
+    private final SnapshotExchange snapshotExchange = new SnapshotExchange();
+
+    private volatile long stepCount;
+    private boolean fastForwardEnabled = true;
+    private boolean recurrenceDetectionEnabled;
+
+    public SimulationEngine(Ruleset ruleset) {
+        this(ruleset, new ChunkedGridStore());
+    }
+
+    public SimulationEngine(Ruleset ruleset, GridStore gridStore) {
+        this.turmite = new Turmite(ruleset);
+        this.gridStore = gridStore;
+        turmites.add(turmite);
+        steppedTurmites = new Turmite[]{turmite};
+    }
+
+    /**
+     * Places another Turmite on the Grid. It is stepped after every Turmite placed before it.
+     *
+     * @param ruleset The Ruleset of the Turmite.
+     * @param x The X coordinate to start from.
+     * @param y The Y coordinate to start from.
+     * @param heading The heading to start with, counted in clockwise quarter turns from {@code UP}.
+     * @return The placed Turmite.
+     */
+    public synchronized Turmite addTurmite(Ruleset ruleset, long x, long y, int heading) {
+        Turmite added = new Turmite(ruleset, x, y, heading);
+        turmites.add(added);
+        steppedTurmites = turmites.toArray(new Turmite[0]);
+        highwayDetector.reset();
+        recurrenceDetector.reset();
+        publishSnapshot();
+        return added;
+    }
+
+    /**
+     * Removes a Turmite placed with {@link #addTurmite(Ruleset, long, long, int)}. The first Turmite cannot be removed.
+     *
+     * @param removed The Turmite to remove.
+     * @return Whether the Turmite was removed.
+     */
+    public synchronized boolean removeTurmite(Turmite removed) {
+        if (removed == turmite) return false;
+        boolean wasRemoved = turmites.remove(removed);
+        steppedTurmites = turmites.toArray(new Turmite[0]);
+        recurrenceDetector.reset();
+        publishSnapshot();
+        return wasRemoved;
+    }
+
+    /**
+     * Steps the simulation once.
+     */
+    public void step() {
+        step(1);
+    }
+
+    /**
+     * Steps the simulation {@code n} times in a tight loop. Afterwards, a snapshot is published if a viewer asked for one.
+     *
+     * @param n The number of steps.
+     * @throws IllegalArgumentException If {@code n} is negative.
+     */
+    public synchronized void step(long n) {
+        if (n < 0) throw new IllegalArgumentException("The number of steps cannot be negative: " + n);
+
+        if (steppedTurmites.length > 1) {
+            parallelStepper.step(steppedTurmites, gridStore, n);
+            stepCount += n;
+        } else if (recurrenceDetectionEnabled) {
+            recurrenceDetector.step(turmite, gridStore, stepCount, n);
+            stepCount += n;
+        } else if (!fastForwardEnabled || gridStore.isWrapping()) {
+            turmite.step(gridStore, n);
+            stepCount += n;
+        } else {
+            stepFastForwarding(n);
+        }
+        snapshotExchange.publishIfRequested(gridStore, stepCount, turmites);
+    }
+
+    /**
+     * Steps the single Turmite {@code n} times, skipping over the highways it builds.
+     *
+     * @param n The number of steps.
+     */
+    private void stepFastForwarding(long n) {
+        long remaining = n;
+        while (remaining > 0) {
+            long batch = Math.min(remaining, highwayDetector.getStepsUntilCheck());
+            highwayDetector.step(turmite, gridStore, batch);
+            stepCount += batch;
+            remaining -= batch;
+
+            if (highwayDetector.getStepsUntilCheck() == 0) {
+                long skipped = highwayDetector.fastForward(turmite, gridStore, remaining);
+                stepCount += skipped;
+                remaining -= skipped;
+            }
+        }
+    }
+
+    /**
+     * Steps the simulation until the step counter reaches {@code targetStep}.
+     *
+     * @param targetStep The step to run to.
+     * @throws IllegalArgumentException If the simulation is already past {@code targetStep}.
+     */
+    public synchronized void stepTo(long targetStep) {
+        step(targetStep - stepCount);
+    }
+
+    /**
+     * Sets whether highways are detected and fast-forwarded. The result of stepping is the same either way.
+     *
+     * @param enabled Whether to fast-forward highways.
+     */
+    public synchronized void setFastForwardEnabled(boolean enabled) {
+        fastForwardEnabled = enabled;
+        highwayDetector.reset();
+    }
+
+    /**
+     * Sets whether a single Turmite's recurrences are detected, see {@link #getRecurrence()}. While they are,
+     * highways are not fast-forwarded, as every step has to be hashed. The result of stepping is the same either way.
+     *
+     * @param enabled Whether to detect recurrences.
+     */
+    public synchronized void setRecurrenceDetectionEnabled(boolean enabled) {
+        recurrenceDetectionEnabled = enabled;
+        recurrenceDetector.reset();
+    }
+
+    /**
+     * @return The first time the simulation revisited an earlier state since recurrence detection was enabled,
+     * or {@code null} if it did not, or the detection is disabled.
+     */
+    public RecurrenceDetector.Recurrence getRecurrence() {
+        return recurrenceDetector.getRecurrence();
+    }
+
+    /**
+     * Hashes the Grid and every Turmite, see {@link RecurrenceDetector#fingerprint(GridStore, List)}. While recurrences
+     * are detected, the hash kept up to date by the detector is used instead of hashing the whole Grid.
+     *
+     * @return The fingerprint of the current state.
+     */
+    public synchronized long getFingerprint() {
+        long stateHash = recurrenceDetectionEnabled && steppedTurmites.length == 1 ? recurrenceDetector.getStateHash(turmite) : 0;
+        return stateHash != 0 ? stateHash : RecurrenceDetector.fingerprint(gridStore, turmites);
+    }
+
+    /**
+     * Resets the simulation. All Grids are cleared, every Turmite is put back where it started,
+     * and the step counter is reset.
+     */
+    public synchronized void reset() {
+        gridStore.clear();
+        for (Turmite t : turmites) t.reset();
+        highwayDetector.reset();
+        recurrenceDetector.reset();
+        stepCount = 0;
+        publishSnapshot();
+    }
+
+    /**
+     * Sets the step counter after the Grid and the Turmites were restored, for example from a checkpoint.
+     *
+     * @param restoredStepCount The number of steps the restored simulation has taken.
+     */
+    public synchronized void restore(long restoredStepCount) {
+        highwayDetector.reset();
+        recurrenceDetector.reset();
+        stepCount = restoredStepCount;
+        publishSnapshot();
+    }
+
+    /**
+     * Publishes a snapshot of the current state, whether a viewer asked for one or not.
+     * The stepping thread calls this before it pauses, so viewers see the last step.
+     */
+    public synchronized void publishSnapshot() {
+        snapshotExchange.publish(gridStore, stepCount, turmites);
+    }
+
+    /**
+     * Takes the latest published snapshot, and asks for the next one. Never waits for the stepping thread,
+     * but must only be called by one viewer.
+     *
+     * @return The snapshot, or {@code null} if none was published since the last call.
+     */
+    public SimulationSnapshot takeSnapshot() {
+        return snapshotExchange.take();
+    }
+
+    /**
+     * @return The first Turmite of the simulation.
+     */
+    public Turmite getTurmite() {
+        return turmite;
+    }
+
+    /**
+     * @return Every Turmite of the simulation, in the order they are stepped.
+     */
+    public List<Turmite> getTurmites() {
+        return Collections.unmodifiableList(turmites);
+    }
+
+    /**
+     * @return The Grid the Turmite is walking on.
+     */
+    public GridStore getGridStore() {
+        return gridStore;
+    }
+
+    /**
+     * @return The number of steps taken since the last reset.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+}
@@ -0,0 +1,129 @@
+package turmite.simulator;
+
+import turmite.simulator.models.ChunkIndex;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.Turmite;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The state of a simulation at one step, as published by a {@link SnapshotExchange}. It holds copies of the chunks
+ * colored since the previous snapshot, so together with every snapshot before it, it describes the whole Grid.
+ * If the snapshot is cleared, the chunks before it are gone, and it holds every chunk of the Grid.
+ * <p>
+ * A snapshot is never modified once the reader has taken it, so it can be read without locking.
+ */
+public final class SimulationSnapshot {
+    private static final int INITIAL_CHUNKS = 16;
+
+    private final ChunkIndex index = new ChunkIndex();
+    private long[] chunkXs = new long[INITIAL_CHUNKS];
+    private long[] chunkYs = new long[INITIAL_CHUNKS];
+    private byte[][] chunks = new byte[INITIAL_CHUNKS][];
+    private int chunkCount;
+
+    private final boolean cleared;
+    private long stepCount;
+    private long[] turmiteXs = new long[0];
+    private long[] turmiteYs = new long[0];
+
+    SimulationSnapshot(boolean cleared) {
+        this.cleared = cleared;
+    }
+
+    /**
+     * @return Whether the Grid was cleared before this snapshot, so earlier snapshots must be dropped.
+     */
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    /**
+     * @return The number of steps the simulation had taken at this snapshot.
+     */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+    /**
+     * @return The number of Turmites at this snapshot.
+     */
+    public int getTurmiteCount() {
+        return turmiteXs.length;
+    }
+
+    /**
+     * @param turmite The index of the Turmite, in the order they are stepped.
+     * @return The X coordinate of the Turmite.
+     */
+    public long getTurmiteX(int turmite) {
+        return turmiteXs[turmite];
+    }
+
+    /**
+     * @param turmite The index of the Turmite, in the order they are stepped.
+     * @return The Y coordinate of the Turmite.
+     */
+    public long getTurmiteY(int turmite) {
+        return turmiteYs[turmite];
+    }
+
+    /**
+     * @return The number of chunks in this snapshot.
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Calls the visitor for every chunk in this snapshot.
+     *
+     * @param visitor The visitor to call.
+     */
+    public void forEachChunk(GridStore.ChunkVisitor visitor) {
+        for (int slot = 0; slot < chunkCount; slot++)
+            visitor.visit(chunkXs[slot], chunkYs[slot], chunks[slot]);
+    }
+
+    /**
+     * Copies a chunk into this snapshot, replacing an older copy of it.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @param cells The Colors of the chunk's Grids.
+     */
+    void putChunk(long chunkX, long chunkY, byte[] cells) {
+        int slot = index.get(chunkX, chunkY);
+        if (slot < 0) {
+            if (chunkCount == chunkXs.length) {
+                chunkXs = Arrays.copyOf(chunkXs, chunkCount * 2);
+                chunkYs = Arrays.copyOf(chunkYs, chunkCount * 2);
+                chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            }
+            slot = chunkCount++;
+            chunkXs[slot] = chunkX;
+            chunkYs[slot] = chunkY;
+            chunks[slot] = new byte[GridStore.CHUNK_AREA];
+            index.put(chunkX, chunkY, slot);
+        }
+        System.arraycopy(cells, 0, chunks[slot], 0, GridStore.CHUNK_AREA);
+    }
+
+    /**
+     * Records the step counter and the positions of the Turmites.
+     *
+     * @param currStepCount The number of steps taken.
+     * @param turmites The Turmites, in the order they are stepped.
+     */
+    void setState(long currStepCount, List<Turmite> turmites) {
+        stepCount = currStepCount;
+        Turmite[] currTurmites = turmites.toArray(new Turmite[0]);
+        turmiteXs = new long[currTurmites.length];
+        turmiteYs = new long[currTurmites.length];
+        for (int i = 0; i < currTurmites.length; i++) {
+            turmiteXs[i] = currTurmites[i].getX();
+            turmiteYs[i] = currTurmites[i].getY();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package turmite.simulator;
+
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.Turmite;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands consistent {@link SimulationSnapshot}s from the thread that steps a simulation to one reader,
+ * usually the thread that paints it, without either side ever waiting for the other.
+ * <p>
+ * The stepping thread publishes between steps, while it owns the Grid, by copying the chunks stamped since
+ * the last published version. The snapshot is handed over through one atomic slot. If the reader has not taken
+ * the previous snapshot yet, the stepping thread takes it back and adds the new chunks to it, so no change is ever lost.
+ * The reader takes the slot's snapshot, if any, and asks for the next one.
+ */
+public class SnapshotExchange {
+    private final AtomicReference<SimulationSnapshot> pending = new AtomicReference<>();
+    private volatile boolean requested;
+    private long publishedVersion;
+
+    /**
+     * Publishes a snapshot if the reader asked for one since the last publication.
+     * Must only be called by the thread that owns the Grid.
+     *
+     * @param gridStore The Grid of the simulation.
+     * @param stepCount The number of steps taken.
+     * @param turmites The Turmites, in the order they are stepped.
+     */
+    public void publishIfRequested(GridStore gridStore, long stepCount, List<Turmite> turmites) {
+        if (requested) publish(gridStore, stepCount, turmites);
+    }
+
+    /**
+     * Publishes a snapshot of the current state. Must only be called by the thread that owns the Grid.
+     *
+     * @param gridStore The Grid of the simulation.
+     * @param stepCount The number of steps taken.
+     * @param turmites The Turmites, in the order they are stepped.
+     */
+    public void publish(GridStore gridStore, long stepCount, List<Turmite> turmites) {
+        requested = false;
+        SimulationSnapshot snapshot = pending.getAndSet(null);
+
+        long sinceVersion = publishedVersion;
+        boolean cleared = gridStore.getClearedVersion() >= sinceVersion;
+        publishedVersion = gridStore.advanceVersion();
+
+        if (cleared) {
+            snapshot = new SimulationSnapshot(true);
+            gridStore.forEachChunk(snapshot::putChunk);
+        } else {
+            if (snapshot == null) snapshot = new SimulationSnapshot(false);
+            gridStore.forEachChunkSince(sinceVersion, snapshot::putChunk);
+        }
+        snapshot.setState(stepCount, turmites);
+        pending.set(snapshot);
+    }
+
+    /**
+     * Takes the latest published snapshot, and asks the stepping thread for the next one.
+     *
+     * @return The snapshot, or {@code null} if none was published since the last call.
+     */
+    public SimulationSnapshot take() {
+        requested = true;
+        return pending.getAndSet(null);
+    }
+}
@@ -2,15 +2,29 @@ package turmite.simulator;
 
 import turmite.simulator.ui.*;
 import turmite.simulator.utils.FileHandler;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.MappedGridStore;
+import turmite.simulator.models.PackedGridStore;
+import turmite.simulator.models.Rule;
+import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.Checkpoint;
+import turmite.simulator.utils.GridImageExporter;
+import turmite.simulator.utils.Ruleset;
+import turmite.simulator.utils.RulesetLibrary;
+import turmite.simulator.utils.SimulationMetrics;
 import turmite.simulator.utils.Simulator;
+import turmite.simulator.utils.TimeLapseExporter;
 
 import javax.imageio.ImageIO;
+import javax.management.JMException;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -25,6 +39,8 @@ public class TurmiteJFrame extends JFrame {
     private static final String EXPORT_STR = "Export";
 
     private static final String PICTURES_DIR = "pictures";
+    private static final String CHECKPOINTS_DIR = "checkpoints";
+    private static final String CHECKPOINT_EXT = ".checkpoint";
     public static final String RULESET_DIR = "rulesets";
     public static final String RULESET_EXT = ".json";
 
@@ -32,19 +48,31 @@ public class TurmiteJFrame extends JFrame {
     private static final JPanel rightPanel = new JPanel(new GridBagLayout());
     private static final JPanel mainPanel = new JPanel(new GridBagLayout());
 
-    private static final RuleInputPanel ruleInputPanel = new RuleInputPanel(RULESET_EXT);
-    private static final SquareGridPanel gridPanel = new SquareGridPanel(ruleInputPanel);
+    private static final RulesetLibrary rulesetLibrary = new RulesetLibrary(Path.of(RULESET_DIR), RULESET_EXT);
+    static {
+        rulesetLibrary.start();
+    }
+
+    private static final RuleInputPanel ruleInputPanel = new RuleInputPanel(rulesetLibrary);
+    private static final SimulationEngine engine = new SimulationEngine(ruleInputPanel.getRuleset(),
+            createGridStore(ruleInputPanel.getRuleset().getNumOfColors()));
+    private static final SimulationMetrics metrics = new SimulationMetrics(engine);
+    private static final SquareGridPanel gridPanel = new SquareGridPanel(engine, metrics);
     private static final JButton importButton = new JButton(IMPORT_STR);
     private static final JButton exportButton = new JButton(EXPORT_STR);
 
     private static final JButton toggleSimButton = new JButton(START_STR);
     private static final JButton stepSimButton = new JButton(STEP_STR);
     private static final JButton resetSimButton = new JButton(RESET_STR);
-    private static final IntervalSlider intervalSlider = new IntervalSlider(3, 1000, 100);
+    private static final SpeedSlider speedSlider = new SpeedSlider(10);
 
     private static final JButton snapPictureButton = new JButton("Snap a pic!");
+    private static final JButton exportWorldButton = new JButton("Export the whole Grid");
+    private static final JButton timeLapseButton = new JButton("Record a time-lapse");
+    private static final JButton saveCheckpointButton = new JButton("Save a checkpoint");
+    private static final JButton resumeCheckpointButton = new JButton("Resume a checkpoint");
 
-    private static final Simulator simulator = new Simulator(gridPanel, intervalSlider.getValue());
+    private static final Simulator simulator = new Simulator(engine, gridPanel, speedSlider.getStepsPerSecond(), metrics);
 
     public TurmiteJFrame() {
         super("Turmite Simulator");
@@ -123,14 +151,14 @@ public class TurmiteJFrame extends JFrame {
         constraints.gridy = 0;
         buttonPanel.add(resetSimButton, constraints);
 
-        intervalSlider.setBackground(Color.GRAY);
+        speedSlider.setBackground(Color.GRAY);
         constraints.weightx = 1;
         constraints.weighty = 0;
         constraints.gridx = 0;
         constraints.gridy = 1;
         constraints.gridwidth = 3;
         insets.set(20, 20, 0, 20);
-        buttonPanel.add(intervalSlider, constraints);
+        buttonPanel.add(speedSlider, constraints);
 
         constraints.gridwidth = 1;
         insets.set(0, 0, 0, 0);
@@ -148,6 +176,23 @@ public class TurmiteJFrame extends JFrame {
         insets.set(50, 50, 0, 50);
         rightPanel.add(snapPictureButton, constraints);
 
+        exportWorldButton.setFocusPainted(false);
+        constraints.gridy = 3;
+        insets.set(10, 50, 0, 50);
+        rightPanel.add(exportWorldButton, constraints);
+
+        timeLapseButton.setFocusPainted(false);
+        constraints.gridy = 4;
+        rightPanel.add(timeLapseButton, constraints);
+
+        saveCheckpointButton.setFocusPainted(false);
+        constraints.gridy = 5;
+        rightPanel.add(saveCheckpointButton, constraints);
+
+        resumeCheckpointButton.setFocusPainted(false);
+        constraints.gridy = 6;
+        rightPanel.add(resumeCheckpointButton, constraints);
+
         insets.set(0, 50, 0, 50);
 
         buttonPanel = new JPanel(new GridBagLayout());
@@ -183,8 +228,12 @@ public class TurmiteJFrame extends JFrame {
         toggleSimButton.addActionListener(e -> toggleSimulation());
         stepSimButton.addActionListener(e -> stepSimulation());
         resetSimButton.addActionListener(e -> resetSimulation());
-        intervalSlider.addChangeListener(e -> changeSimulationSpeed());
+        speedSlider.addChangeListener(e -> changeSimulationSpeed());
         snapPictureButton.addActionListener(e -> snapPicture());
+        exportWorldButton.addActionListener(e -> exportWorld());
+        timeLapseButton.addActionListener(e -> recordTimeLapse());
+        saveCheckpointButton.addActionListener(e -> saveCheckpoint());
+        resumeCheckpointButton.addActionListener(e -> resumeCheckpoint());
     }
 
     /**
@@ -200,7 +249,8 @@ public class TurmiteJFrame extends JFrame {
 
         if (fileName == null) return;
 
-        if (ruleInputPanel.readRulesetFromFile(fileName.replace(RULESET_DIR + "\\", "")))
+        String rulesetName = Path.of(fileName).getFileName().toString().replace(RULESET_EXT, "");
+        if (ruleInputPanel.loadRuleset(rulesetName))
             Dialogs.showInfoDialog(this, "Ruleset imported successfully!");
     }
 
@@ -227,12 +277,14 @@ public class TurmiteJFrame extends JFrame {
             exportButton.setEnabled(true);
             stepSimButton.setEnabled(true);
             resetSimButton.setEnabled(true);
+            resumeCheckpointButton.setEnabled(true);
         }
         else {
             toggleSimButton.setText(PAUSE_STR);
             exportButton.setEnabled(false);
             stepSimButton.setEnabled(false);
             resetSimButton.setEnabled(false);
+            resumeCheckpointButton.setEnabled(false);
         }
 
         importButton.setEnabled(false);
@@ -261,7 +313,7 @@ public class TurmiteJFrame extends JFrame {
      * Change the speed of the simulation.
      */
     private void changeSimulationSpeed() {
-        simulator.setInterval(intervalSlider.getValue());
+        simulator.setStepsPerSecond(speedSlider.getStepsPerSecond());
     }
 
     /**
@@ -284,10 +336,211 @@ public class TurmiteJFrame extends JFrame {
         }
     }
 
+    /**
+     * Export every colored Grid into a PNG, at one pixel per Grid. The export runs on a background thread.
+     * The simulation only waits while one band of chunks is copied at a time, never while it is encoded.
+     */
+    private void exportWorld() {
+        exportWorldButton.setEnabled(false);
+        Path file = Path.of(PICTURES_DIR, String.format("%s_%s.png", "world",
+                String.valueOf(UUID.randomUUID().getLeastSignificantBits()).replace("-", "")));
+
+        Thread exporter = new Thread(() -> {
+            String error = null;
+            try {
+                Files.createDirectories(file.getParent());
+                // Every Turmite can color the Grid, so the palette covers the most Colors of any of them.
+                int numOfColors = 1;
+                for (Turmite turmite : engine.getTurmites())
+                    numOfColors = Math.max(numOfColors, turmite.getRuleset().getNumOfColors());
+                GridImageExporter.writePng(engine.getGridStore(), engine, numOfColors, 1, file);
+            } catch (IOException | RuntimeException e) {
+                error = e.getMessage();
+            }
+
+            String finalError = error;
+            SwingUtilities.invokeLater(() -> {
+                exportWorldButton.setEnabled(true);
+                if (finalError != null) Dialogs.showErrorDialog(this, finalError);
+                else Dialogs.showInfoDialog(this, "The Grid was exported into " + file);
+            });
+        }, "world-export");
+        exporter.setDaemon(true);
+        exporter.start();
+    }
+
+    /**
+     * Record a time-lapse of the current Ruleset and Turmites from the start, as an animated PNG.
+     * The time-lapse is stepped on a background thread, separately from the simulation on screen.
+     */
+    private void recordTimeLapse() {
+        Long stepsPerFrame = Dialogs.showNumberInputDialog(this, "Steps per frame:", 1000);
+        if (stepsPerFrame == null) return;
+        Long frames = Dialogs.showNumberInputDialog(this, "Number of frames:", 1000);
+        if (frames == null) return;
+
+        // Copy the Rules and the Turmites' starting positions, so later edits do not change the recording.
+        List<Rule> rules = new ArrayList<>();
+        for (Rule rule : engine.getTurmite().getRuleset().getRules())
+            rules.add(new Rule(rule.getCurrState(), rule.getCurrColor(), rule.getTurnDir(), rule.getNewColor(), rule.getNewState()));
+        Ruleset ruleset = new Ruleset(rules);
+        List<long[]> starts = new ArrayList<>();
+        for (Turmite turmite : engine.getTurmites().subList(1, engine.getTurmites().size()))
+            starts.add(new long[]{turmite.getStartX(), turmite.getStartY(), turmite.getStartHeading()});
+
+        TimeLapseExporter exporter = new TimeLapseExporter(() -> {
+            SimulationEngine copy = new SimulationEngine(ruleset);
+            for (long[] start : starts) copy.addTurmite(ruleset, start[0], start[1], (int) start[2]);
+            return copy;
+        }, ruleset.getNumOfColors(), stepsPerFrame, (int) Math.min(frames, Integer.MAX_VALUE), 40, 1);
+
+        timeLapseButton.setEnabled(false);
+        Path file = Path.of(PICTURES_DIR, String.format("%s_%s.png", "timelapse",
+                String.valueOf(UUID.randomUUID().getLeastSignificantBits()).replace("-", "")));
+
+        Thread recorder = new Thread(() -> {
+            String error = null;
+            try {
+                Files.createDirectories(file.getParent());
+                exporter.export(file);
+            } catch (IOException | RuntimeException e) {
+                error = e.getMessage();
+            }
+
+            String finalError = error;
+            SwingUtilities.invokeLater(() -> {
+                timeLapseButton.setEnabled(true);
+                if (finalError != null) Dialogs.showErrorDialog(this, finalError);
+                else Dialogs.showInfoDialog(this, "The time-lapse was recorded into " + file);
+            });
+        }, "time-lapse-export");
+        recorder.setDaemon(true);
+        recorder.setPriority(Thread.MIN_PRIORITY);
+        recorder.start();
+    }
+
+    /**
+     * Save the simulation into a checkpoint file. The first save runs on a background thread, later saves are made
+     * by the simulator while it runs, and whenever it pauses.
+     */
+    private void saveCheckpoint() {
+        Path file = chooseCheckpointFile("Save a checkpoint", FileDialog.SAVE);
+        if (file == null) return;
+
+        Checkpoint checkpoint = new Checkpoint(file);
+        saveCheckpointButton.setEnabled(false);
+        Thread saver = new Thread(() -> {
+            String error = null;
+            try {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                checkpoint.save(engine);
+                simulator.setCheckpoint(checkpoint);
+            } catch (IOException | RuntimeException e) {
+                error = e.getMessage();
+            }
+
+            String finalError = error;
+            SwingUtilities.invokeLater(() -> {
+                saveCheckpointButton.setEnabled(true);
+                if (finalError != null) Dialogs.showErrorDialog(this, finalError);
+                else Dialogs.showInfoDialog(this, "The simulation was saved into " + file + ", and will be saved again while it runs.");
+            });
+        }, "checkpoint-save");
+        saver.setDaemon(true);
+        saver.start();
+    }
+
+    /**
+     * Resume the simulation from a checkpoint file, while it is paused. The simulation is saved into the same file
+     * from then on.
+     */
+    private void resumeCheckpoint() {
+        Path file = chooseCheckpointFile("Resume a checkpoint", FileDialog.LOAD);
+        if (file != null) resumeCheckpoint(file);
+    }
+
+    /**
+     * Resume the simulation from the given checkpoint file, while it is paused.
+     *
+     * @param file The checkpoint file.
+     * @return Whether the checkpoint was resumed, {@code false} if the error was shown.
+     */
+    private boolean resumeCheckpoint(Path file) {
+        Checkpoint checkpoint = new Checkpoint(file);
+        // Unset first, so the simulation is not saved into the previous checkpoint once it is loaded.
+        simulator.setCheckpoint(null);
+        try {
+            checkpoint.loadInto(engine);
+        } catch (IOException e) {
+            Dialogs.showErrorDialog(this, e.getMessage());
+            return false;
+        }
+
+        simulator.setCheckpoint(checkpoint);
+        ruleInputPanel.showRestoredRuleset();
+        ruleInputPanel.setEnabled(false);
+        importButton.setEnabled(false);
+        gridPanel.reset();
+        Dialogs.showInfoDialog(this, String.format("Resumed from step %,d.", engine.getStepCount()));
+        return true;
+    }
+
+    /**
+     * Opens a {@code FileDialog} in the checkpoints directory.
+     *
+     * @param title The title of the File Dialog.
+     * @param mode Whether to select a file to load or to save, {@code FileDialog.LOAD} or {@code FileDialog.SAVE}.
+     * @return The selected file, or {@code null} if none was selected.
+     */
+    private Path chooseCheckpointFile(String title, int mode) {
+        FileDialog fd = new FileDialog(this, title, mode);
+        fd.setDirectory(CHECKPOINTS_DIR);
+        fd.setFile("*" + CHECKPOINT_EXT);
+        fd.setVisible(true);
+
+        if (fd.getFile() == null) return null;
+        String fileName = fd.getFile();
+        if (mode == FileDialog.SAVE && !fileName.endsWith(CHECKPOINT_EXT)) fileName += CHECKPOINT_EXT;
+        return Path.of(fd.getDirectory(), fileName);
+    }
+
+    /**
+     * Creates the Grid of the simulation. The {@code mapped} system property names a file to map the Grid into,
+     * see {@link MappedGridStore}, otherwise the Grid is packed on the heap. Chunks left in the file by an earlier run
+     * are kept if the {@code resume} system property names a checkpoint to resume at startup.
+     *
+     * @param numOfColors The number of Colors of the Ruleset.
+     * @return The Grid of the simulation.
+     */
+    private static GridStore createGridStore(int numOfColors) {
+        String mapped = System.getProperty("mapped");
+        if (mapped == null) return new PackedGridStore(numOfColors);
+
+        try {
+            MappedGridStore gridStore = MappedGridStore.open(Path.of(mapped));
+            // Otherwise the Turmite starts over, so chunks left in the file by an earlier run are cleared.
+            if (System.getProperty("resume") == null) gridStore.clear();
+            return gridStore;
+        } catch (IOException e) {
+            System.err.println("Could not map the Grid into " + mapped + ", keeping it on the heap: " + e.getMessage());
+            return new PackedGridStore(numOfColors);
+        }
+    }
+
     public static void main(String[] args) {
         TurmiteJFrame frame = new TurmiteJFrame();
         frame.setVisible(true);
         gridPanel.centerMap();
         simulator.start();
+
+        // A checkpoint named at startup is resumed onto the Grid, which a mapped file may still hold as it was saved.
+        String resume = System.getProperty("resume");
+        if (resume != null && !frame.resumeCheckpoint(Path.of(resume))) simulator.resetSimulation();
+
+        try {
+            metrics.start();
+        } catch (JMException e) {
+            Dialogs.showErrorDialog(frame, "The metrics could not be registered: " + e.getMessage());
+        }
     }
 }
@@ -0,0 +1,123 @@
+package turmite.simulator.models;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash index that maps the {@code long} coordinates of chunks to {@code int} slots.
+ * Nothing is boxed, and lookups only probe primitive arrays.
+ * <p>
+ * Chunk coordinates are the 64-bit coordinates of a Grid shifted by {@code CHUNK_BITS}, so they are too wide
+ * to be packed into one {@code long}. Both coordinates are kept, side by side, and compared on every probe.
+ */
+public final class ChunkIndex {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int EMPTY = -1;
+
+    private long[] keysX = new long[INITIAL_CAPACITY];
+    private long[] keysY = new long[INITIAL_CAPACITY];
+    private int[] slots = new int[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int size;
+
+    public ChunkIndex() {
+        Arrays.fill(slots, EMPTY);
+    }
+
+    /**
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @return The slot stored for the chunk, or {@code -1} if the chunk is not in the index.
+     */
+    public int get(long chunkX, long chunkY) {
+        int i = hash(chunkX, chunkY) & mask;
+        while (true) {
+            int slot = slots[i];
+            if (slot == EMPTY || (keysX[i] == chunkX && keysY[i] == chunkY)) return slot;
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Stores the slot for the chunk, replacing any slot already stored for it.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @param slot The slot to store, must not be negative.
+     */
+    public void put(long chunkX, long chunkY, int slot) {
+        if ((size + 1) * 4 > slots.length * 3) grow();
+
+        int i = hash(chunkX, chunkY) & mask;
+        while (slots[i] != EMPTY && (keysX[i] != chunkX || keysY[i] != chunkY)) i = (i + 1) & mask;
+
+        if (slots[i] == EMPTY) size++;
+        keysX[i] = chunkX;
+        keysY[i] = chunkY;
+        slots[i] = slot;
+    }
+
+    /**
+     * @return The number of chunks in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of bytes the index's tables take up.
+     */
+    public long getTableBytes() {
+        return (long) slots.length * (Long.BYTES + Long.BYTES + Integer.BYTES);
+    }
+
+    /**
+     * Removes every chunk from the index.
+     */
+    public void clear() {
+        keysX = new long[INITIAL_CAPACITY];
+        keysY = new long[INITIAL_CAPACITY];
+        slots = new int[INITIAL_CAPACITY];
+        Arrays.fill(slots, EMPTY);
+        mask = INITIAL_CAPACITY - 1;
+        size = 0;
+    }
+
+    /**
+     * Doubles the capacity of the index and reinserts every chunk.
+     */
+    private void grow() {
+        long[] oldKeysX = keysX;
+        long[] oldKeysY = keysY;
+        int[] oldSlots = slots;
+
+        keysX = new long[oldKeysX.length * 2];
+        keysY = new long[oldKeysY.length * 2];
+        slots = new int[oldSlots.length * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] == EMPTY) continue;
+            int i = hash(oldKeysX[j], oldKeysY[j]) & mask;
+            while (slots[i] != EMPTY) i = (i + 1) & mask;
+            keysX[i] = oldKeysX[j];
+            keysY[i] = oldKeysY[j];
+            slots[i] = oldSlots[j];
+        }
+    }
+
+    /**
+     * Spreads the bits of the coordinates, so neighbouring chunks do not cluster in the table.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @return The hash of the chunk.
+     */
+    private static int hash(long chunkX, long chunkY) {
+        long h = chunkX * 0x9e3779b97f4a7c15L + chunkY;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
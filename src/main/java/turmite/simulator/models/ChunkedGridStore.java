@@ -0,0 +1,188 @@
+package turmite.simulator.models;
+
+import java.util.Arrays;
+
+/**
+ * A GridStore that keeps the Grid in fixed-size square chunks of {@code byte} cells.
+ * Chunks are allocated the first time a Grid inside them is colored, and are found through a {@link ChunkIndex}.
+ */
+public class ChunkedGridStore implements GridStore {
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final int INITIAL_CHUNKS = 16;
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private final ChunkIndex index = new ChunkIndex();
+    private byte[][] chunks = new byte[INITIAL_CHUNKS][];
+    private long[] chunkXs = new long[INITIAL_CHUNKS];
+    private long[] chunkYs = new long[INITIAL_CHUNKS];
+    private long[] stamps = new long[INITIAL_CHUNKS];
+    private int chunkCount;
+    private long version = 1;
+    private long clearedVersion;
+
+    @Override
+    public int getColor(long x, long y) {
+        int slot = index.get(x >> CHUNK_BITS, y >> CHUNK_BITS);
+        if (slot < 0) return 0;
+        return chunks[slot][cellIndex(x, y)] & 0xFF;
+    }
+
+    @Override
+    public void setColor(long x, long y, int color) {
+        long chunkX = x >> CHUNK_BITS;
+        long chunkY = y >> CHUNK_BITS;
+        int slot = index.get(chunkX, chunkY);
+        if (slot < 0) {
+            if (color == 0) return;
+            slot = allocateChunk(chunkX, chunkY);
+        }
+        chunks[slot][cellIndex(x, y)] = (byte) color;
+        stamps[slot] = version;
+    }
+
+    @Override
+    public void forEachCell(CellVisitor visitor) {
+        byte[][] currChunks = chunks;
+        long[] currXs = chunkXs;
+        long[] currYs = chunkYs;
+        int count = Math.min(chunkCount, Math.min(currChunks.length, Math.min(currXs.length, currYs.length)));
+
+        for (int slot = 0; slot < count; slot++) {
+            byte[] chunk = currChunks[slot];
+            if (chunk == null) continue;
+            long baseX = currXs[slot] << CHUNK_BITS;
+            long baseY = currYs[slot] << CHUNK_BITS;
+
+            for (int i = 0; i < CHUNK_AREA; i++) {
+                int color = chunk[i] & 0xFF;
+                if (color != 0) visitor.visit(baseX + (i & CHUNK_MASK), baseY + (i >> CHUNK_BITS), color);
+            }
+        }
+    }
+
+    @Override
+    public void forEachChunk(ChunkVisitor visitor) {
+        byte[][] currChunks = chunks;
+        long[] currXs = chunkXs;
+        long[] currYs = chunkYs;
+        int count = Math.min(chunkCount, Math.min(currChunks.length, Math.min(currXs.length, currYs.length)));
+
+        for (int slot = 0; slot < count; slot++) {
+            if (currChunks[slot] == null) continue;
+            visitor.visit(currXs[slot], currYs[slot], currChunks[slot]);
+        }
+    }
+
+    @Override
+    public void forEachChunkSince(long sinceVersion, ChunkVisitor visitor) {
+        for (int slot = 0; slot < chunkCount; slot++) {
+            if (stamps[slot] < sinceVersion) continue;
+            visitor.visit(chunkXs[slot], chunkYs[slot], chunks[slot]);
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public long advanceVersion() {
+        return ++version;
+    }
+
+    @Override
+    public long getClearedVersion() {
+        return clearedVersion;
+    }
+
+    @Override
+    public boolean readChunk(long chunkX, long chunkY, byte[] cells) {
+        int slot = index.get(chunkX, chunkY);
+        if (slot < 0) return false;
+        System.arraycopy(chunks[slot], 0, cells, 0, CHUNK_AREA);
+        return true;
+    }
+
+    @Override
+    public void writeChunk(long chunkX, long chunkY, byte[] cells) {
+        int slot = index.get(chunkX, chunkY);
+        if (slot < 0) slot = allocateChunk(chunkX, chunkY);
+
+        System.arraycopy(cells, 0, chunks[slot], 0, CHUNK_AREA);
+        stamps[slot] = version;
+    }
+
+    @Override
+    public void clear() {
+        index.clear();
+        chunks = new byte[INITIAL_CHUNKS][];
+        chunkXs = new long[INITIAL_CHUNKS];
+        chunkYs = new long[INITIAL_CHUNKS];
+        stamps = new long[INITIAL_CHUNKS];
+        chunkCount = 0;
+        clearedVersion = version;
+    }
+
+    /**
+     * Allocates every chunk overlapping the area, so writes inside it never allocate.
+     */
+    @Override
+    public boolean reserve(long minX, long minY, long maxX, long maxY) {
+        for (long chunkY = minY >> CHUNK_BITS; chunkY <= maxY >> CHUNK_BITS; chunkY++) {
+            for (long chunkX = minX >> CHUNK_BITS; chunkX <= maxX >> CHUNK_BITS; chunkX++) {
+                if (index.get(chunkX, chunkY) < 0) allocateChunk(chunkX, chunkY);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Counts the cells and headers of the chunks, the chunk tables and the index.
+     */
+    @Override
+    public long getFootprintBytes() {
+        long chunkBytes = (long) chunkCount * (CHUNK_AREA + ARRAY_HEADER_BYTES);
+        long tableBytes = (long) chunks.length * (Long.BYTES + Long.BYTES + Long.BYTES + Long.BYTES);
+        return chunkBytes + tableBytes + index.getTableBytes();
+    }
+
+    /**
+     * Allocates an empty chunk at the given chunk coordinates.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @return The slot of the new chunk.
+     */
+    private int allocateChunk(long chunkX, long chunkY) {
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            chunkXs = Arrays.copyOf(chunkXs, chunkCount * 2);
+            chunkYs = Arrays.copyOf(chunkYs, chunkCount * 2);
+            stamps = Arrays.copyOf(stamps, chunkCount * 2);
+        }
+
+        int slot = chunkCount;
+        chunks[slot] = new byte[CHUNK_AREA];
+        chunkXs[slot] = chunkX;
+        chunkYs[slot] = chunkY;
+        index.put(chunkX, chunkY, slot);
+        chunkCount++;
+        return slot;
+    }
+
+    /**
+     * @param x The X coordinate of the Grid.
+     * @param y The Y coordinate of the Grid.
+     * @return The index of the Grid inside its chunk.
+     */
+    private static int cellIndex(long x, long y) {
+        return (((int) y & CHUNK_MASK) << CHUNK_BITS) | ((int) x & CHUNK_MASK);
+    }
+}
@@ -13,6 +13,64 @@ public enum Direction {
     NO_TURN,
     U_TURN;
 
+    private static final int[] HEADING_DX = {0, 1, 0, -1};
+    private static final int[] HEADING_DY = {-1, 0, 1, 0};
+
+    /**
+     * @return The number of clockwise quarter turns this Turn Direction makes.
+     */
+    public int getTurnDelta() {
+        return switch (this) {
+            case NO_TURN -> 0;
+            case RIGHT -> 1;
+            case U_TURN -> 2;
+            case LEFT -> 3;
+            default -> throw new IllegalArgumentException("Turn Direction not recognized: " + this);
+        };
+    }
+
+    /**
+     * @param turnDelta The number of clockwise quarter turns.
+     * @return The Turn Direction that makes the given number of turns.
+     */
+    public static Direction fromTurnDelta(int turnDelta) {
+        return switch (turnDelta & 3) {
+            case 0 -> NO_TURN;
+            case 1 -> RIGHT;
+            case 2 -> U_TURN;
+            default -> LEFT;
+        };
+    }
+
+    /**
+     * @param heading The heading, counted in clockwise quarter turns from {@code UP}.
+     * @return The absolute Direction of the heading.
+     */
+    public static Direction fromHeading(int heading) {
+        return switch (heading & 3) {
+            case 0 -> UP;
+            case 1 -> RIGHT;
+            case 2 -> DOWN;
+            default -> LEFT;
+        };
+    }
+
+    /**
+     * @param heading The heading, ranging from 0-3.
+     * @return The change of the X coordinate when moving one Grid towards the heading.
+     */
+    public static int getHeadingDx(int heading) {
+        return HEADING_DX[heading];
+    }
+
+    /**
+     * @param heading The heading, ranging from 0-3.
+     * @return The change of the Y coordinate when moving one Grid towards the heading.
+     */
+    public static int getHeadingDy(int heading) {
+        return HEADING_DY[heading];
+    }
+
     /**
      * @return The Chars of the directions one can turn on a square grid.
      */
@@ -0,0 +1,150 @@
+package turmite.simulator.models;
+
+/**
+ * An interface for the storage of an unbounded square Grid's Colors. Turmites read and write
+ * the Grid through this interface. Grids that were never written have a Color of {@code 0}.
+ * <p>
+ * Coordinates are 64-bit Grid units, not pixels, so a Turmite can travel for trillions of steps without overflowing
+ * them. Stores are organized in square chunks of {@code CHUNK_SIZE} Grids, the chunk of a Grid is at
+ * {@code (x >> CHUNK_BITS, y >> CHUNK_BITS)}. Only the viewer turns coordinates into pixels.
+ * <p>
+ * Every chunk is stamped with the version in which it was last colored, so any number of readers can follow
+ * which chunks changed. Versions start from {@code 1}.
+ */
+public interface GridStore {
+    int CHUNK_BITS = 6;
+    int CHUNK_SIZE = 1 << CHUNK_BITS;
+    int CHUNK_AREA = CHUNK_SIZE * CHUNK_SIZE;
+
+    /**
+     * @param x The X coordinate of the Grid.
+     * @param y The Y coordinate of the Grid.
+     * @return The Color of the Grid at the given coordinates.
+     */
+    int getColor(long x, long y);
+
+    /**
+     * Colors the Grid at the given coordinates.
+     *
+     * @param x The X coordinate of the Grid.
+     * @param y The Y coordinate of the Grid.
+     * @param color The Color to use, ranging from 0-255.
+     */
+    void setColor(long x, long y, int color);
+
+    /**
+     * Calls the visitor for every Grid that has a Color other than {@code 0}.
+     *
+     * @param visitor The visitor to call.
+     */
+    void forEachCell(CellVisitor visitor);
+
+    /**
+     * Calls the visitor for every chunk in the store. It is safe to call while another thread is stepping,
+     * but then the cells may be partly updated.
+     *
+     * @param visitor The visitor to call.
+     */
+    void forEachChunk(ChunkVisitor visitor);
+
+    /**
+     * Calls the visitor for every chunk colored in the given version or later.
+     *
+     * @param version The first version to include.
+     * @param visitor The visitor to call.
+     */
+    void forEachChunkSince(long version, ChunkVisitor visitor);
+
+    /**
+     * @return The current version. Chunks colored from now on are stamped with it, until the version is advanced.
+     */
+    long getVersion();
+
+    /**
+     * Starts a new version. Readers that follow the changes of the Grid advance the version, then visit the chunks
+     * since the version they advanced to the last time.
+     *
+     * @return The new version.
+     */
+    long advanceVersion();
+
+    /**
+     * @return The version in which the store was last cleared, or {@code 0} if it never was.
+     * Chunks colored before that version are gone.
+     */
+    long getClearedVersion();
+
+    /**
+     * Copies the Colors of a chunk's Grids.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @param cells The buffer to copy into, {@code CHUNK_AREA} long, indexed by {@code y * CHUNK_SIZE + x}.
+     * @return Whether the chunk is in the store. If it is not, the buffer is left unchanged.
+     */
+    boolean readChunk(long chunkX, long chunkY, byte[] cells);
+
+    /**
+     * Overwrites every Grid of a chunk.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @param cells The Colors of the chunk's Grids, {@code CHUNK_AREA} long, indexed by {@code y * CHUNK_SIZE + x}.
+     */
+    void writeChunk(long chunkX, long chunkY, byte[] cells);
+
+    /**
+     * Resets every Grid to Color {@code 0}.
+     */
+    void clear();
+
+    /**
+     * @return The number of chunks in the store.
+     */
+    int getChunkCount();
+
+    /**
+     * @return The estimated number of bytes the store takes up, on or off the heap.
+     */
+    long getFootprintBytes();
+
+    /**
+     * Prepares the given area for concurrent writes. If the reservation succeeds, coloring Grids inside the area
+     * does not change the structure of the store until the next reservation, so distinct Grids inside reserved areas
+     * can be read and written from different threads at the same time.
+     *
+     * @param minX The lowest X coordinate of the area.
+     * @param minY The lowest Y coordinate of the area.
+     * @param maxX The highest X coordinate of the area.
+     * @param maxY The highest Y coordinate of the area.
+     * @return Whether the store supports concurrent writes inside the area.
+     */
+    default boolean reserve(long minX, long minY, long maxX, long maxY) {
+        return false;
+    }
+
+    /**
+     * @return Whether the Grid is finite and wraps around at its edges, so patterns that move in a straight line
+     * come back onto their own trail.
+     */
+    default boolean isWrapping() {
+        return false;
+    }
+
+    /**
+     * A visitor of colored Grids.
+     */
+    @FunctionalInterface
+    interface CellVisitor {
+        void visit(long x, long y, int color);
+    }
+
+    /**
+     * A visitor of chunks. The cells are indexed by {@code y * CHUNK_SIZE + x}, and must not be modified or kept
+     * after the visit returns.
+     */
+    @FunctionalInterface
+    interface ChunkVisitor {
+        void visit(long chunkX, long chunkY, byte[] cells);
+    }
+}
@@ -0,0 +1,379 @@
+package turmite.simulator.models;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A GridStore whose chunks live off-heap, in a memory-mapped file. The heap only holds the chunk index,
+ * so a run can color far more Grids than the heap would allow, and the OS page cache decides which chunks stay in memory.
+ * <p>
+ * The file starts with a header, followed by pages of one chunk each: the chunk's X and Y coordinates, then its cells.
+ * Opening an existing file continues from the chunks already in it.
+ * <p>
+ * The header can also hold a mark, set by a {@link turmite.simulator.utils.Checkpoint} once the file holds exactly
+ * the chunks of its last save. The mark is removed, and written back, before the store is modified again,
+ * so a file that still holds its mark after a crash or a restart can be resumed without loading the chunks again.
+ */
+public class MappedGridStore implements GridStore, Closeable {
+    private static final int MAGIC = 0x54524D47;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int CHUNK_COUNT_OFFSET = 16;
+    private static final int MARK_OFFSET = 24;
+    private static final int CELLS_OFFSET = Long.BYTES + Long.BYTES;
+    private static final int PAGE_SIZE = CELLS_OFFSET + CHUNK_AREA;
+    private static final int SEGMENT_BITS = 16;
+    private static final int SEGMENT_PAGES = 1 << SEGMENT_BITS;
+    private static final int SEGMENT_MASK = SEGMENT_PAGES - 1;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final byte[] EMPTY_CHUNK = new byte[CHUNK_AREA];
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final ChunkIndex index = new ChunkIndex();
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long[] stamps = new long[0];
+    private int chunkCount;
+    private long version = 1;
+    private long clearedVersion;
+    private boolean marked;
+
+    private MappedGridStore(Path file, FileChannel channel) throws IOException {
+        this.file = file;
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+    }
+
+    /**
+     * Opens the store in the given file. If the file does not exist, an empty store is created.
+     *
+     * @param file The file of the store.
+     * @return The opened store.
+     * @throws IOException If the file cannot be opened, or it is not a store file.
+     */
+    public static MappedGridStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+
+        MappedGridStore store;
+        try {
+            store = new MappedGridStore(file, channel);
+            if (created) store.writeHeader();
+            else store.readChunks();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return store;
+    }
+
+    @Override
+    public int getColor(long x, long y) {
+        int page = index.get(x >> CHUNK_BITS, y >> CHUNK_BITS);
+        if (page < 0) return 0;
+        return segments[page >> SEGMENT_BITS].get(cellOffset(page, x, y)) & 0xFF;
+    }
+
+    @Override
+    public void setColor(long x, long y, int color) {
+        long chunkX = x >> CHUNK_BITS;
+        long chunkY = y >> CHUNK_BITS;
+        int page = index.get(chunkX, chunkY);
+        if (page < 0) {
+            if (color == 0) return;
+            page = allocateChunk(chunkX, chunkY);
+        }
+        if (marked) unmark();
+        segments[page >> SEGMENT_BITS].put(cellOffset(page, x, y), (byte) color);
+        stamps[page] = version;
+    }
+
+    @Override
+    public void forEachCell(CellVisitor visitor) {
+        MappedByteBuffer[] currSegments = segments;
+        int count = Math.min(chunkCount, currSegments.length * SEGMENT_PAGES);
+
+        for (int page = 0; page < count; page++) {
+            MappedByteBuffer segment = currSegments[page >> SEGMENT_BITS];
+            int pageOffset = (page & SEGMENT_MASK) * PAGE_SIZE;
+            long baseX = segment.getLong(pageOffset) << CHUNK_BITS;
+            long baseY = segment.getLong(pageOffset + Long.BYTES) << CHUNK_BITS;
+
+            for (int i = 0; i < CHUNK_AREA; i++) {
+                int color = segment.get(pageOffset + CELLS_OFFSET + i) & 0xFF;
+                if (color != 0) visitor.visit(baseX + (i & CHUNK_MASK), baseY + (i >> CHUNK_BITS), color);
+            }
+        }
+    }
+
+    /**
+     * Calls the visitor for every chunk in the store. The cells are copied out of the file into a reused buffer.
+     */
+    @Override
+    public void forEachChunk(ChunkVisitor visitor) {
+        MappedByteBuffer[] currSegments = segments;
+        int count = Math.min(chunkCount, currSegments.length * SEGMENT_PAGES);
+
+        byte[] cells = new byte[CHUNK_AREA];
+        for (int page = 0; page < count; page++) visitPage(currSegments, page, cells, visitor);
+    }
+
+    @Override
+    public void forEachChunkSince(long sinceVersion, ChunkVisitor visitor) {
+        byte[] cells = new byte[CHUNK_AREA];
+        for (int page = 0; page < chunkCount; page++) {
+            if (stamps[page] >= sinceVersion) visitPage(segments, page, cells, visitor);
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public long advanceVersion() {
+        return ++version;
+    }
+
+    @Override
+    public long getClearedVersion() {
+        return clearedVersion;
+    }
+
+    @Override
+    public boolean readChunk(long chunkX, long chunkY, byte[] cells) {
+        int page = index.get(chunkX, chunkY);
+        if (page < 0) return false;
+        segments[page >> SEGMENT_BITS].get((page & SEGMENT_MASK) * PAGE_SIZE + CELLS_OFFSET, cells, 0, CHUNK_AREA);
+        return true;
+    }
+
+    @Override
+    public void writeChunk(long chunkX, long chunkY, byte[] cells) {
+        int page = index.get(chunkX, chunkY);
+        if (page < 0) page = allocateChunk(chunkX, chunkY);
+        if (marked) unmark();
+
+        segments[page >> SEGMENT_BITS].put((page & SEGMENT_MASK) * PAGE_SIZE + CELLS_OFFSET, cells, 0, CHUNK_AREA);
+        stamps[page] = version;
+    }
+
+    /**
+     * Forgets every chunk. The file keeps its size, and pages are zeroed again as they are reused.
+     */
+    @Override
+    public void clear() {
+        if (marked) unmark();
+        index.clear();
+        Arrays.fill(stamps, 0);
+        chunkCount = 0;
+        clearedVersion = version;
+        header.putLong(CHUNK_COUNT_OFFSET, 0);
+    }
+
+    /**
+     * Allocates every chunk overlapping the area, so writes inside it never allocate.
+     * Pages are only accessed at absolute offsets, so distinct Grids can be written concurrently.
+     */
+    @Override
+    public boolean reserve(long minX, long minY, long maxX, long maxY) {
+        for (long chunkY = minY >> CHUNK_BITS; chunkY <= maxY >> CHUNK_BITS; chunkY++) {
+            for (long chunkX = minX >> CHUNK_BITS; chunkX <= maxX >> CHUNK_BITS; chunkX++) {
+                if (index.get(chunkX, chunkY) < 0) allocateChunk(chunkX, chunkY);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Counts the mapped segments of the file, which live off-heap, and the index and version stamps on the heap.
+     */
+    @Override
+    public long getFootprintBytes() {
+        return HEADER_SIZE + (long) segments.length * SEGMENT_PAGES * PAGE_SIZE + (long) stamps.length * Long.BYTES + index.getTableBytes();
+    }
+
+    /**
+     * @return The file of the store.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @param sinceVersion A version of the store.
+     * @return Whether any chunk was written, or the store was cleared, since the version.
+     */
+    public boolean isModifiedSince(long sinceVersion) {
+        if (clearedVersion >= sinceVersion) return true;
+        for (int page = 0; page < chunkCount; page++) {
+            if (stamps[page] >= sinceVersion) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The mark of the file, or {@code 0} if it was modified since it was last marked.
+     */
+    public long getMark() {
+        return header.getLong(MARK_OFFSET);
+    }
+
+    /**
+     * Marks the file, and writes the mark back. The store must not have been modified since its pages were last
+     * written back by {@link #force()}, so the file holds exactly the chunks it held when it was marked.
+     *
+     * @param mark The mark, other than {@code 0}.
+     */
+    public void mark(long mark) {
+        header.putLong(MARK_OFFSET, mark);
+        header.force();
+        marked = true;
+    }
+
+    /**
+     * Writes every modified page back to the file.
+     */
+    public void force() {
+        header.force();
+        for (MappedByteBuffer segment : segments) segment.force();
+    }
+
+    /**
+     * Writes every modified page back to the file and closes it.
+     *
+     * @throws IOException If the file cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    /**
+     * Copies a page's cells into the buffer and visits them.
+     *
+     * @param currSegments The segments of the store.
+     * @param page The page of the chunk.
+     * @param cells The buffer to copy into.
+     * @param visitor The visitor to call.
+     */
+    private static void visitPage(MappedByteBuffer[] currSegments, int page, byte[] cells, ChunkVisitor visitor) {
+        MappedByteBuffer segment = currSegments[page >> SEGMENT_BITS];
+        int pageOffset = (page & SEGMENT_MASK) * PAGE_SIZE;
+        segment.get(pageOffset + CELLS_OFFSET, cells);
+        visitor.visit(segment.getLong(pageOffset), segment.getLong(pageOffset + Long.BYTES), cells);
+    }
+
+    /**
+     * Removes the mark of the file, and writes it back before the store is modified.
+     */
+    private void unmark() {
+        header.putLong(MARK_OFFSET, 0);
+        header.force();
+        marked = false;
+    }
+
+    /**
+     * Writes the header of a new store.
+     */
+    private void writeHeader() {
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, CHUNK_BITS);
+        header.putLong(CHUNK_COUNT_OFFSET, 0);
+    }
+
+    /**
+     * Checks the header of an existing store, maps its pages and rebuilds the chunk index.
+     *
+     * @throws IOException If the file is not a store file, or its pages cannot be mapped.
+     */
+    private void readChunks() throws IOException {
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != CHUNK_BITS)
+            throw new IOException("The file is not a Grid store, or was written by another version.");
+
+        long storedCount = header.getLong(CHUNK_COUNT_OFFSET);
+        if (storedCount < 0 || storedCount > Integer.MAX_VALUE)
+            throw new IOException("The Grid store header is corrupted: " + storedCount + " chunks.");
+
+        int count = (int) storedCount;
+        while (segments.length * SEGMENT_PAGES < count) mapSegment();
+        for (int page = 0; page < count; page++) {
+            MappedByteBuffer segment = segments[page >> SEGMENT_BITS];
+            int pageOffset = (page & SEGMENT_MASK) * PAGE_SIZE;
+            index.put(segment.getLong(pageOffset), segment.getLong(pageOffset + Long.BYTES), page);
+        }
+        chunkCount = count;
+        marked = getMark() != 0;
+    }
+
+    /**
+     * Allocates an empty page for the chunk, mapping a new segment of the file if needed.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @return The page of the new chunk.
+     */
+    private int allocateChunk(long chunkX, long chunkY) {
+        int page = chunkCount;
+        if (page >> SEGMENT_BITS == segments.length) {
+            try {
+                mapSegment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        MappedByteBuffer segment = segments[page >> SEGMENT_BITS];
+        int pageOffset = (page & SEGMENT_MASK) * PAGE_SIZE;
+        segment.putLong(pageOffset, chunkX);
+        segment.putLong(pageOffset + Long.BYTES, chunkY);
+        segment.put(pageOffset + CELLS_OFFSET, EMPTY_CHUNK);
+
+        index.put(chunkX, chunkY, page);
+        chunkCount++;
+        header.putLong(CHUNK_COUNT_OFFSET, chunkCount);
+        return page;
+    }
+
+    /**
+     * Maps the next segment of pages, growing the file.
+     *
+     * @throws IOException If the segment cannot be mapped.
+     */
+    private void mapSegment() throws IOException {
+        long offset = HEADER_SIZE + (long) segments.length * SEGMENT_PAGES * PAGE_SIZE;
+        MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) SEGMENT_PAGES * PAGE_SIZE);
+
+        MappedByteBuffer[] newSegments = Arrays.copyOf(segments, segments.length + 1);
+        newSegments[segments.length] = segment;
+        stamps = Arrays.copyOf(stamps, newSegments.length * SEGMENT_PAGES);
+        segments = newSegments;
+    }
+
+    /**
+     * @param page The page of the chunk.
+     * @param x The X coordinate of the Grid.
+     * @param y The Y coordinate of the Grid.
+     * @return The offset of the Grid inside its segment.
+     */
+    private static int cellOffset(int page, long x, long y) {
+        return (page & SEGMENT_MASK) * PAGE_SIZE + CELLS_OFFSET + ((((int) y & CHUNK_MASK) << CHUNK_BITS) | ((int) x & CHUNK_MASK));
+    }
+}
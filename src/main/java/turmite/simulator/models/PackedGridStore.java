@@ -0,0 +1,347 @@
+package turmite.simulator.models;
+
+import java.util.Arrays;
+
+/**
+ * A GridStore that packs the cells of its chunks into {@code long} words, at the smallest width the Colors fit into:
+ * 1, 2, 4 or 8 bits per Grid. A 2-Color Ruleset takes an eighth of the memory of a {@link ChunkedGridStore},
+ * a 3- or 4-Color one a quarter.
+ * <p>
+ * The width starts from the number of Colors given to the constructor, and widens by itself the first time a Color
+ * does not fit, so loading a Ruleset with more Colors never needs the store to be replaced. Every chunk is repacked
+ * once when that happens. Widths never shrink.
+ * <p>
+ * The width of a chunk follows from the length of its words, so readers on other threads always unpack a chunk
+ * at the width it was packed at, even while it is widened.
+ */
+public class PackedGridStore implements GridStore {
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int WORD_BITS_SHIFT = 6;
+
+    private static final int INITIAL_CHUNKS = 16;
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private final ChunkIndex index = new ChunkIndex();
+    private long[][] chunks = new long[INITIAL_CHUNKS][];
+    private long[] chunkXs = new long[INITIAL_CHUNKS];
+    private long[] chunkYs = new long[INITIAL_CHUNKS];
+    private long[] stamps = new long[INITIAL_CHUNKS];
+    private int chunkCount;
+    private long version = 1;
+    private long clearedVersion;
+
+    // The width of a cell is 1 << bitsShift bits, and a word holds 1 << cellsShift cells.
+    private int bitsShift;
+    private int cellsShift;
+    private int cellsMask;
+    private int maxColor;
+
+    /**
+     * Creates a store for 2 Colors, at 1 bit per Grid.
+     */
+    public PackedGridStore() {
+        this(2);
+    }
+
+    /**
+     * @param numOfColors The number of Colors to make room for, ranging from 1-256.
+     */
+    public PackedGridStore(int numOfColors) {
+        setBitsShift(bitsShiftFor(numOfColors));
+    }
+
+    @Override
+    public int getColor(long x, long y) {
+        int slot = index.get(x >> CHUNK_BITS, y >> CHUNK_BITS);
+        if (slot < 0) return 0;
+        int i = cellIndex(x, y);
+        return (int) (chunks[slot][i >>> cellsShift] >>> ((i & cellsMask) << bitsShift)) & maxColor;
+    }
+
+    @Override
+    public void setColor(long x, long y, int color) {
+        if (color > maxColor) ensureColors(color + 1);
+
+        long chunkX = x >> CHUNK_BITS;
+        long chunkY = y >> CHUNK_BITS;
+        int slot = index.get(chunkX, chunkY);
+        if (slot < 0) {
+            if (color == 0) return;
+            slot = allocateChunk(chunkX, chunkY);
+        }
+
+        int i = cellIndex(x, y);
+        int shift = (i & cellsMask) << bitsShift;
+        long[] chunk = chunks[slot];
+        chunk[i >>> cellsShift] = (chunk[i >>> cellsShift] & ~((long) maxColor << shift)) | ((long) color << shift);
+        stamps[slot] = version;
+    }
+
+    /**
+     * Widens every chunk, if the given number of Colors does not fit into the current width.
+     *
+     * @param numOfColors The number of Colors to make room for, ranging from 1-256.
+     */
+    public void ensureColors(int numOfColors) {
+        int newBitsShift = bitsShiftFor(numOfColors);
+        if (newBitsShift <= bitsShift) return;
+
+        byte[] cells = new byte[CHUNK_AREA];
+        long[][] widened = new long[chunks.length][];
+        for (int slot = 0; slot < chunkCount; slot++) {
+            unpack(chunks[slot], cells);
+            widened[slot] = new long[wordsPerChunk(newBitsShift)];
+            pack(cells, widened[slot]);
+        }
+
+        chunks = widened;
+        setBitsShift(newBitsShift);
+    }
+
+    /**
+     * @return The number of bits every Grid takes up: 1, 2, 4 or 8.
+     */
+    public int getBitsPerCell() {
+        return 1 << bitsShift;
+    }
+
+    @Override
+    public void forEachCell(CellVisitor visitor) {
+        long[][] currChunks = chunks;
+        long[] currXs = chunkXs;
+        long[] currYs = chunkYs;
+        int count = Math.min(chunkCount, Math.min(currChunks.length, Math.min(currXs.length, currYs.length)));
+
+        for (int slot = 0; slot < count; slot++) {
+            long[] chunk = currChunks[slot];
+            if (chunk == null) continue;
+            long baseX = currXs[slot] << CHUNK_BITS;
+            long baseY = currYs[slot] << CHUNK_BITS;
+            int chunkBitsShift = bitsShiftOf(chunk);
+            int cellBits = 1 << chunkBitsShift;
+            long colorMask = (1L << cellBits) - 1;
+            int chunkCellsShift = WORD_BITS_SHIFT - chunkBitsShift;
+
+            for (int w = 0; w < chunk.length; w++) {
+                long word = chunk[w];
+                for (int i = w << chunkCellsShift; word != 0; i++, word >>>= cellBits) {
+                    int color = (int) (word & colorMask);
+                    if (color != 0) visitor.visit(baseX + (i & CHUNK_MASK), baseY + (i >> CHUNK_BITS), color);
+                }
+            }
+        }
+    }
+
+    /**
+     * Every chunk is unpacked into one buffer, which is overwritten by the next chunk.
+     */
+    @Override
+    public void forEachChunk(ChunkVisitor visitor) {
+        long[][] currChunks = chunks;
+        long[] currXs = chunkXs;
+        long[] currYs = chunkYs;
+        int count = Math.min(chunkCount, Math.min(currChunks.length, Math.min(currXs.length, currYs.length)));
+        byte[] cells = new byte[CHUNK_AREA];
+
+        for (int slot = 0; slot < count; slot++) {
+            if (currChunks[slot] == null) continue;
+            unpack(currChunks[slot], cells);
+            visitor.visit(currXs[slot], currYs[slot], cells);
+        }
+    }
+
+    /**
+     * Every chunk is unpacked into one buffer, which is overwritten by the next chunk.
+     */
+    @Override
+    public void forEachChunkSince(long sinceVersion, ChunkVisitor visitor) {
+        byte[] cells = null;
+        for (int slot = 0; slot < chunkCount; slot++) {
+            if (stamps[slot] < sinceVersion) continue;
+            if (cells == null) cells = new byte[CHUNK_AREA];
+            unpack(chunks[slot], cells);
+            visitor.visit(chunkXs[slot], chunkYs[slot], cells);
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public long advanceVersion() {
+        return ++version;
+    }
+
+    @Override
+    public long getClearedVersion() {
+        return clearedVersion;
+    }
+
+    @Override
+    public boolean readChunk(long chunkX, long chunkY, byte[] cells) {
+        int slot = index.get(chunkX, chunkY);
+        if (slot < 0) return false;
+        unpack(chunks[slot], cells);
+        return true;
+    }
+
+    @Override
+    public void writeChunk(long chunkX, long chunkY, byte[] cells) {
+        int highestColor = 0;
+        for (int i = 0; i < CHUNK_AREA; i++) highestColor = Math.max(highestColor, cells[i] & 0xFF);
+        ensureColors(highestColor + 1);
+
+        int slot = index.get(chunkX, chunkY);
+        if (slot < 0) slot = allocateChunk(chunkX, chunkY);
+
+        pack(cells, chunks[slot]);
+        stamps[slot] = version;
+    }
+
+    /**
+     * Keeps the current width.
+     */
+    @Override
+    public void clear() {
+        index.clear();
+        chunks = new long[INITIAL_CHUNKS][];
+        chunkXs = new long[INITIAL_CHUNKS];
+        chunkYs = new long[INITIAL_CHUNKS];
+        stamps = new long[INITIAL_CHUNKS];
+        chunkCount = 0;
+        clearedVersion = version;
+    }
+
+    /**
+     * Allocates every chunk overlapping the area, so writes inside it never allocate. Grids that share a word cannot
+     * be written from different threads, but chunks never share words, so distinct chunks can be written concurrently.
+     * The Colors to be written must already fit, see {@link #ensureColors(int)}, as widening repacks every chunk.
+     */
+    @Override
+    public boolean reserve(long minX, long minY, long maxX, long maxY) {
+        for (long chunkY = minY >> CHUNK_BITS; chunkY <= maxY >> CHUNK_BITS; chunkY++) {
+            for (long chunkX = minX >> CHUNK_BITS; chunkX <= maxX >> CHUNK_BITS; chunkX++) {
+                if (index.get(chunkX, chunkY) < 0) allocateChunk(chunkX, chunkY);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Counts the words and headers of the chunks, the chunk tables and the index.
+     */
+    @Override
+    public long getFootprintBytes() {
+        long chunkBytes = (long) chunkCount * ((long) wordsPerChunk(bitsShift) * Long.BYTES + ARRAY_HEADER_BYTES);
+        long tableBytes = (long) chunks.length * (Long.BYTES + Long.BYTES + Long.BYTES + Long.BYTES);
+        return chunkBytes + tableBytes + index.getTableBytes();
+    }
+
+    /**
+     * Allocates an empty chunk at the given chunk coordinates, at the current width.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @return The slot of the new chunk.
+     */
+    private int allocateChunk(long chunkX, long chunkY) {
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            chunkXs = Arrays.copyOf(chunkXs, chunkCount * 2);
+            chunkYs = Arrays.copyOf(chunkYs, chunkCount * 2);
+            stamps = Arrays.copyOf(stamps, chunkCount * 2);
+        }
+
+        int slot = chunkCount;
+        chunks[slot] = new long[wordsPerChunk(bitsShift)];
+        chunkXs[slot] = chunkX;
+        chunkYs[slot] = chunkY;
+        index.put(chunkX, chunkY, slot);
+        chunkCount++;
+        return slot;
+    }
+
+    private void setBitsShift(int newBitsShift) {
+        bitsShift = newBitsShift;
+        cellsShift = WORD_BITS_SHIFT - newBitsShift;
+        cellsMask = (1 << cellsShift) - 1;
+        maxColor = (1 << (1 << newBitsShift)) - 1;
+    }
+
+    /**
+     * Unpacks the cells of a chunk, at the width its words were packed at.
+     *
+     * @param chunk The words of the chunk.
+     * @param cells The buffer to unpack into, {@code CHUNK_AREA} long.
+     */
+    private static void unpack(long[] chunk, byte[] cells) {
+        int cellBits = 1 << bitsShiftOf(chunk);
+        int cellsPerWord = Long.SIZE / cellBits;
+        long colorMask = (1L << cellBits) - 1;
+
+        int i = 0;
+        for (long word : chunk) {
+            for (int c = 0; c < cellsPerWord; c++, word >>>= cellBits) cells[i++] = (byte) (word & colorMask);
+        }
+    }
+
+    /**
+     * Packs cells into the words of a chunk, at the width of the words. The Colors must fit into that width.
+     *
+     * @param cells The Colors of the chunk's Grids, {@code CHUNK_AREA} long.
+     * @param chunk The words to pack into.
+     */
+    private static void pack(byte[] cells, long[] chunk) {
+        int cellBits = 1 << bitsShiftOf(chunk);
+        int cellsPerWord = Long.SIZE / cellBits;
+
+        int i = 0;
+        for (int w = 0; w < chunk.length; w++) {
+            long word = 0;
+            for (int c = 0; c < cellsPerWord; c++) word |= (long) (cells[i++] & 0xFF) << (c * cellBits);
+            chunk[w] = word;
+        }
+    }
+
+    /**
+     * @param chunk The words of a chunk.
+     * @return The width its cells are packed at, as a shift of {@code 1}.
+     */
+    private static int bitsShiftOf(long[] chunk) {
+        return Integer.numberOfTrailingZeros(chunk.length) - (CHUNK_BITS * 2 - WORD_BITS_SHIFT);
+    }
+
+    /**
+     * @param bitsShift The width of the cells, as a shift of {@code 1}.
+     * @return The number of words of a chunk.
+     */
+    private static int wordsPerChunk(int bitsShift) {
+        return CHUNK_AREA >> (WORD_BITS_SHIFT - bitsShift);
+    }
+
+    /**
+     * @param numOfColors The number of Colors, ranging from 1-256.
+     * @return The smallest width they fit into, as a shift of {@code 1}: 0, 1, 2 or 3 for 1, 2, 4 or 8 bits.
+     */
+    private static int bitsShiftFor(int numOfColors) {
+        if (numOfColors < 1 || numOfColors > 256)
+            throw new IllegalArgumentException("The number of Colors must be in the range 1-256 (got " + numOfColors + ").");
+        return numOfColors <= 2 ? 0 : numOfColors <= 4 ? 1 : numOfColors <= 16 ? 2 : 3;
+    }
+
+    /**
+     * @param x The X coordinate of the Grid.
+     * @param y The Y coordinate of the Grid.
+     * @return The index of the Grid inside its chunk.
+     */
+    private static int cellIndex(long x, long y) {
+        return (((int) y & CHUNK_MASK) << CHUNK_BITS) | ((int) x & CHUNK_MASK);
+    }
+}
@@ -1,6 +1,5 @@
 package turmite.simulator.models;
 
-import java.awt.*;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -97,20 +96,4 @@ public class Rule {
     public int getNewState() {
         return newState;
     }
-
-    /**
-     * A Rule's "colors" are saved as integer values.
-     * This method returns Graphics usable Colors for the numbers a Rule can use.
-     *
-     * @param num The number to be converted.
-     * @return The Color associated with the number.
-     */
-    public static Color numToColor(int num) {
-        return switch (num) {
-            case 0 -> Color.WHITE;
-            case 1 -> Color.BLACK;
-            case 2 -> Color.YELLOW;
-            default -> throw new IllegalArgumentException("No Color found for value: " + num);
-        };
-    }
 }
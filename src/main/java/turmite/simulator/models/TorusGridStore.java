@@ -0,0 +1,234 @@
+package turmite.simulator.models;
+
+import java.util.Arrays;
+
+/**
+ * A GridStore of a finite world that wraps around at its edges, like a torus. The width and height are powers of two,
+ * so every coordinate is wrapped with a mask, and the whole world is one flat array of {@code byte} cells,
+ * indexed by {@code y << widthBits | x}. Coordinates outside the world are wrapped, not rejected.
+ * <p>
+ * The world is cut into chunks like the unbounded stores, and every chunk keeps the version it was last colored in.
+ * Only chunks that were ever colored since the last clear are visited.
+ * <p>
+ * Turmites step on a torus through a loop of their own, see {@link Turmite#step(GridStore, long)}, that works on
+ * the array directly without any hashing or any check of the world's edge.
+ */
+public class TorusGridStore implements GridStore {
+    private static final int MAX_AREA_BITS = 30;
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private final int widthBits;
+    private final int xMask;
+    private final int yMask;
+    private final int chunkColsBits;
+    private final byte[] cells;
+    private final long[] stamps;
+    private long version = 1;
+    private long clearedVersion;
+
+    /**
+     * @param width The width of the world, a power of two of at least {@code CHUNK_SIZE}.
+     * @param height The height of the world, a power of two of at least {@code CHUNK_SIZE}.
+     * @throws IllegalArgumentException If a side is not a power of two, too small, or the world has more than
+     * {@code 2^30} Grids.
+     */
+    public TorusGridStore(int width, int height) {
+        checkSide(width, "width");
+        checkSide(height, "height");
+        widthBits = Integer.numberOfTrailingZeros(width);
+        if (widthBits + Integer.numberOfTrailingZeros(height) > MAX_AREA_BITS)
+            throw new IllegalArgumentException(String.format("A torus can have at most 2^%d Grids (got %d x %d).", MAX_AREA_BITS, width, height));
+
+        xMask = width - 1;
+        yMask = height - 1;
+        chunkColsBits = widthBits - CHUNK_BITS;
+        cells = new byte[width * height];
+        stamps = new long[(width >> CHUNK_BITS) * (height >> CHUNK_BITS)];
+    }
+
+    @Override
+    public int getColor(long x, long y) {
+        return cells[(((int) y & yMask) << widthBits) | ((int) x & xMask)] & 0xFF;
+    }
+
+    @Override
+    public void setColor(long x, long y, int color) {
+        int wrappedX = (int) x & xMask;
+        int wrappedY = (int) y & yMask;
+        cells[(wrappedY << widthBits) | wrappedX] = (byte) color;
+        stamps[chunkOf(wrappedX, wrappedY)] = version;
+    }
+
+    @Override
+    public void forEachCell(CellVisitor visitor) {
+        for (int i = 0; i < cells.length; i++) {
+            int color = cells[i] & 0xFF;
+            if (color != 0) visitor.visit(i & xMask, i >>> widthBits, color);
+        }
+    }
+
+    /**
+     * Every chunk is copied into one buffer, which is overwritten by the next chunk.
+     */
+    @Override
+    public void forEachChunk(ChunkVisitor visitor) {
+        forEachChunkSince(1, visitor);
+    }
+
+    /**
+     * Every chunk is copied into one buffer, which is overwritten by the next chunk.
+     */
+    @Override
+    public void forEachChunkSince(long sinceVersion, ChunkVisitor visitor) {
+        byte[] chunkCells = null;
+        for (int chunk = 0; chunk < stamps.length; chunk++) {
+            if (stamps[chunk] < sinceVersion || stamps[chunk] == 0) continue;
+            if (chunkCells == null) chunkCells = new byte[CHUNK_AREA];
+
+            int chunkX = chunk & ((1 << chunkColsBits) - 1);
+            int chunkY = chunk >>> chunkColsBits;
+            copyChunk(chunkX, chunkY, chunkCells);
+            visitor.visit(chunkX, chunkY, chunkCells);
+        }
+    }
+
+    @Override
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public long advanceVersion() {
+        return ++version;
+    }
+
+    @Override
+    public long getClearedVersion() {
+        return clearedVersion;
+    }
+
+    /**
+     * The coordinates of the chunk are wrapped like the coordinates of a Grid.
+     */
+    @Override
+    public boolean readChunk(long chunkX, long chunkY, byte[] chunkCells) {
+        int wrappedX = (int) chunkX & (xMask >> CHUNK_BITS);
+        int wrappedY = (int) chunkY & (yMask >> CHUNK_BITS);
+        if (stamps[(wrappedY << chunkColsBits) | wrappedX] == 0) return false;
+        copyChunk(wrappedX, wrappedY, chunkCells);
+        return true;
+    }
+
+    /**
+     * The coordinates of the chunk are wrapped like the coordinates of a Grid.
+     */
+    @Override
+    public void writeChunk(long chunkX, long chunkY, byte[] chunkCells) {
+        int wrappedX = (int) chunkX & (xMask >> CHUNK_BITS);
+        int wrappedY = (int) chunkY & (yMask >> CHUNK_BITS);
+        int offset = ((wrappedY << CHUNK_BITS) << widthBits) | (wrappedX << CHUNK_BITS);
+        for (int y = 0; y < CHUNK_SIZE; y++)
+            System.arraycopy(chunkCells, y << CHUNK_BITS, cells, offset + (y << widthBits), CHUNK_SIZE);
+        stamps[(wrappedY << chunkColsBits) | wrappedX] = version;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(cells, (byte) 0);
+        Arrays.fill(stamps, 0);
+        clearedVersion = version;
+    }
+
+    /**
+     * Wrapped areas could overlap, so concurrent writes are never supported.
+     */
+    @Override
+    public boolean reserve(long minX, long minY, long maxX, long maxY) {
+        return false;
+    }
+
+    @Override
+    public boolean isWrapping() {
+        return true;
+    }
+
+    /**
+     * @return The number of chunks colored since the last clear.
+     */
+    @Override
+    public int getChunkCount() {
+        int count = 0;
+        for (long stamp : stamps) if (stamp != 0) count++;
+        return count;
+    }
+
+    /**
+     * The whole world is allocated up front, so this does not grow.
+     */
+    @Override
+    public long getFootprintBytes() {
+        return cells.length + ARRAY_HEADER_BYTES + (long) stamps.length * Long.BYTES + ARRAY_HEADER_BYTES;
+    }
+
+    /**
+     * @return The width of the world.
+     */
+    public int getWidth() {
+        return xMask + 1;
+    }
+
+    /**
+     * @return The height of the world.
+     */
+    public int getHeight() {
+        return yMask + 1;
+    }
+
+    /**
+     * @return The base-2 logarithm of the width, the shift of a row in the cells.
+     */
+    int getWidthBits() {
+        return widthBits;
+    }
+
+    /**
+     * @return The cells of the world, indexed by {@code y << widthBits | x}. Writes must be stamped.
+     */
+    byte[] getCells() {
+        return cells;
+    }
+
+    /**
+     * @return The version every chunk was last colored in, indexed by {@link #chunkOf(int, int)}.
+     */
+    long[] getStamps() {
+        return stamps;
+    }
+
+    /**
+     * @param x The wrapped X coordinate of a Grid.
+     * @param y The wrapped Y coordinate of a Grid.
+     * @return The index of the Grid's chunk in the stamps.
+     */
+    int chunkOf(int x, int y) {
+        return ((y >>> CHUNK_BITS) << chunkColsBits) | (x >>> CHUNK_BITS);
+    }
+
+    /**
+     * Copies the cells of a chunk out of the world.
+     *
+     * @param chunkX The wrapped X coordinate of the chunk.
+     * @param chunkY The wrapped Y coordinate of the chunk.
+     * @param chunkCells The buffer to copy into, {@code CHUNK_AREA} long.
+     */
+    private void copyChunk(int chunkX, int chunkY, byte[] chunkCells) {
+        int offset = ((chunkY << CHUNK_BITS) << widthBits) | (chunkX << CHUNK_BITS);
+        for (int y = 0; y < CHUNK_SIZE; y++)
+            System.arraycopy(cells, offset + (y << widthBits), chunkCells, y << CHUNK_BITS, CHUNK_SIZE);
+    }
+
+    private static void checkSide(int side, String name) {
+        if (side < CHUNK_SIZE || Integer.bitCount(side) != 1)
+            throw new IllegalArgumentException(String.format("The %s of a torus must be a power of two of at least %d (got %d).", name, CHUNK_SIZE, side));
+    }
+}
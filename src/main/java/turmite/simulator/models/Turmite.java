@@ -1,232 +1,318 @@
 package turmite.simulator.models;
 
 import turmite.simulator.utils.Ruleset;
+import turmite.simulator.utils.TransitionTable;
 
 /**
  * A class that represents a Turmite.
+ * <p>
+ * The Turmite's heading is an integer counted clockwise from {@code UP}, see {@link Direction#fromHeading(int)}.
+ * Its position is a pair of 64-bit Grid coordinates, so it cannot overflow within any run that fits into a lifetime.
  */
 public final class Turmite {
+    private static final int TRACE_STATE_SHIFT = 2;
+    private static final int TRACE_COLOR_SHIFT = 10;
+
     private final Ruleset ruleset;
+    private final long startX;
+    private final long startY;
+    private final int startHeading;
 
-    private final Grid pos;
-    private Direction dir;
+    private long x;
+    private long y;
+    private int heading;
     private int state;
 
-    public Turmite(Grid pos, Ruleset ruleset) {
+    private GridStore maskedStore;
+    private TorusGridStore maskedTorus;
+    private long xMask;
+    private long yMask;
+
+    public Turmite(Ruleset ruleset) {
+        this(ruleset, 0, 0, 0);
+    }
+
+    public Turmite(Ruleset ruleset, long startX, long startY, int startHeading) {
         this.ruleset = ruleset;
-        this.pos = pos;
-        dir = Direction.UP;
-        state = 0;
+        this.startX = startX;
+        this.startY = startY;
+        this.startHeading = startHeading & 3;
+        reset();
     }
 
     /**
-     * The method calculates the new State and Direction of the Turmite based on
-     * its internal State and {@code currColor}, then moves it.
+     * Steps the Turmite once on the given Grid. The Grid it is standing on is read and colored
+     * based on the Ruleset, then the Turmite turns and moves. On a torus, the position is wrapped after the move.
      *
-     * @param currColor The Color the Turmite is currently standing on.
-     */
-    public void move(int currColor) {
-        calculateNextDirection(currColor);
-        calculateNextState(currColor);
-
-        switch (dir) {
-            case UP:
-                moveUp();
-                break;
-            case DOWN:
-                moveDown();
-                break;
-            case LEFT:
-                moveLeft();
-                break;
-            case RIGHT:
-                moveRight();
-                break;
-            default:
-                break;
-        }
+     * @param gridStore The Grid the Turmite is walking on.
+     */
+    public void step(GridStore gridStore) {
+        // The wrap masks are only resolved when the Grid changes, so a single step costs no type check.
+        if (gridStore != maskedStore) resolveMasks(gridStore);
+
+        int entry = ruleset.getTransitionTable().get(state, gridStore.getColor(x, y));
+        gridStore.setColor(x, y, TransitionTable.newColor(entry));
+        heading = (heading + TransitionTable.turnDelta(entry)) & 3;
+        state = TransitionTable.newState(entry);
+        x = (x + Direction.getHeadingDx(heading)) & xMask;
+        y = (y + Direction.getHeadingDy(heading)) & yMask;
     }
 
     /**
-     * @return The Grid the Turmite is standing on.
+     * Remembers whether a Grid is a torus, and the masks the position is wrapped with on it, {@code -1} if the Grid
+     * is unbounded.
+     *
+     * @param gridStore The Grid the Turmite is walking on.
      */
-    public Grid getGrid() {
-        return pos;
+    private void resolveMasks(GridStore gridStore) {
+        maskedStore = gridStore;
+        maskedTorus = gridStore instanceof TorusGridStore torus ? torus : null;
+        xMask = maskedTorus != null ? maskedTorus.getWidth() - 1 : -1;
+        yMask = maskedTorus != null ? maskedTorus.getHeight() - 1 : -1;
     }
 
     /**
-     * @return The X coordinate of the Turmite.
+     * Steps the Turmite {@code n} times on the given Grid. The TransitionTable is read once, and the Turmite's
+     * position, heading and State are kept in locals until the loop is done.
+     *
+     * @param gridStore The Grid the Turmite is walking on.
+     * @param n The number of steps.
      */
-    public int getX() {
-        return pos.getX();
+    public void step(GridStore gridStore, long n) {
+        if (gridStore != maskedStore) resolveMasks(gridStore);
+        if (maskedTorus != null) {
+            stepOnTorus(maskedTorus, n);
+            return;
+        }
+
+        TransitionTable table = ruleset.getTransitionTable();
+        long currX = x;
+        long currY = y;
+        int currHeading = heading;
+        int currState = state;
+
+        for (long i = 0; i < n; i++) {
+            int entry = table.get(currState, gridStore.getColor(currX, currY));
+            gridStore.setColor(currX, currY, TransitionTable.newColor(entry));
+            currHeading = (currHeading + TransitionTable.turnDelta(entry)) & 3;
+            currState = TransitionTable.newState(entry);
+            currX += Direction.getHeadingDx(currHeading);
+            currY += Direction.getHeadingDy(currHeading);
+        }
+
+        x = currX;
+        y = currY;
+        heading = currHeading;
+        state = currState;
     }
 
     /**
-     * @return The Y coordinate of the Turmite.
+     * Steps the Turmite {@code n} times on a torus, straight on its array of cells. The position is wrapped with
+     * masks after every move, so it always stays inside the world.
+     *
+     * @param torus The torus the Turmite is walking on.
+     * @param n The number of steps.
      */
-    public int getY() {
-        return pos.getY();
+    private void stepOnTorus(TorusGridStore torus, long n) {
+        TransitionTable table = ruleset.getTransitionTable();
+        byte[] cells = torus.getCells();
+        long[] stamps = torus.getStamps();
+        long version = torus.getVersion();
+        int widthBits = torus.getWidthBits();
+        int xMask = torus.getWidth() - 1;
+        int yMask = torus.getHeight() - 1;
+        int currX = (int) x & xMask;
+        int currY = (int) y & yMask;
+        int currHeading = heading;
+        int currState = state;
+
+        for (long i = 0; i < n; i++) {
+            int cell = (currY << widthBits) | currX;
+            int entry = table.get(currState, cells[cell] & 0xFF);
+            cells[cell] = (byte) TransitionTable.newColor(entry);
+            stamps[torus.chunkOf(currX, currY)] = version;
+            currHeading = (currHeading + TransitionTable.turnDelta(entry)) & 3;
+            currState = TransitionTable.newState(entry);
+            currX = (currX + Direction.getHeadingDx(currHeading)) & xMask;
+            currY = (currY + Direction.getHeadingDy(currHeading)) & yMask;
+        }
+
+        x = currX;
+        y = currY;
+        heading = currHeading;
+        state = currState;
     }
 
     /**
-     * Turns the Turmite based on its internal State and the Color of the Grid it is currently
-     * standing on using the Ruleset.
+     * Steps the Turmite {@code n} times like {@link #step(GridStore, long)}, and records every step into a trace.
+     * The trace is a ring buffer with a power-of-two length, the entry of the step with index {@code i} is written at
+     * {@code i & (trace.length - 1)}.
+     *
+     * @param gridStore The Grid the Turmite is walking on.
+     * @param n The number of steps.
+     * @param trace The ring buffer to record into.
+     * @param traceIndex The index of the first step to record.
      *
-     * @param currColor The Color the Turmite is currently standing on.
-     */
-    private void calculateNextDirection(int currColor) {
-        for (Rule rule : ruleset.getRules()) {
-            if (rule.getCurrState() == state && rule.getCurrColor() == currColor) {
-                Direction turnDir = rule.getTurnDir();
-                switch (turnDir) {
-                    case Direction.LEFT -> turnLeft();
-                    case Direction.RIGHT -> turnRight();
-                    case Direction.U_TURN -> turnBack();
-                    default -> {
-                        if (!turnDir.equals(Direction.NO_TURN))
-                            throw new IllegalArgumentException("A Rule has an invalid Direction set.");
-                    }
-                }
-            }
+     * @see #traceEntry(int, int, int)
+     */
+    public void stepTraced(GridStore gridStore, long n, int[] trace, long traceIndex) {
+        TransitionTable table = ruleset.getTransitionTable();
+        int traceMask = trace.length - 1;
+        long currX = x;
+        long currY = y;
+        int currHeading = heading;
+        int currState = state;
+
+        for (long i = 0; i < n; i++) {
+            int currColor = gridStore.getColor(currX, currY);
+            int entry = table.get(currState, currColor);
+            gridStore.setColor(currX, currY, TransitionTable.newColor(entry));
+            currHeading = (currHeading + TransitionTable.turnDelta(entry)) & 3;
+            trace[(int) (traceIndex + i) & traceMask] = traceEntry(currHeading, currState, currColor);
+            currState = TransitionTable.newState(entry);
+            currX += Direction.getHeadingDx(currHeading);
+            currY += Direction.getHeadingDy(currHeading);
         }
+
+        x = currX;
+        y = currY;
+        heading = currHeading;
+        state = currState;
     }
 
     /**
-     * Calculates the next State of the Turmite based on its internal State and the Color of the Grid it is currently
-     * standing on using the Ruleset.
+     * Packs one step of a trace. Two steps with equal entries read the same Color in the same State,
+     * so they write the same Color and move the same way.
      *
-     * @param currColor The Color the Turmite is currently standing on.
-     */
-    private void calculateNextState(int currColor) {
-        for (Rule rule : ruleset.getRules()) {
-            if (rule.getCurrState() == state && rule.getCurrColor() == currColor) {
-                state = rule.getNewState();
-                return;
-            }
-        }
+     * @param newHeading The heading after turning.
+     * @param currState The State before the step.
+     * @param currColor The Color that was read.
+     * @return The packed trace entry.
+     */
+    public static int traceEntry(int newHeading, int currState, int currColor) {
+        return newHeading | (currState << TRACE_STATE_SHIFT) | (currColor << TRACE_COLOR_SHIFT);
+    }
+
+    /**
+     * @param traceEntry The packed trace entry.
+     * @return The heading after turning.
+     */
+    public static int traceHeading(int traceEntry) {
+        return traceEntry & 3;
     }
 
     /**
-     * Calculates the Color to paint the current Grid based on the Turmite's internal State and the Color of
-     * the Grid it is currently standing on using the Ruleset.
+     * @param traceEntry The packed trace entry.
+     * @return The State before the step.
+     */
+    public static int traceState(int traceEntry) {
+        return (traceEntry >>> TRACE_STATE_SHIFT) & 0xFF;
+    }
+
+    /**
+     * @param traceEntry The packed trace entry.
+     * @return The Color that was read.
+     */
+    public static int traceColor(int traceEntry) {
+        return (traceEntry >>> TRACE_COLOR_SHIFT) & 0xFF;
+    }
+
+    /**
+     * Moves the Turmite by the given offset without stepping. Its heading and State are not affected.
      *
-     * @param currColor The Color the Turmite is currently standing on.
-     * @return The Color to paint the Grid before the Turmite moves.
-     */
-    public int calculateNextColor(int currColor) {
-        int newColor = -1;
-
-        for (Rule rule : ruleset.getRules())
-            if (rule.getCurrState() == state && rule.getCurrColor() == currColor) {
-                newColor = rule.getNewColor();
-                break;
-            }
-
-        return newColor;
-    }
-
-    /**
-     * Turns the Turmite left.
-     */
-    private void turnLeft() {
-        switch (dir) {
-            case UP:
-                dir = Direction.LEFT;
-                break;
-            case DOWN:
-                dir = Direction.RIGHT;
-                break;
-            case LEFT:
-                dir = Direction.DOWN;
-                break;
-            case RIGHT:
-                dir = Direction.UP;
-                break;
-            default:
-                throw new IllegalArgumentException("The Turmite has an invalid Direction set.");
-        }
+     * @param dx The change of the X coordinate.
+     * @param dy The change of the Y coordinate.
+     */
+    public void translate(long dx, long dy) {
+        x += dx;
+        y += dy;
+    }
+
+    /**
+     * Puts the Turmite into the given position, heading and State, for example when loading a checkpoint.
+     *
+     * @param x The X coordinate of the Turmite.
+     * @param y The Y coordinate of the Turmite.
+     * @param heading The heading of the Turmite.
+     * @param state The State of the Turmite.
+     */
+    public void restore(long x, long y, int heading, int state) {
+        this.x = x;
+        this.y = y;
+        this.heading = heading & 3;
+        this.state = state;
     }
 
+    /**
+     * @return The X coordinate of the Turmite.
+     */
+    public long getX() {
+        return x;
+    }
 
     /**
-     * Turns the Turmite right.
+     * @return The Y coordinate of the Turmite.
      */
-    private void turnRight() {
-        switch (dir) {
-            case UP:
-                dir = Direction.RIGHT;
-                break;
-            case DOWN:
-                dir = Direction.LEFT;
-                break;
-            case LEFT:
-                dir = Direction.UP;
-                break;
-            case RIGHT:
-                dir = Direction.DOWN;
-                break;
-            default:
-                throw new IllegalArgumentException("The Turmite has an invalid Direction set.");
-        }
+    public long getY() {
+        return y;
     }
 
     /**
-     * Turns the Turmite back (180deg).
-     */
-    private void turnBack() {
-        switch (dir) {
-            case UP:
-                dir = Direction.DOWN;
-                break;
-            case DOWN:
-                dir = Direction.UP;
-                break;
-            case LEFT:
-                dir = Direction.RIGHT;
-                break;
-            case RIGHT:
-                dir = Direction.LEFT;
-                break;
-            default:
-                throw new IllegalArgumentException("The Turmite has an invalid Direction set.");
-        }
+     * @return The heading of the Turmite.
+     */
+    public int getHeading() {
+        return heading;
     }
 
+    /**
+     * @return The Direction the Turmite is facing.
+     */
+    public Direction getDirection() {
+        return Direction.fromHeading(heading);
+    }
+
+    /**
+     * @return The State of the Turmite.
+     */
+    public int getState() {
+        return state;
+    }
 
     /**
-     * Moves the Turmite up one Grid.
+     * @return The Ruleset of the Turmite.
      */
-    private void moveUp() {
-        pos.moveUp();
+    public Ruleset getRuleset() {
+        return ruleset;
     }
 
     /**
-     * Moves the Turmite down one Grid.
+     * @return The X coordinate the Turmite starts from.
      */
-    private void moveDown() {
-        pos.moveDown();
+    public long getStartX() {
+        return startX;
     }
 
     /**
-     * Moves the Turmite left one Grid.
+     * @return The Y coordinate the Turmite starts from.
      */
-    private void moveLeft() {
-        pos.moveLeft();
+    public long getStartY() {
+        return startY;
     }
 
     /**
-     * Moves the Turmite right one Grid.
+     * @return The heading the Turmite starts with.
      */
-    private void moveRight() {
-        pos.moveRight();
+    public int getStartHeading() {
+        return startHeading;
     }
 
     /**
-     * Reset the Turmite to its default. Position, Direction and State are affected.
+     * Reset the Turmite to where it started. Position, Direction and State are affected.
      */
     public void reset() {
-        pos.reset();
-        dir = Direction.UP;
+        x = startX;
+        y = startY;
+        heading = startHeading;
         state = 0;
     }
 }
@@ -29,4 +29,26 @@ public class Dialogs {
     public static void showErrorDialog(Component frame, String message) {
         JOptionPane.showMessageDialog(frame, message, "Error", JOptionPane.ERROR_MESSAGE);
     }
+
+    /**
+     * Show a Dialog that asks for a positive whole number.
+     *
+     * @param frame The parent frame.
+     * @param message The message to show.
+     * @param initialValue The value shown in the input field.
+     * @return The number, or {@code null} if the Dialog was cancelled or the input is not a positive number.
+     */
+    public static Long showNumberInputDialog(Component frame, String message, long initialValue) {
+        Object input = JOptionPane.showInputDialog(frame, message, "Input", JOptionPane.QUESTION_MESSAGE, null, null, initialValue);
+        if (input == null) return null;
+
+        try {
+            long value = Long.parseLong(input.toString().trim());
+            if (value > 0) return value;
+        } catch (NumberFormatException ignored) {
+            // Reported below, like a number that is not positive.
+        }
+        showErrorDialog(frame, "Please enter a positive whole number.");
+        return null;
+    }
 }
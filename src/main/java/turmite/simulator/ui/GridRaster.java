@@ -0,0 +1,533 @@
+package turmite.simulator.ui;
+
+import turmite.simulator.SimulationSnapshot;
+import turmite.simulator.models.ChunkIndex;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.utils.Ruleset;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent raster of the Grid, kept in indexed-color tiles of {@code CHUNK_SIZE} pixels on each side.
+ * <p>
+ * The raster is a pyramid of levels. A tile of level {@code L} covers {@code 2^L} chunks of the {@link GridStore}
+ * on each side, and each of its pixels holds the majority Color of a {@code 2^L} wide block of Grids.
+ * Only the coarse levels, from {@link #COARSE_LEVEL} up, keep a tile for every part of the Grid that was colored,
+ * which costs {@code 4^COARSE_LEVEL} times less memory than a tile per chunk. Coarse tiles are updated for the chunks
+ * in each {@link SimulationSnapshot}, which are the chunks colored since the previous one, so painting a frame costs
+ * the same no matter how many Grids were colored before. Changed tiles only mark their ancestors, which are
+ * downsampled again when a frame first needs them.
+ * <p>
+ * The finer levels only keep the tiles of the latest views, in a cache of {@link #CACHED_TILES} tiles per level,
+ * or of the visible tiles if more are visible, so its size is bounded by the screen rather than by the Grid.
+ * A visible tile that is not cached is rendered from the store, reading its chunks under the lock of the engine,
+ * and at most {@link #FRAME_CHUNK_READS} chunks are read per frame. Tiles past that are drawn from the coarse level
+ * for one frame, and {@link #paint} tells the caller to paint again. A tile rendered from the store may be a few steps
+ * ahead of the latest snapshot, until the next snapshot brings the rest of the raster up to it.
+ * <p>
+ * Only used from the Event Dispatch Thread.
+ */
+public class GridRaster {
+    public static final int MAX_LEVEL = 12;
+    public static final int COARSE_LEVEL = 3;
+    public static final int CACHED_TILES = 2048;
+    public static final int FRAME_CHUNK_READS = 1024;
+
+    private static final IndexColorModel PALETTE = createPalette();
+    private static final BufferedImage EMPTY = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_INDEXED, PALETTE);
+    private static final int INITIAL_TILES = 16;
+    private static final int HALF_TILE = GridStore.CHUNK_SIZE / 2;
+
+    private final GridStore gridStore;
+    private final Object lock;
+    private final Level[] levels = new Level[MAX_LEVEL + 1];
+    private final TileCache[] caches = new TileCache[COARSE_LEVEL];
+
+    /** The blocks a chunk shrinks to at every level up to the coarse one, indexed by level. */
+    private final byte[][] blocks = new byte[COARSE_LEVEL + 1][];
+    /** The chunks of the fine tile being rendered, read under the lock. */
+    private final byte[][] reads = new byte[1 << (2 * (COARSE_LEVEL - 1))][GridStore.CHUNK_AREA];
+    private final boolean[] found = new boolean[reads.length];
+
+    /**
+     * @param gridStore The Grids of the simulation, to render the tiles of the finer levels from.
+     * @param lock The lock the simulation colors Grids under, held while chunks are read from the store.
+     */
+    public GridRaster(GridStore gridStore, Object lock) {
+        this.gridStore = gridStore;
+        this.lock = lock;
+        for (int level = COARSE_LEVEL; level <= MAX_LEVEL; level++) levels[level] = new Level();
+        for (int level = 0; level < COARSE_LEVEL; level++) caches[level] = new TileCache();
+        for (int level = 1; level <= COARSE_LEVEL; level++) {
+            int size = GridStore.CHUNK_SIZE >> level;
+            blocks[level] = new byte[size * size];
+        }
+    }
+
+    /**
+     * Copies every chunk of the snapshot into the tiles that cover it. If the Grid was cleared before the snapshot,
+     * every tile is rebuilt.
+     *
+     * @param snapshot The next snapshot of the simulation.
+     */
+    public void update(SimulationSnapshot snapshot) {
+        if (snapshot.isCleared()) clear();
+        snapshot.forEachChunk(this::updateTiles);
+    }
+
+    /**
+     * Draws the tiles overlapping the visible area, from the level that matches the zoom. Tiles are placed in screen
+     * pixels through the view, so the Graphics must not be transformed.
+     *
+     * @param g The Graphics to draw with.
+     * @param view The transform from Grid coordinates to the screen.
+     * @param width The width of the visible area, in pixels.
+     * @param height The height of the visible area, in pixels.
+     * @return Whether every tile was drawn at its own level. If not, the frame should be painted again.
+     */
+    public boolean paint(Graphics2D g, ViewTransform view, int width, int height) {
+        int level = selectLevel(view.getPixelsPerCell());
+        int tileBits = GridStore.CHUNK_BITS + level;
+        long minTileX = view.toWorldX(0) >> tileBits;
+        long minTileY = view.toWorldY(0) >> tileBits;
+        long maxTileX = view.toWorldX(width) >> tileBits;
+        long maxTileY = view.toWorldY(height) >> tileBits;
+
+        if (level < COARSE_LEVEL) return paintCached(g, view, level, minTileX, minTileY, maxTileX, maxTileY);
+
+        Level tiles = levels[level];
+        double visibleTiles = (double) (maxTileX - minTileX + 1) * (maxTileY - minTileY + 1);
+        if (visibleTiles < tiles.count) {
+            for (long tileY = minTileY; tileY <= maxTileY; tileY++) {
+                for (long tileX = minTileX; tileX <= maxTileX; tileX++) {
+                    int slot = tiles.index.get(tileX, tileY);
+                    if (slot < 0) continue;
+                    if (tiles.dirty[slot]) downsample(level, slot);
+                    drawTile(g, view, tiles.images.get(slot), tileX, tileY, tileBits);
+                }
+            }
+            return true;
+        }
+
+        for (int slot = 0; slot < tiles.count; slot++) {
+            long tileX = tiles.tileXs[slot];
+            long tileY = tiles.tileYs[slot];
+            if (tileX < minTileX || tileX > maxTileX || tileY < minTileY || tileY > maxTileY) continue;
+            if (tiles.dirty[slot]) downsample(level, slot);
+            drawTile(g, view, tiles.images.get(slot), tileX, tileY, tileBits);
+        }
+        return true;
+    }
+
+    /**
+     * Drops every tile of every level.
+     */
+    public void clear() {
+        for (int level = COARSE_LEVEL; level <= MAX_LEVEL; level++) levels[level].clear();
+        for (TileCache cache : caches) cache.clear();
+    }
+
+    /**
+     * @return The number of tiles kept at the coarse level, each covering {@code 2^COARSE_LEVEL} chunks on each side.
+     */
+    public int getTileCount() {
+        return levels[COARSE_LEVEL].count;
+    }
+
+    /**
+     * @param pixelsPerCell The size of one Grid on the screen, in pixels.
+     * @return The coarsest level whose pixels are still at least one screen pixel wide.
+     */
+    public static int selectLevel(double pixelsPerCell) {
+        if (pixelsPerCell >= 1) return 0;
+        int level = 31 - Integer.numberOfLeadingZeros((int) Math.min(Integer.MAX_VALUE, 1 / pixelsPerCell));
+        return Math.min(level, MAX_LEVEL);
+    }
+
+    /**
+     * Draws the visible tiles of a fine level from its cache, rendering the missing ones from the store while the
+     * frame's reads last. Tiles whose coarse tile does not exist cover no colored Grid, so they are skipped.
+     *
+     * @param g The Graphics to draw with.
+     * @param view The transform from Grid coordinates to the screen.
+     * @param level The level to draw, below {@link #COARSE_LEVEL}.
+     * @return Whether every visible tile was drawn at this level.
+     */
+    private boolean paintCached(Graphics2D g, ViewTransform view, int level,
+                                long minTileX, long minTileY, long maxTileX, long maxTileY) {
+        TileCache cache = caches[level];
+        cache.capacity = (int) Math.max(CACHED_TILES, (maxTileX - minTileX + 1) * (maxTileY - minTileY + 1));
+        Level coarse = levels[COARSE_LEVEL];
+        int tileBits = GridStore.CHUNK_BITS + level;
+        int shift = COARSE_LEVEL - level;
+        int tileReads = 1 << (2 * level);
+        int chunkReads = 0;
+        boolean complete = true;
+
+        for (long tileY = minTileY; tileY <= maxTileY; tileY++) {
+            for (long tileX = minTileX; tileX <= maxTileX; tileX++) {
+                TileKey key = new TileKey(tileX, tileY);
+                BufferedImage image = cache.get(key);
+                if (image == null) {
+                    int coarseSlot = coarse.index.get(tileX >> shift, tileY >> shift);
+                    if (coarseSlot < 0) continue;
+                    if (chunkReads + tileReads > FRAME_CHUNK_READS) {
+                        drawPart(g, view, coarse.images.get(coarseSlot), tileX, tileY, tileBits, shift);
+                        complete = false;
+                        continue;
+                    }
+                    chunkReads += tileReads;
+                    image = render(level, tileX, tileY, cache.takeSpare());
+                    cache.put(key, image);
+                }
+                if (image != EMPTY) drawTile(g, view, image, tileX, tileY, tileBits);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Draws a tile between the screen positions of its edges, so neighbouring tiles never leave a gap between them.
+     *
+     * @param g The Graphics to draw with.
+     * @param view The transform from Grid coordinates to the screen.
+     * @param image The image of the tile.
+     * @param tileX The X coordinate of the tile in its level.
+     * @param tileY The Y coordinate of the tile in its level.
+     * @param tileBits The base-2 logarithm of the number of Grids a tile covers on each side.
+     */
+    private static void drawTile(Graphics2D g, ViewTransform view, BufferedImage image, long tileX, long tileY, int tileBits) {
+        int left = (int) Math.round(view.toScreenX(tileX << tileBits));
+        int top = (int) Math.round(view.toScreenY(tileY << tileBits));
+        int right = (int) Math.round(view.toScreenX((tileX + 1) << tileBits));
+        int bottom = (int) Math.round(view.toScreenY((tileY + 1) << tileBits));
+        g.drawImage(image, left, top, right - left, bottom - top, null);
+    }
+
+    /**
+     * Draws the part of a coarse tile that covers a fine tile, in place of the fine tile.
+     *
+     * @param g The Graphics to draw with.
+     * @param view The transform from Grid coordinates to the screen.
+     * @param coarseImage The image of the coarse tile.
+     * @param tileX The X coordinate of the fine tile in its level.
+     * @param tileY The Y coordinate of the fine tile in its level.
+     * @param tileBits The base-2 logarithm of the number of Grids a fine tile covers on each side.
+     * @param shift The number of levels between the fine tile and the coarse one.
+     */
+    private static void drawPart(Graphics2D g, ViewTransform view, BufferedImage coarseImage, long tileX, long tileY,
+                                 int tileBits, int shift) {
+        int size = GridStore.CHUNK_SIZE >> shift;
+        int sourceX = (int) (tileX & ((1 << shift) - 1)) * size;
+        int sourceY = (int) (tileY & ((1 << shift) - 1)) * size;
+        int left = (int) Math.round(view.toScreenX(tileX << tileBits));
+        int top = (int) Math.round(view.toScreenY(tileY << tileBits));
+        int right = (int) Math.round(view.toScreenX((tileX + 1) << tileBits));
+        int bottom = (int) Math.round(view.toScreenY((tileY + 1) << tileBits));
+        g.drawImage(coarseImage, left, top, right, bottom, sourceX, sourceY, sourceX + size, sourceY + size, null);
+    }
+
+    /**
+     * Copies the chunk's cells, shrunk to each level, into the cached fine tiles and the coarse tile that cover it,
+     * and marks the coarse tile's ancestors to be downsampled again. The coarse tile is created if needed, unless
+     * the chunk has no Colors.
+     *
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @param cells The Colors of the chunk's Grids.
+     */
+    private void updateTiles(long chunkX, long chunkY, byte[] cells) {
+        Level coarse = levels[COARSE_LEVEL];
+        int slot = coarse.index.get(chunkX >> COARSE_LEVEL, chunkY >> COARSE_LEVEL);
+        if (slot < 0) {
+            if (isBlank(cells)) return;
+            slot = coarse.add(chunkX >> COARSE_LEVEL, chunkY >> COARSE_LEVEL);
+        }
+
+        shrink(cells, COARSE_LEVEL);
+        for (int level = 0; level < COARSE_LEVEL; level++) {
+            TileKey key = new TileKey(chunkX >> level, chunkY >> level);
+            BufferedImage image = caches[level].get(key);
+            if (image == EMPTY) caches[level].remove(key);
+            else if (image != null) copyBlock(level, chunkX, chunkY, pixels(image));
+        }
+        copyBlock(COARSE_LEVEL, chunkX, chunkY, coarse.pixels(slot));
+
+        for (int level = COARSE_LEVEL + 1; level <= MAX_LEVEL; level++) {
+            Level parents = levels[level];
+            int parentSlot = parents.index.get(chunkX >> level, chunkY >> level);
+            if (parentSlot < 0) parentSlot = parents.add(chunkX >> level, chunkY >> level);
+            if (parents.dirty[parentSlot]) break;
+            parents.dirty[parentSlot] = true;
+        }
+    }
+
+    /**
+     * Renders a tile of a fine level from the chunks in the store. Its chunks are read in one hold of the lock,
+     * so the tile shows the Grid at one step.
+     *
+     * @param level The level of the tile, below {@link #COARSE_LEVEL}.
+     * @param tileX The X coordinate of the tile in its level.
+     * @param tileY The Y coordinate of the tile in its level.
+     * @param image An image to render into, or {@code null} to create one.
+     * @return The tile, or {@link #EMPTY} if none of its chunks are in the store.
+     */
+    private BufferedImage render(int level, long tileX, long tileY, BufferedImage image) {
+        int side = 1 << level;
+        long firstX = tileX << level;
+        long firstY = tileY << level;
+        boolean any = false;
+        synchronized (lock) {
+            for (int i = 0; i < side * side; i++) {
+                found[i] = gridStore.readChunk(firstX + (i & (side - 1)), firstY + (i >> level), reads[i]);
+                any |= found[i];
+            }
+        }
+        if (!any) return EMPTY;
+
+        if (image == null) image = createTile();
+        byte[] pixels = pixels(image);
+        for (int i = 0; i < side * side; i++) {
+            if (!found[i]) Arrays.fill(reads[i], (byte) 0);
+            shrink(reads[i], level);
+            copyBlock(level, firstX + (i & (side - 1)), firstY + (i >> level), pixels);
+        }
+        return image;
+    }
+
+    /**
+     * Shrinks a chunk into {@link #blocks}, one level at a time, the same way tiles are downsampled.
+     *
+     * @param cells The Colors of the chunk's Grids.
+     * @param level The last level to shrink to.
+     */
+    private void shrink(byte[] cells, int level) {
+        blocks[0] = cells;
+        for (int next = 1; next <= level; next++) {
+            byte[] source = blocks[next - 1];
+            byte[] target = blocks[next];
+            int size = GridStore.CHUNK_SIZE >> next;
+            for (int y = 0; y < size; y++) {
+                int row = (y << 1) * (size << 1);
+                for (int x = 0; x < size; x++) {
+                    int i = row + (x << 1);
+                    target[y * size + x] = majority(source[i], source[i + 1], source[i + (size << 1)], source[i + (size << 1) + 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the block a chunk shrinks to at a level into the part of the level's tile that covers the chunk.
+     *
+     * @param level The level of the tile.
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @param pixels The pixels of the tile.
+     */
+    private void copyBlock(int level, long chunkX, long chunkY, byte[] pixels) {
+        byte[] block = blocks[level];
+        int size = GridStore.CHUNK_SIZE >> level;
+        int mask = (1 << level) - 1;
+        int offset = (int) (chunkY & mask) * size * GridStore.CHUNK_SIZE + (int) (chunkX & mask) * size;
+        for (int y = 0; y < size; y++) System.arraycopy(block, y * size, pixels, offset + y * GridStore.CHUNK_SIZE, size);
+    }
+
+    /**
+     * Rebuilds a tile from the four tiles below it, downsampling the children first if they are dirty too.
+     *
+     * @param level The level of the tile, above {@link #COARSE_LEVEL}.
+     * @param slot The slot of the tile in its level.
+     */
+    private void downsample(int level, int slot) {
+        Level tiles = levels[level];
+        Level children = levels[level - 1];
+        long tileX = tiles.tileXs[slot];
+        long tileY = tiles.tileYs[slot];
+        byte[] pixels = tiles.pixels(slot);
+
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            long childX = (tileX << 1) | (quadrant & 1);
+            long childY = (tileY << 1) | (quadrant >> 1);
+            int offset = (quadrant >> 1) * HALF_TILE * GridStore.CHUNK_SIZE + (quadrant & 1) * HALF_TILE;
+
+            int childSlot = children.index.get(childX, childY);
+            if (childSlot < 0) {
+                for (int y = 0; y < HALF_TILE; y++)
+                    Arrays.fill(pixels, offset + y * GridStore.CHUNK_SIZE, offset + y * GridStore.CHUNK_SIZE + HALF_TILE, (byte) 0);
+                continue;
+            }
+
+            if (children.dirty[childSlot]) downsample(level - 1, childSlot);
+            byte[] childPixels = children.pixels(childSlot);
+            for (int y = 0; y < HALF_TILE; y++) {
+                int row = (y << 1) * GridStore.CHUNK_SIZE;
+                for (int x = 0; x < HALF_TILE; x++) {
+                    int i = row + (x << 1);
+                    pixels[offset + y * GridStore.CHUNK_SIZE + x] = majority(childPixels[i], childPixels[i + 1],
+                            childPixels[i + GridStore.CHUNK_SIZE], childPixels[i + GridStore.CHUNK_SIZE + 1]);
+                }
+            }
+        }
+        tiles.dirty[slot] = false;
+    }
+
+    /**
+     * @return The Color most of the four Grids have. Ties are broken in favour of Colors other than {@code 0},
+     * so sparse patterns stay visible when zoomed out.
+     */
+    private static byte majority(byte a, byte b, byte c, byte d) {
+        int scoreA = score(a, 1 + same(a, b) + same(a, c) + same(a, d));
+        int scoreB = score(b, 1 + same(b, a) + same(b, c) + same(b, d));
+        int scoreC = score(c, 1 + same(c, a) + same(c, b) + same(c, d));
+        int scoreD = score(d, 1 + same(d, a) + same(d, b) + same(d, c));
+
+        byte best = a;
+        int bestScore = scoreA;
+        if (scoreB > bestScore) {
+            best = b;
+            bestScore = scoreB;
+        }
+        if (scoreC > bestScore) {
+            best = c;
+            bestScore = scoreC;
+        }
+        return scoreD > bestScore ? d : best;
+    }
+
+    private static int same(byte a, byte b) {
+        return a == b ? 1 : 0;
+    }
+
+    private static int score(byte color, int count) {
+        return count * 2 + (color != 0 ? 1 : 0);
+    }
+
+    /**
+     * @param cells The Colors of a chunk's Grids.
+     * @return Whether every Grid of the chunk has Color {@code 0}.
+     */
+    private static boolean isBlank(byte[] cells) {
+        for (byte cell : cells) if (cell != 0) return false;
+        return true;
+    }
+
+    /**
+     * @return A blank tile.
+     */
+    private static BufferedImage createTile() {
+        return new BufferedImage(GridStore.CHUNK_SIZE, GridStore.CHUNK_SIZE, BufferedImage.TYPE_BYTE_INDEXED, PALETTE);
+    }
+
+    /**
+     * @param image The image of a tile.
+     * @return The pixels of the tile, indexed by {@code y * CHUNK_SIZE + x}.
+     */
+    private static byte[] pixels(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * @return The palette of the tiles, mapping every Color to {@link Palette#numToColor(int)}.
+     */
+    private static IndexColorModel createPalette() {
+        byte[] reds = new byte[256];
+        byte[] greens = new byte[256];
+        byte[] blues = new byte[256];
+        for (int color = 0; color < Ruleset.MAX_COLORS; color++) {
+            Color rgb = Palette.numToColor(color);
+            reds[color] = (byte) rgb.getRed();
+            greens[color] = (byte) rgb.getGreen();
+            blues[color] = (byte) rgb.getBlue();
+        }
+        return new IndexColorModel(8, 256, reds, greens, blues);
+    }
+
+    /**
+     * The tiles of one coarse level of the pyramid.
+     */
+    private static final class Level {
+        private final ChunkIndex index = new ChunkIndex();
+        private final List<BufferedImage> images = new ArrayList<>();
+        private long[] tileXs = new long[INITIAL_TILES];
+        private long[] tileYs = new long[INITIAL_TILES];
+        private boolean[] dirty = new boolean[INITIAL_TILES];
+        private int count;
+
+        /**
+         * Adds a blank tile.
+         *
+         * @param tileX The X coordinate of the tile in its level.
+         * @param tileY The Y coordinate of the tile in its level.
+         * @return The slot of the tile.
+         */
+        int add(long tileX, long tileY) {
+            if (count == tileXs.length) {
+                tileXs = Arrays.copyOf(tileXs, count * 2);
+                tileYs = Arrays.copyOf(tileYs, count * 2);
+                dirty = Arrays.copyOf(dirty, count * 2);
+            }
+            images.add(createTile());
+            tileXs[count] = tileX;
+            tileYs[count] = tileY;
+            index.put(tileX, tileY, count);
+            return count++;
+        }
+
+        /**
+         * @param slot The slot of the tile.
+         * @return The pixels of the tile, indexed by {@code y * CHUNK_SIZE + x}.
+         */
+        byte[] pixels(int slot) {
+            return GridRaster.pixels(images.get(slot));
+        }
+
+        void clear() {
+            index.clear();
+            images.clear();
+            tileXs = new long[INITIAL_TILES];
+            tileYs = new long[INITIAL_TILES];
+            dirty = new boolean[INITIAL_TILES];
+            count = 0;
+        }
+    }
+
+    private record TileKey(long tileX, long tileY) {}
+
+    /**
+     * The tiles of one fine level most recently drawn, evicting the least recently drawn one past its capacity.
+     * The image of the evicted tile is kept to render the next tile into.
+     */
+    private static final class TileCache extends LinkedHashMap<TileKey, BufferedImage> {
+        private transient BufferedImage spare;
+        private int capacity = CACHED_TILES;
+
+        TileCache() {
+            super(INITIAL_TILES, 0.75f, true);
+        }
+
+        /**
+         * @return The image of the last evicted tile, or {@code null} if there is none.
+         */
+        BufferedImage takeSpare() {
+            BufferedImage image = spare;
+            spare = null;
+            return image;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<TileKey, BufferedImage> eldest) {
+            if (size() <= capacity) return false;
+            if (eldest.getValue() != EMPTY) spare = eldest.getValue();
+            return true;
+        }
+    }
+}
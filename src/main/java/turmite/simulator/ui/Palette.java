@@ -0,0 +1,51 @@
+package turmite.simulator.ui;
+
+import java.awt.*;
+
+/**
+ * A class which maps the Colors of a Rule to Graphics usable Colors. This class cannot be instantiated,
+ * all its methods are static.
+ * <p>
+ * Rules only hold the numbers of their Colors, so the headless runners never load AWT, except to encode images.
+ */
+public class Palette {
+    private static final Color[] COLORS = createColors();
+
+    private Palette() {}
+
+    /**
+     * A Rule's "colors" are saved as integer values.
+     * This method returns Graphics usable Colors for the numbers a Rule can use.
+     *
+     * @param num The number to be converted, in the range {@code 0-255}.
+     * @return The Color associated with the number.
+     * @throws IllegalArgumentException If no Color is associated with the number.
+     */
+    public static Color numToColor(int num) {
+        if (num < 0 || num >= COLORS.length) throw new IllegalArgumentException("No Color found for value: " + num);
+        return COLORS[num];
+    }
+
+    /**
+     * The first three Colors are white, black and yellow. The rest are spread around the hue circle by the golden
+     * ratio, so neighbouring Colors never look alike, with the saturation and brightness cycling to tell apart hues
+     * that come back close to each other.
+     *
+     * @return The Color of every number a Grid can hold.
+     */
+    private static Color[] createColors() {
+        Color[] colors = new Color[256];
+        colors[0] = Color.WHITE;
+        colors[1] = Color.BLACK;
+        colors[2] = Color.YELLOW;
+
+        float hue = 0.55f;
+        for (int num = 3; num < colors.length; num++) {
+            hue = (hue + 0.618034f) % 1f;
+            float saturation = (num & 1) == 0 ? 0.85f : 0.6f;
+            float brightness = 0.95f - 0.2f * ((num >> 1) % 3);
+            colors[num] = Color.getHSBColor(hue, saturation, brightness);
+        }
+        return colors;
+    }
+}
@@ -1,31 +1,39 @@
 package turmite.simulator.ui;
 
-import turmite.simulator.TurmiteJFrame;
 import turmite.simulator.models.Direction;
 import turmite.simulator.models.Rule;
-import turmite.simulator.utils.FileHandler;
 import turmite.simulator.utils.Ruleset;
+import turmite.simulator.utils.RulesetLibrary;
 
 import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
 import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
 import java.util.List;
 
 /**
  * A class that manages Rule input, import and export.
+ * <p>
+ * The Rules are shown in a table with one row per Rule, so it scales up to {@code Ruleset.MAX_STATES} States
+ * and {@code Ruleset.MAX_COLORS} Colors. Only the visible rows are painted, and the dropdowns to edit a cell
+ * are shared by a whole column.
  */
-public class RuleInputPanel extends JPanel implements ActionListener {
+public class RuleInputPanel extends JPanel {
+    private static final int VISIBLE_RULES = 9;
+    private static final int COLUMN_WIDTH = 80;
+
     private final RuleSelectorComboBox ruleSelectorComboBox;
+    private final transient RulesetLibrary library;
     private final transient Ruleset ruleset = new Ruleset();
+    private final RuleTableModel ruleTableModel = new RuleTableModel();
+    private final JTable ruleTable = new JTable(ruleTableModel);
 
-    private boolean notSettingPanel = true;
-
-    public RuleInputPanel(String rulesetExt) {
+    public RuleInputPanel(RulesetLibrary library) {
         super();
-        ruleSelectorComboBox = new RuleSelectorComboBox(rulesetExt);
+        this.library = library;
+        ruleSelectorComboBox = new RuleSelectorComboBox(library);
         setupGUI();
         loadSelectedRuleset();
         setupEventListeners();
@@ -34,173 +42,110 @@ public class RuleInputPanel extends JPanel implements ActionListener {
     private void setupGUI() {
         setLayout(new GridBagLayout());
         GridBagConstraints constraints = new GridBagConstraints();
-        constraints.insets = new Insets(3, 4, 3, 4);
-
-        // Rule Input ComboBoxes
-        int col = 0;
-        for (int row = 1; row < Ruleset.MAX_RULES + 1; row++) {
-            addInputComboBox(Integer.class, constraints, row, col, false);
-            col += 2;
-
-            addInputComboBox(Integer.class, constraints, row, col, false);
-            col += 2;
-
-            addInputComboBox(Character.class, constraints, row, col, true);
-            col += 2;
-
-            addInputComboBox(Integer.class, constraints, row, col, true);
-            col += 2;
-
-            addInputComboBox(Integer.class, constraints, row, col, true);
-            col = 0;
-        }
-
-        // Separators
-        col = 1;
-        for (int row = 1; row < Ruleset.MAX_RULES + 1; row++) {
-            for (; col < 8; col += 2) {
-                constraints.gridx = col;
-                constraints.gridy = row;
-                add(new JLabel("-"), constraints);
-            }
-            col = 1;
-        }
 
         // Rule Selector ComboBox
-        constraints.weightx = 0;
-        constraints.weighty = 0;
         constraints.gridx = 0;
         constraints.gridy = 0;
-        constraints.gridwidth = Rule.RuleCells.values().length * 2 - 1;
-        constraints.insets.set(0, 50, 50, 50);
+        constraints.insets = new Insets(0, 50, 50, 50);
         add(ruleSelectorComboBox, constraints);
+
+        // Rule Table
+        ruleTable.getTableHeader().setReorderingAllowed(false);
+        ruleTable.setFillsViewportHeight(true);
+        ruleTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        ruleTable.setDefaultRenderer(Integer.class, new RuleCellRenderer());
+        setColumnEditor(Rule.RuleCells.TURN_DIR, Direction.getSquareGridTurnDirs().subList(0, Ruleset.SQUARE_GRID_MAX_TURN_DIRS).toArray(new Character[0]));
+        setColumnEditor(Rule.RuleCells.NEW_COLOR, numbersUpTo(Ruleset.MAX_COLORS));
+        setColumnEditor(Rule.RuleCells.NEW_STATE, numbersUpTo(Ruleset.MAX_STATES));
+        ruleTable.setPreferredScrollableViewportSize(new Dimension(
+                COLUMN_WIDTH * Rule.RuleCells.values().length, VISIBLE_RULES * ruleTable.getRowHeight()));
+
+        constraints.gridy = 1;
+        constraints.insets = new Insets(3, 4, 3, 4);
+        add(new JScrollPane(ruleTable), constraints);
     }
 
     /**
-     * Adds a new JComboBox of the desired type to the panel.
+     * Sets the dropdown used to edit every cell of a column.
      *
-     * @param type The type of the new JComboBox.
-     * @param constraints The GridBagConstraints to use.
-     * @param row The GridBagConstraints row to put the JComboBox in.
-     * @param col The GridBagConstraints column to put the JComboBox in.
-     * @param enabled Whether the new JComboBox is enabled.
+     * @param cell The cell of the column.
+     * @param items The values the cell can take.
      */
-    private <T> void addInputComboBox(T type, GridBagConstraints constraints, int row, int col, boolean enabled) {
-        if (type.equals(Integer.class)) {
-            JComboBox<Integer> cbI = new JComboBox<>();
-            cbI.setEnabled(enabled);
-            for (int s = 0; s < Ruleset.MAX_STATES; s++) cbI.addItem(s);
-            constraints.gridx = col;
-            constraints.gridy = row;
-            add(cbI, constraints);
-        } else if (type.equals(Character.class)) {
-            List<Character> turnDirs = Direction.getSquareGridTurnDirs();
-            JComboBox<Character> cbC = new JComboBox<>();
-            cbC.setEnabled(enabled);
-            for (int d = 0; d < Ruleset.SQUARE_GRID_MAX_TURN_DIRS; d++) cbC.addItem(turnDirs.get(d));
-            constraints.gridx = col;
-            constraints.gridy = row;
-            add(cbC, constraints);
-        }
+    private <T> void setColumnEditor(Rule.RuleCells cell, T[] items) {
+        JComboBox<T> comboBox = new JComboBox<>(items);
+        comboBox.setMaximumRowCount(16);
+        if (cell == Rule.RuleCells.NEW_COLOR) comboBox.setRenderer(new ColorListRenderer());
+        ruleTable.getColumnModel().getColumn(cell.ordinal()).setCellEditor(new DefaultCellEditor(comboBox));
+    }
+
+    /**
+     * @param count The number of values.
+     * @return The numbers from {@code 0} to {@code count - 1}.
+     */
+    private static Integer[] numbersUpTo(int count) {
+        Integer[] numbers = new Integer[count];
+        for (int i = 0; i < count; i++) numbers[i] = i;
+        return numbers;
     }
 
     private void setupEventListeners() {
         ruleSelectorComboBox.addActionListener(e -> loadSelectedRuleset());
-
-        String cmdStr = "%d-%s";
-        for (int row = 0; row < Ruleset.MAX_RULES; row++) {
-            JComboBox<Integer> cbI1 = getIntComboBox(row, Rule.RuleCells.CURR_STATE);
-            cbI1.setActionCommand(String.format(cmdStr, row, Rule.RuleCells.CURR_STATE));
-            cbI1.addActionListener(this);
-
-            JComboBox<Integer> cbI2 = getIntComboBox(row, Rule.RuleCells.CURR_COLOR);
-            cbI2.setActionCommand(String.format(cmdStr, row, Rule.RuleCells.CURR_COLOR));
-            cbI2.addActionListener(this);
-
-            JComboBox<Character> cbC = getCharComboBox(row, Rule.RuleCells.TURN_DIR);
-            cbC.setActionCommand(String.format(cmdStr, row, Rule.RuleCells.TURN_DIR));
-            cbC.addActionListener(this);
-
-            JComboBox<Integer> cbI3 = getIntComboBox(row, Rule.RuleCells.NEW_COLOR);
-            cbI3.setActionCommand(String.format(cmdStr, row, Rule.RuleCells.NEW_COLOR));
-            cbI3.addActionListener(this);
-
-            JComboBox<Integer> cbI4 = getIntComboBox(row, Rule.RuleCells.NEW_STATE);
-            cbI4.setActionCommand(String.format(cmdStr, row, Rule.RuleCells.NEW_STATE));
-            cbI4.addActionListener(this);
-        }
     }
 
     /**
-     * Loads the Ruleset file with the name selected in the RuleSelectorComboBox.
+     * Loads the Ruleset with the name selected in the RuleSelectorComboBox.
      * The Ruleset name cannot be {@code RuleSelectorComboBox.NEW_RULESET_STR}.
      */
     private void loadSelectedRuleset() {
         Object selected = ruleSelectorComboBox.getSelectedItem();
         if (selected != null) {
-            if (selected != RuleSelectorComboBox.NEW_RULESET_STR) readRulesetFromFile(selected + TurmiteJFrame.RULESET_EXT);
+            if (selected != RuleSelectorComboBox.NEW_RULESET_STR) loadRuleset(selected.toString());
             else if (ruleSelectorComboBox.getItemCount() == 1) loadRulesetIntoPanel();
         }
     }
 
     /**
-     * Reads the Ruleset file with the specified name.
+     * Loads the Ruleset with the specified name from the library.
+     * An invalid Ruleset is not loaded, and the previous selection is restored, but its file is kept.
      *
-     * @param fileName The name of the Ruleset file.
-     * @return Whether the read was successful.
+     * @param rulesetName The name of the Ruleset, without its extension.
+     * @return Whether the load was successful.
      */
-    public boolean readRulesetFromFile(String fileName) {
+    public boolean loadRuleset(String rulesetName) {
         try {
-            ruleset.readRulesetFromFile(fileName);
+            ruleset.loadRules(library.load(rulesetName));
             loadRulesetIntoPanel();
-            ruleSelectorComboBox.signalRuleRead(fileName.replace(TurmiteJFrame.RULESET_EXT, ""));
+            ruleSelectorComboBox.signalRuleRead(rulesetName);
             return true;
-        } catch (FileNotFoundException e) {
-            Dialogs.showErrorDialog(this, String.format("File not found: %s", fileName));
+        } catch (NoSuchFileException e) {
+            ruleSelectorComboBox.setSelectedItem(ruleSelectorComboBox.getPrevItem());
+            Dialogs.showErrorDialog(this, String.format("File not found: %s", e.getFile()));
+        } catch (IOException e) {
+            ruleSelectorComboBox.setSelectedItem(ruleSelectorComboBox.getPrevItem());
+            Dialogs.showErrorDialog(this, String.format("Error while reading %s: %s", rulesetName, e.getMessage()));
         } catch (IllegalArgumentException | Ruleset.InvalidRulesetException e) {
             ruleSelectorComboBox.setSelectedItem(ruleSelectorComboBox.getPrevItem());
-            try {
-                FileHandler.deleteFile(fileName);
-            } catch (IOException ex) {
-                Dialogs.showErrorDialog(this, ex.getMessage());
-            }
-            Dialogs.showErrorDialog(this, e.getMessage());
+            Dialogs.showErrorDialog(this, String.format("%s is not a valid Ruleset: %s", rulesetName, e.getMessage()));
         }
 
         return false;
     }
 
     /**
-     * Loads the loaded Ruleset into the Input Panel Dropdowns.
+     * Loads the loaded Ruleset into the Rule Table.
      */
     private void loadRulesetIntoPanel() {
-        notSettingPanel = false;
-
-        int neededRules = ruleset.getNumOfRulesNeeded();
-        for (int row = 0; row < neededRules; row++) {
-            JComboBox<Integer> cbI1 = getIntComboBox(row, Rule.RuleCells.CURR_STATE);
-            cbI1.setSelectedItem(ruleset.getRule(row).getCurrState());
-
-            JComboBox<Integer> cbI2 = getIntComboBox(row, Rule.RuleCells.CURR_COLOR);
-            cbI2.setSelectedItem(ruleset.getRule(row).getCurrColor());
-
-            JComboBox<Character> cbIC = getCharComboBox(row, Rule.RuleCells.TURN_DIR);
-            cbIC.setSelectedItem(Direction.getCharFromTurnDir(ruleset.getRule(row).getTurnDir()));
-            cbIC.setEnabled(true);
-
-            JComboBox<Integer> cbI3 = getIntComboBox(row, Rule.RuleCells.NEW_COLOR);
-            cbI3.setSelectedItem(ruleset.getRule(row).getNewColor());
-            cbI3.setEnabled(true);
-
-            JComboBox<Integer> cbI4 = getIntComboBox(row, Rule.RuleCells.NEW_STATE);
-            cbI4.setSelectedItem(ruleset.getRule(row).getNewState());
-            cbI4.setEnabled(true);
-        }
-
-        int diff = Ruleset.MAX_RULES - neededRules;
-        for (int row = diff - 1; row >= 0; row--) resetRow(Ruleset.MAX_RULES - row - 1);
+        ruleTableModel.fireTableDataChanged();
+    }
 
-        notSettingPanel = true;
+    /**
+     * Shows the Rules of the Ruleset again, after they were loaded from outside the panel, like from a checkpoint.
+     * The Ruleset is shown as a new one, as it may not match any file.
+     */
+    public void showRestoredRuleset() {
+        loadRulesetIntoPanel();
+        ruleSelectorComboBox.signalNewRuleset();
+        ruleSelectorComboBox.setSelectedItem(RuleSelectorComboBox.NEW_RULESET_STR);
     }
 
     /**
@@ -214,105 +159,128 @@ public class RuleInputPanel extends JPanel implements ActionListener {
         try {
             ruleset.changeRuleCell(ruleRow, cell, newValue);
             loadRulesetIntoPanel();
+            ruleSelectorComboBox.signalNewRuleset();
         } catch (IllegalArgumentException e) {
             Dialogs.showErrorDialog(this, e.getMessage());
         }
     }
 
     /**
-     * Get the JComboBox of type Integer which is for the cell of the given Rule.
-     *
-     * @param ruleNum The row of the Rule ranging from 0-{@code Ruleset.MAX_RULES}.
-     * @param cell The cell of the Rule to get.
-     * @return A JComboBox of type Integer which is for the cell of the given Rule.
-     *
-     * @throws IllegalArgumentException If the Rule cell is not of type integer, or the JComboBox returned
-     * would not be of type Integer.
+     * @return The Ruleset.
      */
-    // Using Rule.RuleCells insures that the returned JComboBox is of the desired type.
-    @SuppressWarnings("unchecked")
-    private JComboBox<Integer> getIntComboBox(int ruleNum, Rule.RuleCells cell) {
-        int idx = ruleNum * Rule.RuleCells.values().length + cell.ordinal();
-        Component component = getComponent(idx);
-        if (!(component instanceof JComboBox<?>) ||
-                cell != Rule.RuleCells.CURR_STATE && cell != Rule.RuleCells.CURR_COLOR &&
-                cell != Rule.RuleCells.NEW_COLOR && cell != Rule.RuleCells.NEW_STATE)
-            throw new IllegalArgumentException(String.format("The Component with index %d was not of type JComboBox<Integer>.", idx));
-
-        return (JComboBox<Integer>) component;
+    public Ruleset getRuleset() {
+        return ruleset;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        super.setEnabled(enabled);
+        ruleSelectorComboBox.setEnabled(enabled);
+        if (!enabled && ruleTable.isEditing()) ruleTable.getCellEditor().cancelCellEditing();
+        ruleTable.setEnabled(enabled);
     }
 
     /**
-     * Get the JComboBox of type Character which is for the cell of the given Rule.
-     *
-     * @param ruleNum The row of the Rule ranging from 0-{@code Ruleset.MAX_RULES}.
-     * @param cell The cell of the Rule to get.
-     * @return A JComboBox of type Character which is for the cell of the given Rule.
-     *
-     * @throws IllegalArgumentException If the Rule cell is not of type char, or the JComboBox returned
-     * would not be of type Character.
+     * The Rules of the Ruleset, one row per Rule and one column per Rule cell.
+     * Only the turn, the new Color and the new State can be edited, the other cells follow from the row.
      */
-    // Using Rule.RuleCells insures that the returned JComboBox is of the desired type.
-    @SuppressWarnings({"unchecked", "SameParameterValue"})
-    private JComboBox<Character> getCharComboBox(int ruleNum, Rule.RuleCells cell) {
-        int idx = ruleNum * Rule.RuleCells.values().length + cell.ordinal();
-        Component component = getComponent(idx);
-        if (!(component instanceof JComboBox<?>) || cell != Rule.RuleCells.TURN_DIR)
-            throw new IllegalArgumentException(String.format("The Component with index %d was not of type JComboBox<Character>.", idx));
-
-        return (JComboBox<Character>) component;
+    private class RuleTableModel extends AbstractTableModel {
+        private final List<String> columnNames = Rule.RuleCells.getRuleCellNames();
+
+        @Override
+        public int getRowCount() {
+            return ruleset.getRules().size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columnNames.size();
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columnNames.get(column);
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column == Rule.RuleCells.TURN_DIR.ordinal() ? Character.class : Integer.class;
+        }
+
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return isEnabled() && column >= Rule.RuleCells.TURN_DIR.ordinal();
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            Rule rule = ruleset.getRule(row);
+            return switch (Rule.RuleCells.values()[column]) {
+                case CURR_STATE -> rule.getCurrState();
+                case CURR_COLOR -> rule.getCurrColor();
+                case TURN_DIR -> Direction.getCharFromTurnDir(rule.getTurnDir());
+                case NEW_COLOR -> rule.getNewColor();
+                case NEW_STATE -> rule.getNewState();
+            };
+        }
+
+        @Override
+        public void setValueAt(Object value, int row, int column) {
+            if (value == null || value.equals(getValueAt(row, column))) return;
+            handleRuleChange(row, Rule.RuleCells.values()[column], value);
+        }
     }
 
     /**
-     * Sets the selected item of the JComboBoxes in the row to the first one,
-     * and disables them.
-     *
-     * @param ruleRow The row of the Rule ranging from 0-{@code Ruleset.MAX_RULES}.
+     * Shows Colors with a swatch of their Color next to their number.
      */
-    private void resetRow(int ruleRow) {
-        getIntComboBox(ruleRow, Rule.RuleCells.CURR_STATE).setSelectedIndex(0);
-        getIntComboBox(ruleRow, Rule.RuleCells.CURR_COLOR).setSelectedIndex(0);
-        getCharComboBox(ruleRow, Rule.RuleCells.TURN_DIR).setSelectedIndex(0);
-        getIntComboBox(ruleRow, Rule.RuleCells.NEW_COLOR).setSelectedIndex(0);
-        getIntComboBox(ruleRow, Rule.RuleCells.NEW_STATE).setSelectedIndex(0);
-
-        getCharComboBox(ruleRow, Rule.RuleCells.TURN_DIR).setEnabled(false);
-        getIntComboBox(ruleRow, Rule.RuleCells.NEW_COLOR).setEnabled(false);
-        getIntComboBox(ruleRow, Rule.RuleCells.NEW_STATE).setEnabled(false);
+    private static class RuleCellRenderer extends DefaultTableCellRenderer {
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+            super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
+            boolean isColor = column == Rule.RuleCells.CURR_COLOR.ordinal() || column == Rule.RuleCells.NEW_COLOR.ordinal();
+            setIcon(isColor ? new ColorSwatch((int) value) : null);
+            setHorizontalAlignment(LEADING);
+            return this;
+        }
     }
 
     /**
-     * @return The Ruleset.
+     * Shows the numbers of the Color dropdown with a swatch of their Color.
      */
-    public Ruleset getRuleset() {
-        return ruleset;
+    private static class ColorListRenderer extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            if (value instanceof Integer color) setIcon(new ColorSwatch(color));
+            return this;
+        }
     }
 
     /**
-     * Processes when a Rule cell is modified with a Rule Input JComboBox.
+     * A small square of a Color, outlined so white stays visible.
      *
-     * @param e The event to be processed.
+     * @param color The number of the Color.
      */
-    @Override
-    public void actionPerformed(ActionEvent e) {
-        if (notSettingPanel) {
-            int ruleRow = Integer.parseInt(e.getActionCommand().split("-")[0]);
-            Rule.RuleCells ruleCell = Rule.RuleCells.valueOf(e.getActionCommand().split("-")[1]);
-            handleRuleChange(ruleRow, ruleCell, ((JComboBox<?>) e.getSource()).getSelectedItem());
-            ruleSelectorComboBox.signalNewRuleset();
+    private record ColorSwatch(int color) implements Icon {
+        private static final int SIZE = 10;
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            g.setColor(Palette.numToColor(color));
+            g.fillRect(x, y, SIZE, SIZE);
+            g.setColor(Color.GRAY);
+            g.drawRect(x, y, SIZE - 1, SIZE - 1);
         }
-    }
 
-    @Override
-    public void setEnabled(boolean enabled) {
-        super.setEnabled(enabled);
-        ruleSelectorComboBox.setEnabled(enabled);
+        @Override
+        public int getIconWidth() {
+            return SIZE;
+        }
 
-        int numOfRulesToChange = enabled ? ruleset.getNumOfRulesNeeded() : Ruleset.MAX_RULES;
-        for (int row = 0; row < numOfRulesToChange; row++) {
-            getCharComboBox(row, Rule.RuleCells.TURN_DIR).setEnabled(enabled);
-            getIntComboBox(row, Rule.RuleCells.NEW_COLOR).setEnabled(enabled);
-            getIntComboBox(row, Rule.RuleCells.NEW_STATE).setEnabled(enabled);
+        @Override
+        public int getIconHeight() {
+            return SIZE;
         }
     }
 }
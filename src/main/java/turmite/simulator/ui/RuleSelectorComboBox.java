@@ -1,21 +1,30 @@
 package turmite.simulator.ui;
 
-import turmite.simulator.TurmiteJFrame;
+import turmite.simulator.utils.RulesetLibrary;
 
 import javax.swing.*;
-import java.io.File;
+import java.util.List;
 
 /**
  * A JComboBox of type String that manages the names of loaded Rulesets.
+ * <p>
+ * The names come from a {@link RulesetLibrary}, and are swapped in as a whole whenever the library changes.
+ * Rulesets are only read once they are selected.
  */
 public class RuleSelectorComboBox extends JComboBox<String> {
     public static final String NEW_RULESET_STR = "NewRuleset";
 
+    private final transient RulesetLibrary library;
     private transient Object prevItem = null;
 
-    public RuleSelectorComboBox(String ext) {
+    public RuleSelectorComboBox(RulesetLibrary library) {
         super();
-        readFileNamesIntoDropdown(ext);
+        this.library = library;
+        // Without a prototype, the popup measures every name to size itself.
+        setPrototypeDisplayValue("WWWWWWWWWWWWWWWWWWWW");
+        setMaximumRowCount(20);
+        readNamesIntoDropdown();
+        library.addChangeListener(() -> SwingUtilities.invokeLater(this::readNamesIntoDropdown));
     }
 
     /**
@@ -38,33 +47,31 @@ public class RuleSelectorComboBox extends JComboBox<String> {
     }
 
     /**
-     * @return Whether the dropdown does not contain NEW_RULESET_STR;
+     * @return Whether the dropdown does not contain the item.
      */
     private boolean notContainsItem(String item) {
-        for (int i = 0; i < getItemCount(); i++) if (this.getItemAt(i).equals(item)) return false;
-        return true;
+        return ((DefaultComboBoxModel<String>) getModel()).getIndexOf(item) < 0;
     }
 
     /**
-     * Reads the name of files which have an extension of {@code fileExt}.
-     * The rule name cannot be NEW_RULESET_STR.
-     *
-     * @param fileExt The accepted extension of the files.
+     * Replaces the items with the names in the library, keeping the selected one.
+     * If the selected Ruleset was modified, or its file was removed, it is kept as NEW_RULESET_STR.
      */
-    private void readFileNamesIntoDropdown(String fileExt) {
-        File rulesetDir = new File(TurmiteJFrame.RULESET_DIR);
-        File[] files = rulesetDir.listFiles((dir, name) -> name.endsWith(fileExt));
+    private void readNamesIntoDropdown() {
+        List<String> names = library.getNames();
+        Object selected = getSelectedItem();
+        boolean keepNewRuleset = NEW_RULESET_STR.equals(selected) || selected != null && !names.contains(selected.toString());
 
-        if (files != null && files.length > 0) {
-            for (File ruleFile : files) {
-                String ruleName = ruleFile.getName().replace(fileExt, "");
-                if (!ruleName.equals(NEW_RULESET_STR)) addItem(ruleName);
-                else Dialogs.showInfoDialog(null, "Rule name cannot be NewRuleset.");
-            }
-        } else {
-            addItem(NEW_RULESET_STR);
-            setSelectedItem(NEW_RULESET_STR);
+        DefaultComboBoxModel<String> model = new DefaultComboBoxModel<>(names.toArray(new String[0]));
+        if (keepNewRuleset || names.isEmpty()) {
+            model.addElement(NEW_RULESET_STR);
+            model.setSelectedItem(NEW_RULESET_STR);
+        } else if (selected != null) {
+            model.setSelectedItem(selected);
         }
+
+        // The selection is set before the model, so no Ruleset is reloaded.
+        setModel(model);
     }
 
     public Object getPrevItem() {
@@ -0,0 +1,53 @@
+package turmite.simulator.ui;
+
+import javax.swing.*;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ * A JSlider that sets the speed of the simulation, in steps per second, on a logarithmic scale.
+ * Every {@code TICKS_PER_DECADE} ticks multiply the speed by ten, and the last tick runs the simulation flat out.
+ */
+public class SpeedSlider extends JSlider {
+    public static final int TICKS_PER_DECADE = 10;
+    public static final int DECADES = 7;
+
+    private static final int MAX_TICK = (DECADES + 1) * TICKS_PER_DECADE;
+    private static final String[] DECADE_LABELS = {"1", "10", "100", "1k", "10k", "100k", "1M", "10M"};
+
+    /**
+     * @param stepsPerSecond The speed to start with.
+     */
+    public SpeedSlider(double stepsPerSecond) {
+        super(0, MAX_TICK, toTick(stepsPerSecond));
+        setPaintTrack(true);
+        setPaintTicks(true);
+        setPaintLabels(true);
+        setMajorTickSpacing(TICKS_PER_DECADE);
+        setMinorTickSpacing(TICKS_PER_DECADE / 2);
+        Map<Integer, JComponent> customLabelTable = new HashMap<>();
+        for (int decade = 0; decade <= DECADES; decade++)
+            customLabelTable.put(decade * TICKS_PER_DECADE, new JLabel(DECADE_LABELS[decade]));
+        customLabelTable.put(MAX_TICK, new JLabel("Max"));
+        setLabelTable(new Hashtable<>(customLabelTable));
+    }
+
+    /**
+     * @return The selected speed in steps per second, or {@code Double.POSITIVE_INFINITY} to run flat out.
+     */
+    public double getStepsPerSecond() {
+        if (getValue() == MAX_TICK) return Double.POSITIVE_INFINITY;
+        return Math.pow(10, (double) getValue() / TICKS_PER_DECADE);
+    }
+
+    /**
+     * @param stepsPerSecond The speed in steps per second.
+     * @return The tick closest to the speed.
+     */
+    private static int toTick(double stepsPerSecond) {
+        if (Double.isInfinite(stepsPerSecond)) return MAX_TICK;
+        long tick = Math.round(Math.log10(Math.max(1, stepsPerSecond)) * TICKS_PER_DECADE);
+        return (int) Math.min(tick, MAX_TICK - 1);
+    }
+}
@@ -1,39 +1,53 @@
 package turmite.simulator.ui;
 
-import turmite.simulator.models.Grid;
-import turmite.simulator.models.Rule;
+import turmite.simulator.SimulationEngine;
+import turmite.simulator.SimulationSnapshot;
 import turmite.simulator.models.Turmite;
+import turmite.simulator.utils.SimulationMetrics;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ConcurrentModificationException;
-import java.util.HashMap;
-import java.util.Map;
+import java.awt.geom.Ellipse2D;
 
 /**
- * A class that represents a Square Grid Panel with a Turmite.
+ * A class that represents a Square Grid Panel with a Turmite. The panel is only a viewer
+ * of a {@link SimulationEngine}, it does not step the simulation. It paints the latest {@link SimulationSnapshot}
+ * of the engine, so every frame shows the simulation at one step, and painting never holds up stepping.
+ * <p>
+ * Grid coordinates are turned into pixels by a {@link ViewTransform}, which only ever works on positions relative
+ * to the view, so the panel shows Turmites correctly however far they have travelled.
+ * <p>
+ * Repaint requests and paint durations are recorded in {@link SimulationMetrics}. Pressing F3 toggles an overlay
+ * that shows the metrics.
  */
 public class SquareGridPanel extends JPanel {
     private static final double DEFAULT_ZOOM = 2;
+    private static final int GRID_UNITS = 8;
 
-    private final Map<Grid, Integer> grids = new HashMap<>();
-    private final transient Turmite turmite;
+    private static final String TOGGLE_OVERLAY_ACTION = "toggleMetricsOverlay";
+    private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 160);
 
-    private double zoom = DEFAULT_ZOOM;
+    private final transient SimulationEngine engine;
+    private final transient SimulationMetrics metrics;
+    private final transient GridRaster raster;
+    private transient SimulationSnapshot snapshot;
+    private boolean metricsOverlayVisible = false;
+
+    private final ViewTransform view = new ViewTransform(DEFAULT_ZOOM * GRID_UNITS);
     private double lastMouseX = 0;
     private double lastMouseY = 0;
-    private double offsetX = 0;
-    private double offsetY = 0;
-
-    private final int gridSize = (int)(zoom * 4);
 
-    private final int turmitePosModifier = (int)zoom;
-    private final int turmiteSize = (int)(zoom * 2);
+    public SquareGridPanel(SimulationEngine engine) {
+        this(engine, new SimulationMetrics(engine));
+    }
 
-    public SquareGridPanel(RuleInputPanel ruleInputPanel) {
+    public SquareGridPanel(SimulationEngine engine, SimulationMetrics metrics) {
         super();
-        turmite = new Turmite(new Grid(0, 0, gridSize), ruleInputPanel.getRuleset());
+        this.engine = engine;
+        this.metrics = metrics;
+        this.raster = new GridRaster(engine.getGridStore(), engine);
+        engine.publishSnapshot();
         setupEventListeners();
     }
 
@@ -46,6 +60,11 @@ public class SquareGridPanel extends JPanel {
                 lastMouseX = e.getX();
                 lastMouseY = e.getY();
             }
+
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (SwingUtilities.isRightMouseButton(e)) toggleTurmiteAt(e);
+            }
         });
 
         addMouseMotionListener(new MouseMotionAdapter() {
@@ -54,6 +73,35 @@ public class SquareGridPanel extends JPanel {
                 calculatePan(e);
             }
         });
+
+        getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0), TOGGLE_OVERLAY_ACTION);
+        getActionMap().put(TOGGLE_OVERLAY_ACTION, new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setMetricsOverlayVisible(!metricsOverlayVisible);
+            }
+        });
+    }
+
+    /**
+     * Places a Turmite on the Grid under the mouse pointer, using the first Turmite's Ruleset.
+     * If a placed Turmite already starts from that Grid, it is removed instead.
+     *
+     * @param e The MouseEvent data.
+     */
+    private void toggleTurmiteAt(MouseEvent e) {
+        long x = view.toWorldX(e.getX());
+        long y = view.toWorldY(e.getY());
+
+        for (Turmite turmite : engine.getTurmites()) {
+            if (turmite.getStartX() == x && turmite.getStartY() == y && engine.removeTurmite(turmite)) {
+                repaint();
+                return;
+            }
+        }
+
+        engine.addTurmite(engine.getTurmite().getRuleset(), x, y, 0);
+        repaint();
     }
 
     /**
@@ -65,8 +113,7 @@ public class SquareGridPanel extends JPanel {
         int gridPanelMouseX = e.getX();
         int gridPanelMouseY = e.getY();
 
-        offsetX += gridPanelMouseX - lastMouseX;
-        offsetY += gridPanelMouseY - lastMouseY;
+        view.pan(gridPanelMouseX - lastMouseX, gridPanelMouseY - lastMouseY);
 
         lastMouseX = gridPanelMouseX;
         lastMouseY = gridPanelMouseY;
@@ -81,94 +128,106 @@ public class SquareGridPanel extends JPanel {
      * @param e The MouseWheelEvent data.
      */
     private void calculateZoom(MouseWheelEvent e) {
-        // Calculate zoom
-        double prevZoom = zoom;
         double direction = (e.getWheelRotation() < 0) ? 1.1 : 0.9;
-        zoom *= direction;
-
-        // Calculate new offsets, so the grid under the cursor before zooming stays under it after zooming.
-        int gridPanelMouseX = e.getX();
-        int gridPanelMouseY = e.getY();
-
-        double gridWorldX = (gridPanelMouseX - offsetX) / prevZoom;
-        double gridWorldY = (gridPanelMouseY - offsetY) / prevZoom;
-
-        double newGridPanelMouseX = gridWorldX * zoom + offsetX;
-        double newGridMousePanelY = gridWorldY * zoom + offsetY;
-
-        offsetX -= newGridPanelMouseX - gridPanelMouseX;
-        offsetY -= newGridMousePanelY - gridPanelMouseY;
-
+        view.zoomAt(direction, e.getX(), e.getY());
         repaint();
     }
 
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+        // Called by the JPanel constructor, before the metrics are set.
+        if (metrics != null) metrics.recordRepaintRequest();
+        super.repaint(tm, x, y, width, height);
+    }
+
     @Override
     public void paint(Graphics g) {
+        long paintStart = System.nanoTime();
         super.paint(g);
-        Graphics2D g2 = (Graphics2D) g;
-
-        // Pan + Zoom
-        g2.translate(offsetX, offsetY);
-        g2.scale(zoom, zoom);
+        Graphics2D g2 = (Graphics2D) g.create();
 
-        try {
-            for (Map.Entry<Grid, Integer> entry : grids.entrySet()) {
-                g2.setColor(Rule.numToColor(entry.getValue()));
-                Grid grid = entry.getKey();
-                g2.fillRect(grid.getX(), grid.getY(), gridSize, gridSize);
-            }
-        } catch (ConcurrentModificationException ignored) {
-            // Painting and modifying the map at the same time can throw this,
-            // but no actual error happens in either methods.
+        SimulationSnapshot latest = engine.takeSnapshot();
+        if (latest != null) {
+            raster.update(latest);
+            snapshot = latest;
         }
+        // Tiles the raster had no time to render this frame are rendered on the next one.
+        if (!raster.paint(g2, view, getWidth(), getHeight())) repaint();
 
+        // Turmites are drawn as a dot half the size of their Grid, in its middle.
+        double pixelsPerCell = view.getPixelsPerCell();
         g2.setColor(Color.red);
-        g2.fillOval(turmite.getX() + turmitePosModifier, turmite.getY() + turmitePosModifier, turmiteSize, turmiteSize);
+        for (int i = 0; snapshot != null && i < snapshot.getTurmiteCount(); i++) {
+            g2.fill(new Ellipse2D.Double(view.toScreenX(snapshot.getTurmiteX(i)) + pixelsPerCell / 4,
+                    view.toScreenY(snapshot.getTurmiteY(i)) + pixelsPerCell / 4, pixelsPerCell / 2, pixelsPerCell / 2));
+        }
 
         g2.dispose();
+
+        if (metricsOverlayVisible) paintMetricsOverlay(g.create());
+        metrics.recordPaint(System.nanoTime() - paintStart);
     }
 
-    /*
-     * Simulation Methods
+    /**
+     * Paints the metrics in the top left corner of the panel.
+     *
+     * @param g The Graphics to paint with, it is disposed afterwards.
      */
+    private void paintMetricsOverlay(Graphics g) {
+        String[] lines = {
+                String.format("Steps: %,d (%,.0f/s)", metrics.getStepCount(), metrics.getStepsPerSecond()),
+                String.format("Paint: p50 %.2f ms, p90 %.2f ms, p99 %.2f ms", metrics.getPaintMillisP50(), metrics.getPaintMillisP90(), metrics.getPaintMillisP99()),
+                String.format("Repaints: %,d requested, %,d painted", metrics.getRepaintRequests(), metrics.getPaints()),
+                String.format("Cells: %,d in %,d chunks, %.1f B/cell", metrics.getColoredCells(), metrics.getChunkCount(), metrics.getEstimatedBytesPerCell()),
+                String.format("Target: %,.0f steps/s, lag %.2f ms", metrics.getTargetStepsPerSecond(), metrics.getStepLagMillis())
+        };
+
+        FontMetrics fontMetrics = g.getFontMetrics();
+        int lineHeight = fontMetrics.getHeight();
+        int width = 0;
+        for (String line : lines) width = Math.max(width, fontMetrics.stringWidth(line));
+
+        g.setColor(OVERLAY_BACKGROUND);
+        g.fillRect(0, 0, width + 10, lines.length * lineHeight + 10);
+        g.setColor(Color.WHITE);
+        for (int i = 0; i < lines.length; i++) g.drawString(lines[i], 5, 5 + fontMetrics.getAscent() + i * lineHeight);
+        g.dispose();
+    }
 
     /**
-     * Paints the Grid to the Color based on the Turmite's Ruleset, and moves it.
+     * Shows or hides the metrics overlay.
+     *
+     * @param visible Whether the overlay is shown.
      */
-    public void stepSimulation() {
-        Grid currTurmiteGrid = turmite.getGrid();
-        int gridColor = grids.getOrDefault(currTurmiteGrid, 0);
-
-        setColorAt(new Grid(currTurmiteGrid), turmite.calculateNextColor(gridColor));
-        turmite.move(gridColor);
+    public void setMetricsOverlayVisible(boolean visible) {
+        metricsOverlayVisible = visible;
+        repaint();
     }
 
     /**
-     * Colors the Grid with the given Color.
+     * Sets the zoom of the panel. The Grid at the top left corner stays where it is.
      *
-     * @param grid The grid to color.
-     * @param color The color to use.
+     * @param zoom The new zoom, {@code 1} being {@value #GRID_UNITS} pixels per Grid.
      */
-    private void setColorAt(Grid grid, int color) {
-        grids.put(grid, color);
+    public void setZoom(double zoom) {
+        view.setPixelsPerCell(zoom * GRID_UNITS);
+        repaint();
     }
 
     /**
-     * Centers the panel on.
+     * Centers the panel on the Grid the first Turmite starts from.
      */
     public void centerMap() {
-        offsetX = ((double) getWidth() / 2) - (gridSize * 1.5);
-        offsetY = ((double) getHeight() / 2) - (gridSize * 1.5);
+        Turmite turmite = engine.getTurmite();
+        view.centerOn(turmite.getStartX(), turmite.getStartY(), getWidth() / 2.0, getHeight() / 2.0);
     }
 
     /**
-     * Resets the panel. The Turmite and panel zoom are reset, all grids are cleared and the map is centered.
+     * Resets the panel. The panel zoom is reset and the map is centered.
      */
     public void reset() {
-        grids.clear();
-        turmite.reset();
+        view.setPixelsPerCell(DEFAULT_ZOOM * GRID_UNITS);
         centerMap();
-        zoom = DEFAULT_ZOOM;
         repaint();
     }
 }
@@ -0,0 +1,126 @@
+package turmite.simulator.ui;
+
+/**
+ * The transform between the 64-bit Grid coordinates of the world and the pixels of a panel.
+ * <p>
+ * The view is anchored at a Grid, the origin, which is kept at or just outside the top left corner of the panel.
+ * Screen positions are only computed relative to the origin, so the {@code double} math always works on small
+ * numbers, and the view stays exact however far from {@code (0, 0)} a Turmite has travelled.
+ */
+public final class ViewTransform {
+    private long originX;
+    private long originY;
+    private double offsetX;
+    private double offsetY;
+    private double pixelsPerCell;
+
+    /**
+     * @param pixelsPerCell The size of one Grid on the screen, in pixels.
+     */
+    public ViewTransform(double pixelsPerCell) {
+        this.pixelsPerCell = pixelsPerCell;
+    }
+
+    /**
+     * @return The size of one Grid on the screen, in pixels.
+     */
+    public double getPixelsPerCell() {
+        return pixelsPerCell;
+    }
+
+    /**
+     * Changes the size of the Grids, keeping the origin where it is on the screen.
+     *
+     * @param pixelsPerCell The new size of one Grid on the screen, in pixels.
+     */
+    public void setPixelsPerCell(double pixelsPerCell) {
+        this.pixelsPerCell = pixelsPerCell;
+        normalize();
+    }
+
+    /**
+     * @param x The X coordinate of a Grid.
+     * @return The X coordinate of the Grid's left edge on the screen.
+     */
+    public double toScreenX(long x) {
+        return (x - originX) * pixelsPerCell + offsetX;
+    }
+
+    /**
+     * @param y The Y coordinate of a Grid.
+     * @return The Y coordinate of the Grid's top edge on the screen.
+     */
+    public double toScreenY(long y) {
+        return (y - originY) * pixelsPerCell + offsetY;
+    }
+
+    /**
+     * @param screenX An X coordinate on the screen.
+     * @return The X coordinate of the Grid under it.
+     */
+    public long toWorldX(double screenX) {
+        return originX + (long) Math.floor((screenX - offsetX) / pixelsPerCell);
+    }
+
+    /**
+     * @param screenY A Y coordinate on the screen.
+     * @return The Y coordinate of the Grid under it.
+     */
+    public long toWorldY(double screenY) {
+        return originY + (long) Math.floor((screenY - offsetY) / pixelsPerCell);
+    }
+
+    /**
+     * Moves the view by the given number of pixels.
+     *
+     * @param dx The movement along the X axis, in pixels.
+     * @param dy The movement along the Y axis, in pixels.
+     */
+    public void pan(double dx, double dy) {
+        offsetX += dx;
+        offsetY += dy;
+        normalize();
+    }
+
+    /**
+     * Scales the Grids, keeping the point under the given screen position where it is.
+     *
+     * @param factor The factor to scale the Grids by.
+     * @param screenX The X coordinate of the fixed point on the screen.
+     * @param screenY The Y coordinate of the fixed point on the screen.
+     */
+    public void zoomAt(double factor, double screenX, double screenY) {
+        offsetX = screenX - (screenX - offsetX) * factor;
+        offsetY = screenY - (screenY - offsetY) * factor;
+        pixelsPerCell *= factor;
+        normalize();
+    }
+
+    /**
+     * Puts the center of a Grid at the given screen position.
+     *
+     * @param x The X coordinate of the Grid.
+     * @param y The Y coordinate of the Grid.
+     * @param screenX The X coordinate on the screen.
+     * @param screenY The Y coordinate on the screen.
+     */
+    public void centerOn(long x, long y, double screenX, double screenY) {
+        originX = x;
+        originY = y;
+        offsetX = screenX - pixelsPerCell / 2;
+        offsetY = screenY - pixelsPerCell / 2;
+        normalize();
+    }
+
+    /**
+     * Moves the origin to the Grid at the top left corner of the panel, so the offsets stay within one Grid.
+     */
+    private void normalize() {
+        long cellsX = (long) Math.ceil(offsetX / pixelsPerCell);
+        long cellsY = (long) Math.ceil(offsetY / pixelsPerCell);
+        originX -= cellsX;
+        originY -= cellsY;
+        offsetX -= cellsX * pixelsPerCell;
+        offsetY -= cellsY * pixelsPerCell;
+    }
+}
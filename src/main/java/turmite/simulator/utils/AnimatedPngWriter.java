@@ -0,0 +1,169 @@
+package turmite.simulator.utils;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * An APNG encoder for palette images that is fed one frame at a time, and every frame one row at a time.
+ * Frames are written out as they come, like {@link IndexedPngWriter} writes rows, so memory does not grow
+ * with the number of frames.
+ * <p>
+ * The first frame covers the whole image. Every later frame only covers the region that changed since
+ * the frame before it, and is drawn over it.
+ */
+public class AnimatedPngWriter implements Closeable {
+    private static final int DISPOSE_OP_NONE = 0;
+    private static final int BLEND_OP_SOURCE = 0;
+    private static final int MAX_DELAY_MILLIS = 0xFFFF;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final int numOfFrames;
+    private final int bitDepth;
+    private final Deflater deflater = new Deflater();
+
+    private int sequence;
+    private int framesWritten;
+    private int frameWidth;
+    private int frameHeight;
+    private int rowsWritten;
+    private byte[] packedRow;
+    private DeflaterOutputStream pixels;
+
+    /**
+     * Writes the header, the animation control and the palette of the image. The stream is closed with the writer.
+     *
+     * @param out The stream to write the APNG into.
+     * @param width The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @param palette The RGB value of every palette index, at most {@code 256}.
+     * @param numOfFrames The number of frames that will be written.
+     * @throws IOException If the stream cannot be written.
+     */
+    public AnimatedPngWriter(OutputStream out, int width, int height, int[] palette, int numOfFrames) throws IOException {
+        if (numOfFrames < 1) throw new IllegalArgumentException("An animation needs at least one frame (got " + numOfFrames + ").");
+
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.numOfFrames = numOfFrames;
+        this.bitDepth = PngEncoding.bitDepthFor(palette.length);
+
+        PngEncoding.writeHeader(this.out, width, height, bitDepth, palette);
+
+        // Number of frames, then number of plays, 0 looping forever.
+        byte[] control = new byte[8];
+        PngEncoding.writeInt(control, 0, numOfFrames);
+        PngEncoding.writeChunk(this.out, "acTL", control, control.length);
+    }
+
+    /**
+     * Starts the next frame. The first frame must cover the whole image.
+     *
+     * @param x The X coordinate of the frame's region, in pixels.
+     * @param y The Y coordinate of the frame's region, in pixels.
+     * @param regionWidth The width of the frame's region, in pixels.
+     * @param regionHeight The height of the frame's region, in pixels.
+     * @param delayMillis How long the frame is shown, at most {@code 65535} milliseconds.
+     * @throws IOException If the stream cannot be written.
+     * @throws IllegalStateException If the previous frame is not finished, or every frame is already written.
+     */
+    public void beginFrame(int x, int y, int regionWidth, int regionHeight, int delayMillis) throws IOException {
+        if (pixels != null) throw new IllegalStateException("The previous frame is not finished.");
+        if (framesWritten == numOfFrames) throw new IllegalStateException("Every frame of the animation is already written.");
+        if (framesWritten == 0 && (x != 0 || y != 0 || regionWidth != width || regionHeight != height))
+            throw new IllegalArgumentException("The first frame must cover the whole image.");
+        if (x < 0 || y < 0 || regionWidth < 1 || regionHeight < 1 || (long) x + regionWidth > width || (long) y + regionHeight > height)
+            throw new IllegalArgumentException(String.format("The region %d x %d at (%d, %d) is outside the image.", regionWidth, regionHeight, x, y));
+
+        byte[] control = new byte[26];
+        PngEncoding.writeInt(control, 0, sequence++);
+        PngEncoding.writeInt(control, 4, regionWidth);
+        PngEncoding.writeInt(control, 8, regionHeight);
+        PngEncoding.writeInt(control, 12, x);
+        PngEncoding.writeInt(control, 16, y);
+        PngEncoding.writeShort(control, 20, Math.min(delayMillis, MAX_DELAY_MILLIS));
+        PngEncoding.writeShort(control, 22, 1000);
+        control[24] = DISPOSE_OP_NONE;
+        control[25] = BLEND_OP_SOURCE;
+        PngEncoding.writeChunk(out, "fcTL", control, control.length);
+
+        frameWidth = regionWidth;
+        frameHeight = regionHeight;
+        rowsWritten = 0;
+        packedRow = PngEncoding.newPackedRow(regionWidth, bitDepth);
+        deflater.reset();
+
+        // The first frame is the default image, later frames are prefixed by their sequence number.
+        boolean defaultImage = framesWritten == 0;
+        pixels = new DeflaterOutputStream(new PngEncoding.ChunkOutputStream(defaultImage ? 0 : 4, (data, length) -> {
+            if (defaultImage) {
+                PngEncoding.writeChunk(out, "IDAT", data, length);
+            } else {
+                PngEncoding.writeInt(data, 0, sequence++);
+                PngEncoding.writeChunk(out, "fdAT", data, length);
+            }
+        }), deflater, PngEncoding.DATA_CHUNK_SIZE);
+    }
+
+    /**
+     * Writes the next row of the current frame, from the top of its region.
+     *
+     * @param indices The palette index of every pixel of the row, at least as long as the region is wide.
+     * @throws IOException If the stream cannot be written.
+     * @throws IllegalStateException If no frame is started, or every row of the frame is already written.
+     */
+    public void writeRow(byte[] indices) throws IOException {
+        if (pixels == null) throw new IllegalStateException("No frame is started.");
+        if (rowsWritten == frameHeight) throw new IllegalStateException("Every row of the frame is already written.");
+
+        PngEncoding.packRow(indices, frameWidth, bitDepth, packedRow);
+        pixels.write(packedRow);
+        rowsWritten++;
+    }
+
+    /**
+     * Finishes the current frame.
+     *
+     * @throws IOException If not every row of the frame was written, or the stream cannot be written.
+     */
+    public void endFrame() throws IOException {
+        if (pixels == null) throw new IllegalStateException("No frame is started.");
+        if (rowsWritten != frameHeight)
+            throw new IOException(String.format("Only %d of the %d rows of the frame were written.", rowsWritten, frameHeight));
+
+        pixels.finish();
+        pixels.close();
+        pixels = null;
+        framesWritten++;
+    }
+
+    /**
+     * @return The number of frames written so far.
+     */
+    public int getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * Finishes the animation and closes the stream.
+     *
+     * @throws IOException If not every frame was written, or the stream cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (pixels != null || framesWritten != numOfFrames)
+                throw new IOException(String.format("Only %d of the %d frames of the animation were written.", framesWritten, numOfFrames));
+            PngEncoding.writeChunk(out, "IEND", new byte[0], 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
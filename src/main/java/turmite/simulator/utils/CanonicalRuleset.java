@@ -0,0 +1,251 @@
+package turmite.simulator.utils;
+
+import turmite.simulator.models.Direction;
+import turmite.simulator.models.Rule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The canonical form of a Ruleset, shared by every Ruleset that walks the same way up to symmetry.
+ * <p>
+ * Two Rulesets are equivalent if one becomes the other by renumbering the non-zero States, renumbering the non-zero
+ * Colors, or mirroring every {@code L} into an {@code R} and back. State {@code 0} is where every Turmite starts,
+ * and Color {@code 0} is the blank Grid, so they keep their numbers. Renumbered Rulesets draw the same pattern
+ * in other Colors, mirrored ones draw its mirror image.
+ * <p>
+ * States and Colors are renumbered in the order a Turmite discovers them: the Rules are read from {@code 0-0}, always
+ * taking the lowest unread Rule among the States and Colors numbered so far, and every new State or Color written by
+ * a Rule gets the next number. This is done for the Ruleset and its mirror image, and the form with the lower ID wins.
+ * <p>
+ * States and Colors that no Rule writes can never be reached from a blank Grid. They are numbered first, right after
+ * {@code 0}, so the highest State and Color of a canonical form are always written, as a sweep requires. Those that
+ * are written, but only by Rules that are never read, are numbered last. Both are numbered in their original order,
+ * so Rulesets that differ only in how they number unreachable States or Colors may have different canonical forms.
+ * <p>
+ * The ID of a Ruleset is its index in the mixed radix numbering of {@link turmite.simulator.RulesetSweep}, so the
+ * canonical ID of a sweep index is the index of the representative of its class.
+ */
+public final class CanonicalRuleset {
+    private static final List<Character> TURN_DIRS = Direction.getSquareGridTurnDirs();
+
+    private CanonicalRuleset() {}
+
+    /**
+     * @param rules The Rules of a valid Ruleset, one for every {@code currState-currColor} combination.
+     * @return The Rules of the canonical form, in {@code currState-currColor} order.
+     * @throws IllegalArgumentException If a {@code currState-currColor} combination has no Rule.
+     */
+    public static List<Rule> canonicalize(List<Rule> rules) {
+        int numOfStates = countStates(rules);
+        int numOfColors = countColors(rules);
+        return toRules(canonicalDigits(rules, numOfStates, numOfColors), numOfStates, numOfColors);
+    }
+
+    /**
+     * @param rules The Rules of a valid Ruleset, one for every {@code currState-currColor} combination.
+     * @return The ID of the canonical form. Equivalent Rulesets with the same number of States and Colors have
+     * the same ID.
+     * @throws IllegalArgumentException If a {@code currState-currColor} combination has no Rule.
+     * @throws ArithmeticException If the ID of a Ruleset with this many States and Colors does not fit into a {@code long}.
+     */
+    public static long getCanonicalId(List<Rule> rules) {
+        int numOfStates = countStates(rules);
+        int numOfColors = countColors(rules);
+        return toId(canonicalDigits(rules, numOfStates, numOfColors), numOfStates, numOfColors);
+    }
+
+    /**
+     * @param rules The Rules of a valid Ruleset, one for every {@code currState-currColor} combination.
+     * @return The ID of the Ruleset itself, its index in a {@link turmite.simulator.RulesetSweep} of its size.
+     * @throws IllegalArgumentException If a {@code currState-currColor} combination has no Rule.
+     * @throws ArithmeticException If the ID of a Ruleset with this many States and Colors does not fit into a {@code long}.
+     */
+    public static long getId(List<Rule> rules) {
+        int numOfStates = countStates(rules);
+        int numOfColors = countColors(rules);
+        Rule[] byCell = byCell(rules, numOfStates, numOfColors);
+
+        int[] digits = new int[byCell.length];
+        for (int cell = 0; cell < byCell.length; cell++) {
+            Rule rule = byCell[cell];
+            digits[cell] = digit(rule.getTurnDir(), rule.getNewColor(), rule.getNewState(), numOfColors);
+        }
+        return toId(digits, numOfStates, numOfColors);
+    }
+
+    /**
+     * Renumbers the Ruleset and its mirror image, and picks the one with the lower ID.
+     *
+     * @return The digits of the canonical form, the lowest first.
+     */
+    private static int[] canonicalDigits(List<Rule> rules, int numOfStates, int numOfColors) {
+        Rule[] byCell = byCell(rules, numOfStates, numOfColors);
+        int[] digits = renumber(byCell, numOfStates, numOfColors, false);
+        int[] mirrored = renumber(byCell, numOfStates, numOfColors, true);
+
+        // The highest digit is the most significant one, as in the ID.
+        for (int i = digits.length - 1; i >= 0; i--) {
+            if (digits[i] != mirrored[i]) return mirrored[i] < digits[i] ? mirrored : digits;
+        }
+        return digits;
+    }
+
+    /**
+     * Renumbers the States and Colors in the order they are discovered.
+     *
+     * @param byCell The Rules, indexed by {@code currState * numOfColors + currColor}.
+     * @param numOfStates The number of States.
+     * @param numOfColors The number of Colors.
+     * @param mirror Whether to swap {@code L} and {@code R}.
+     * @return The digits of the renumbered Ruleset, in {@code currState-currColor} order.
+     */
+    private static int[] renumber(Rule[] byCell, int numOfStates, int numOfColors, boolean mirror) {
+        int[] stateNumbers = new int[numOfStates];
+        int[] colorNumbers = new int[numOfColors];
+        int[] statesByNumber = new int[numOfStates];
+        int[] colorsByNumber = new int[numOfColors];
+        Arrays.fill(stateNumbers, -1);
+        Arrays.fill(colorNumbers, -1);
+        stateNumbers[0] = 0;
+        colorNumbers[0] = 0;
+        int numberedStates = 1;
+        int numberedColors = 1;
+
+        boolean[] writtenStates = new boolean[numOfStates];
+        boolean[] writtenColors = new boolean[numOfColors];
+        for (Rule rule : byCell) {
+            writtenStates[rule.getNewState()] = true;
+            writtenColors[rule.getNewColor()] = true;
+        }
+        for (int state = 1; state < numOfStates; state++) {
+            if (writtenStates[state]) continue;
+            stateNumbers[state] = numberedStates;
+            statesByNumber[numberedStates++] = state;
+        }
+        for (int color = 1; color < numOfColors; color++) {
+            if (writtenColors[color]) continue;
+            colorNumbers[color] = numberedColors;
+            colorsByNumber[numberedColors++] = color;
+        }
+
+        // The Colors of every numbered State are read in order, so one counter per State is enough.
+        int[] readColors = new int[numOfStates];
+        int read = 0;
+        while (read < byCell.length) {
+            int state = 0;
+            while (state < numberedStates && readColors[state] >= numberedColors) state++;
+
+            if (state == numberedStates) {
+                // Nothing numbered is left to read, the rest is written, but cannot be reached.
+                if (numberedStates < numOfStates) {
+                    int unreached = indexOf(stateNumbers, -1);
+                    stateNumbers[unreached] = numberedStates;
+                    statesByNumber[numberedStates++] = unreached;
+                } else {
+                    int unreached = indexOf(colorNumbers, -1);
+                    colorNumbers[unreached] = numberedColors;
+                    colorsByNumber[numberedColors++] = unreached;
+                }
+                continue;
+            }
+
+            Rule rule = byCell[statesByNumber[state] * numOfColors + colorsByNumber[readColors[state]++]];
+            read++;
+            if (colorNumbers[rule.getNewColor()] < 0) {
+                colorNumbers[rule.getNewColor()] = numberedColors;
+                colorsByNumber[numberedColors++] = rule.getNewColor();
+            }
+            if (stateNumbers[rule.getNewState()] < 0) {
+                stateNumbers[rule.getNewState()] = numberedStates;
+                statesByNumber[numberedStates++] = rule.getNewState();
+            }
+        }
+
+        int[] digits = new int[byCell.length];
+        for (int state = 0; state < numOfStates; state++) {
+            for (int color = 0; color < numOfColors; color++) {
+                Rule rule = byCell[statesByNumber[state] * numOfColors + colorsByNumber[color]];
+                Direction turnDir = rule.getTurnDir();
+                if (mirror && turnDir == Direction.LEFT) turnDir = Direction.RIGHT;
+                else if (mirror && turnDir == Direction.RIGHT) turnDir = Direction.LEFT;
+                digits[state * numOfColors + color] = digit(turnDir, colorNumbers[rule.getNewColor()], stateNumbers[rule.getNewState()], numOfColors);
+            }
+        }
+        return digits;
+    }
+
+    /**
+     * @return One digit of an ID, as in the numbering of {@link turmite.simulator.RulesetSweep}.
+     */
+    private static int digit(Direction turnDir, int newColor, int newState, int numOfColors) {
+        int turn = TURN_DIRS.indexOf(Direction.getCharFromTurnDir(turnDir));
+        return turn + Ruleset.SQUARE_GRID_MAX_TURN_DIRS * (newColor + numOfColors * newState);
+    }
+
+    /**
+     * @param digits The digits of a Ruleset, the lowest first.
+     * @return The ID of the digits.
+     * @throws ArithmeticException If the ID does not fit into a {@code long}.
+     */
+    private static long toId(int[] digits, int numOfStates, int numOfColors) {
+        long radix = (long) Ruleset.SQUARE_GRID_MAX_TURN_DIRS * numOfColors * numOfStates;
+        // Checked like the sweep's number of indices, so a Ruleset has an ID exactly when its sweep has indices.
+        long count = 1;
+        for (int i = 0; i < digits.length; i++) count = Math.multiplyExact(count, radix);
+
+        long id = 0;
+        for (int i = digits.length - 1; i >= 0; i--) id = id * radix + digits[i];
+        return id;
+    }
+
+    /**
+     * @param digits The digits of a Ruleset, the lowest first.
+     * @return The Rules of the digits, in {@code currState-currColor} order.
+     */
+    private static List<Rule> toRules(int[] digits, int numOfStates, int numOfColors) {
+        List<Rule> rules = new ArrayList<>(digits.length);
+        for (int state = 0; state < numOfStates; state++) {
+            for (int color = 0; color < numOfColors; color++) {
+                int digit = digits[state * numOfColors + color];
+                Direction turnDir = Direction.getTurnDirFromChar(TURN_DIRS.get(digit % Ruleset.SQUARE_GRID_MAX_TURN_DIRS));
+                int newColor = (digit / Ruleset.SQUARE_GRID_MAX_TURN_DIRS) % numOfColors;
+                int newState = digit / (Ruleset.SQUARE_GRID_MAX_TURN_DIRS * numOfColors);
+                rules.add(new Rule(state, color, turnDir, newColor, newState));
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * @return The Rules, indexed by {@code currState * numOfColors + currColor}.
+     * @throws IllegalArgumentException If a {@code currState-currColor} combination has no Rule.
+     */
+    private static Rule[] byCell(List<Rule> rules, int numOfStates, int numOfColors) {
+        Rule[] byCell = new Rule[numOfStates * numOfColors];
+        for (Rule rule : rules) byCell[rule.getCurrState() * numOfColors + rule.getCurrColor()] = rule;
+        for (int cell = 0; cell < byCell.length; cell++) {
+            if (byCell[cell] == null)
+                throw new IllegalArgumentException(String.format("The Ruleset has no Rule for %d-%d.", cell / numOfColors, cell % numOfColors));
+        }
+        return byCell;
+    }
+
+    private static int countStates(List<Rule> rules) {
+        int highest = 0;
+        for (Rule rule : rules) highest = Math.max(highest, Math.max(rule.getCurrState(), rule.getNewState()));
+        return highest + 1;
+    }
+
+    private static int countColors(List<Rule> rules) {
+        int highest = 0;
+        for (Rule rule : rules) highest = Math.max(highest, Math.max(rule.getCurrColor(), rule.getNewColor()));
+        return highest + 1;
+    }
+
+    private static int indexOf(int[] array, int value) {
+        for (int i = 0; i < array.length; i++) if (array[i] == value) return i;
+        return -1;
+    }
+}
@@ -0,0 +1,939 @@
+package turmite.simulator.utils;
+
+import turmite.simulator.SimulationEngine;
+import turmite.simulator.models.ChunkedGridStore;
+import turmite.simulator.models.Direction;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.MappedGridStore;
+import turmite.simulator.models.PackedGridStore;
+import turmite.simulator.models.Rule;
+import turmite.simulator.models.TorusGridStore;
+import turmite.simulator.models.Turmite;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * A binary checkpoint of a simulation, saved into one file through a {@link FileChannel}.
+ * <p>
+ * The file is a log of frames. Every frame holds the step counter, the Rulesets and the Turmites, followed by chunks
+ * of the Grid, and ends with a CRC32 of the frame. The first save writes a full frame with every chunk. Later saves
+ * append a delta frame with only the chunks colored since the previous save, see {@link GridStore#forEachChunkSince}.
+ * Loading replays the frames in order, and stops at the first frame that is truncated or corrupted,
+ * so a crash while saving loses only the last save.
+ * <p>
+ * The simulation is only locked while its state is copied: the Turmites, and the chunks of a delta frame.
+ * Encoding and writing the frame happen outside the lock. A full frame copies its chunks a slice at a time,
+ * while the simulation keeps stepping, so it is always followed by a delta frame with the chunks colored meanwhile,
+ * and is only a valid restore point together with it.
+ * <p>
+ * Full frames record the type of the Grid they were saved from, the size of a torus, and the file of a memory-mapped
+ * Grid. A checkpoint can only be loaded onto a Grid of the same shape: a torus of the same size, or any unbounded Grid,
+ * as those hold the same chunks however they store them.
+ * <p>
+ * Every frame also holds a random mark. Once a frame is saved from a {@link MappedGridStore} that was not modified
+ * since its state was copied, the file of the Grid is marked with it. Loading onto a Grid that still holds the mark
+ * of the last valid frame keeps its chunks as they are, instead of writing them all again.
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x54524350;
+    private static final int VERSION = 1;
+
+    private static final byte FULL_FRAME = 0;
+    private static final byte DELTA_FRAME = 1;
+
+    private static final byte END_RECORD = 0;
+    private static final byte RAW_CHUNK = 1;
+    private static final byte RLE_CHUNK = 2;
+
+    private static final byte CHUNKED_GRID = 0;
+    private static final byte PACKED_GRID = 1;
+    private static final byte MAPPED_GRID = 2;
+    private static final byte TORUS_GRID = 3;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int SLICE_CHUNKS = 256;
+    private static final int RULE_BYTES = 5;
+    private static final int TURMITE_BYTES = 4 * Long.BYTES + Integer.BYTES + 2 + Short.BYTES;
+    private static final int MAX_CHUNK_RECORD = 1 + 2 * Long.BYTES + GridStore.CHUNK_AREA;
+
+    private final Path file;
+    private GridStore savedGridStore;
+    private long savedVersion;
+
+    /**
+     * @param file The file of the checkpoint.
+     */
+    public Checkpoint(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Saves the simulation. The first save of a simulation replaces the file with a full frame,
+     * later saves append the chunks colored since the previous save.
+     * The simulation keeps stepping while it is being saved, it is only locked to copy its state.
+     *
+     * @param engine The simulation to save.
+     * @throws IOException If the file cannot be written.
+     */
+    public synchronized void save(SimulationEngine engine) throws IOException {
+        FrameCapture delta = null;
+        synchronized (engine) {
+            GridStore gridStore = engine.getGridStore();
+            if (gridStore == savedGridStore && gridStore.getClearedVersion() < savedVersion) {
+                delta = captureDelta(engine, savedVersion);
+            }
+        }
+        if (delta == null) {
+            saveFull(engine);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            writeFrame(channel, delta);
+            channel.force(false);
+        }
+        savedVersion = delta.nextVersion();
+        markMappedGrid(engine, delta);
+    }
+
+    /**
+     * Replaces the file with a full frame and the delta frame completing it. A full frame is written next to
+     * the checkpoint first, so a crash never loses the previous one. If the Grid is cleared while its chunks are
+     * being copied, the frame is started over.
+     *
+     * @param engine The simulation to save.
+     * @throws IOException If the file cannot be written.
+     */
+    private void saveFull(SimulationEngine engine) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        FrameCapture delta;
+        do {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                delta = writeFullFrame(channel, engine);
+                if (delta != null) {
+                    writeFrame(channel, delta);
+                    channel.force(false);
+                }
+            }
+        } while (delta == null);
+
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedGridStore = engine.getGridStore();
+        savedVersion = delta.nextVersion();
+        markMappedGrid(engine, delta);
+    }
+
+    /**
+     * Marks the file of a memory-mapped Grid with a saved frame, if the Grid was not modified since the frame
+     * was copied. Its pages are written back outside the lock of the simulation, only the mark is written under it.
+     *
+     * @param engine The saved simulation.
+     * @param frame The saved frame, which is the last valid frame of the file.
+     */
+    private static void markMappedGrid(SimulationEngine engine, FrameCapture frame) {
+        MappedGridStore mapped;
+        synchronized (engine) {
+            if (!(engine.getGridStore() instanceof MappedGridStore store) || store.isModifiedSince(frame.nextVersion())) return;
+            mapped = store;
+        }
+        mapped.force();
+        synchronized (engine) {
+            if (!mapped.isModifiedSince(frame.nextVersion())) mapped.mark(frame.mark());
+        }
+    }
+
+    /**
+     * Loads the simulation onto a new Grid of the type it was saved from. A memory-mapped Grid is opened again
+     * from the file it was saved from, and must be closed by the caller.
+     *
+     * @return The loaded simulation.
+     * @throws IOException If the file cannot be read, or it holds no valid frame.
+     * @see #load(GridStore)
+     */
+    public SimulationEngine load() throws IOException {
+        FrameScan scan = scanFrames();
+        GridStore gridStore = scan.shape().create();
+        try {
+            return load(scan, gridStore);
+        } catch (IOException | RuntimeException e) {
+            if (gridStore instanceof Closeable closeable) closeable.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Loads the simulation onto the given Grid. Anything written after the last valid frame is cut off the file,
+     * and the next save of the loaded simulation appends to the file.
+     *
+     * @param gridStore The Grid to load the chunks into. It is cleared first, unless it is a memory-mapped Grid
+     * that still holds the chunks of the last valid frame.
+     * @return The loaded simulation.
+     * @throws IOException If the file cannot be read, it holds no valid frame, or it was saved from a Grid
+     * of another shape.
+     */
+    public SimulationEngine load(GridStore gridStore) throws IOException {
+        return load(scanFrames(), gridStore);
+    }
+
+    /**
+     * Loads the simulation into an existing one, for example one that is shown on screen, like {@link #load(GridStore)}
+     * loads it onto the simulation's Grid. The Ruleset of the first Turmite is overwritten with the saved Rules,
+     * and every other Turmite is replaced by the saved ones.
+     *
+     * @param engine The simulation to load into. It is not stepped while it is being loaded.
+     * @throws IOException If the file cannot be read, it holds no valid frame, or it was saved from a Grid
+     * of another shape.
+     */
+    public void loadInto(SimulationEngine engine) throws IOException {
+        FrameScan scan = scanFrames();
+        synchronized (engine) {
+            GridStore gridStore = engine.getGridStore();
+            readFrames(scan, gridStore).restoreInto(engine);
+            savedGridStore = gridStore;
+            savedVersion = gridStore.advanceVersion();
+        }
+    }
+
+    /**
+     * @param scan The scan of the file.
+     * @param gridStore The Grid to load the chunks into.
+     * @return The loaded simulation.
+     * @throws IOException If the file cannot be read, or it was saved from a Grid of another shape.
+     */
+    private SimulationEngine load(FrameScan scan, GridStore gridStore) throws IOException {
+        SimulationEngine engine = readFrames(scan, gridStore).restore(gridStore);
+        savedGridStore = gridStore;
+        savedVersion = gridStore.advanceVersion();
+        return engine;
+    }
+
+    /**
+     * Replays the valid frames from the last full frame on onto the Grid, and cuts off anything written after them.
+     * If the Grid is marked with the last valid frame, only that frame's header is read.
+     *
+     * @param scan The scan of the file.
+     * @param gridStore The Grid to load the chunks into. It is cleared first, unless it is kept.
+     * @return The header of the last valid frame.
+     * @throws IOException If the file cannot be read, or it was saved from a Grid of another shape.
+     */
+    private FrameHeader readFrames(FrameScan scan, GridStore gridStore) throws IOException {
+        if (!scan.shape().matches(gridStore)) {
+            throw new IOException(String.format("The checkpoint was saved from %s, and cannot be loaded onto %s.",
+                    scan.shape().describe(), GridShape.of(gridStore).describe()));
+        }
+
+        FrameHeader header;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            if (gridStore instanceof MappedGridStore mapped && mapped.getMark() == scan.lastMark()) {
+                channel.position(scan.lastFrameOffset());
+                header = readFrame(openStream(channel, crc), crc, null);
+            } else {
+                DataInputStream in = openStream(channel, crc);
+                header = null;
+                for (int frame = 0; frame < scan.validFrames(); frame++) {
+                    boolean apply = frame >= scan.lastFullFrame();
+                    header = readFrame(in, crc, apply ? gridStore : null);
+                }
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(scan.validLength());
+        }
+        return header;
+    }
+
+    /**
+     * @return The file of the checkpoint.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Writes a full frame, copying the chunks out of the Grid a slice at a time while the simulation keeps stepping.
+     *
+     * @param channel The channel to write into.
+     * @param engine The simulation to save.
+     * @return The delta frame with the chunks colored while the full frame was written,
+     * or {@code null} if the Grid was cleared meanwhile.
+     * @throws IOException If the file cannot be written.
+     */
+    private static FrameCapture writeFullFrame(FileChannel channel, SimulationEngine engine) throws IOException {
+        GridStore gridStore;
+        byte[] header;
+        long sinceVersion;
+        synchronized (engine) {
+            gridStore = engine.getGridStore();
+            header = encodeHeader(engine, FULL_FRAME, 0);
+            sinceVersion = gridStore.advanceVersion();
+        }
+
+        FrameWriter writer = new FrameWriter(channel);
+        writer.write(header);
+
+        ChunkBatch slice = new ChunkBatch();
+        byte[] encoded = new byte[GridStore.CHUNK_AREA];
+        int[] chunkCount = new int[1];
+        boolean[] intact = {true};
+        try {
+            // Only the coordinates are taken from this pass, the cells are copied under the lock.
+            gridStore.forEachChunk((chunkX, chunkY, cells) -> {
+                if (!intact[0]) return;
+                slice.add(chunkX, chunkY);
+                if (slice.size() == SLICE_CHUNKS) {
+                    intact[0] = writeSlice(writer, engine, gridStore, sinceVersion, slice, encoded);
+                    chunkCount[0] += slice.size();
+                    slice.clear();
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (!intact[0] || !writeSlice(writer, engine, gridStore, sinceVersion, slice, encoded)) return null;
+        chunkCount[0] += slice.size();
+
+        ByteBuffer buffer = writer.reserve(1 + Integer.BYTES);
+        buffer.put(END_RECORD).putInt(chunkCount[0]);
+        writer.finish();
+
+        synchronized (engine) {
+            if (gridStore.getClearedVersion() >= sinceVersion) return null;
+            return captureDelta(engine, sinceVersion);
+        }
+    }
+
+    /**
+     * Copies a slice of chunks out of the Grid under the lock of the simulation, and writes them.
+     *
+     * @param writer The writer of the frame.
+     * @param engine The simulation to save.
+     * @param gridStore The Grid of the simulation.
+     * @param sinceVersion The version the full frame was started at.
+     * @param slice The coordinates of the chunks to copy. Their cells are copied into it.
+     * @param encoded A buffer for the run-length encoded cells.
+     * @return Whether the chunks were written, {@code false} if the Grid was cleared since the frame was started.
+     */
+    private static boolean writeSlice(FrameWriter writer, SimulationEngine engine, GridStore gridStore, long sinceVersion,
+                                      ChunkBatch slice, byte[] encoded) {
+        synchronized (engine) {
+            if (gridStore.getClearedVersion() >= sinceVersion) return false;
+            for (int i = 0; i < slice.size(); i++) gridStore.readChunk(slice.getX(i), slice.getY(i), slice.getCells(i));
+        }
+        for (int i = 0; i < slice.size(); i++) writeChunk(writer, slice.getX(i), slice.getY(i), slice.getCells(i), encoded);
+        return true;
+    }
+
+    /**
+     * Copies the state of the simulation and the chunks colored since the given version into a delta frame,
+     * and advances the version of the Grid. The caller must hold the lock of the simulation.
+     *
+     * @param engine The simulation to save.
+     * @param sinceVersion The version of the previous save.
+     * @return The copied frame.
+     */
+    private static FrameCapture captureDelta(SimulationEngine engine, long sinceVersion) {
+        GridStore gridStore = engine.getGridStore();
+        long mark = ThreadLocalRandom.current().nextLong() | 1;
+        byte[] header = encodeHeader(engine, DELTA_FRAME, mark);
+        long nextVersion = gridStore.advanceVersion();
+
+        ChunkBatch chunks = new ChunkBatch();
+        gridStore.forEachChunkSince(sinceVersion, (chunkX, chunkY, cells) -> {
+            chunks.add(chunkX, chunkY);
+            System.arraycopy(cells, 0, chunks.getCells(chunks.size() - 1), 0, GridStore.CHUNK_AREA);
+        });
+        return new FrameCapture(header, chunks, nextVersion, mark);
+    }
+
+    /**
+     * Encodes and writes a copied frame.
+     *
+     * @param channel The channel to write into.
+     * @param frame The copied frame.
+     * @throws IOException If the file cannot be written.
+     */
+    private static void writeFrame(FileChannel channel, FrameCapture frame) throws IOException {
+        FrameWriter writer = new FrameWriter(channel);
+        writer.write(frame.header());
+
+        ChunkBatch chunks = frame.chunks();
+        byte[] encoded = new byte[GridStore.CHUNK_AREA];
+        try {
+            for (int i = 0; i < chunks.size(); i++) writeChunk(writer, chunks.getX(i), chunks.getY(i), chunks.getCells(i), encoded);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        ByteBuffer buffer = writer.reserve(1 + Integer.BYTES);
+        buffer.put(END_RECORD).putInt(chunks.size());
+        writer.finish();
+    }
+
+    /**
+     * Encodes the step counter, the Rulesets and the Turmites of the simulation.
+     * The caller must hold the lock of the simulation.
+     *
+     * @param engine The simulation to save.
+     * @param type The type of the frame.
+     * @param mark The mark of the frame, {@code 0} for a full frame, as those are never the last valid frame.
+     * @return The encoded header of the frame.
+     */
+    private static byte[] encodeHeader(SimulationEngine engine, byte type, long mark) {
+        List<Turmite> turmites = engine.getTurmites();
+        Map<Ruleset, Integer> rulesetIndices = new IdentityHashMap<>();
+        List<Ruleset> rulesets = new ArrayList<>();
+        for (Turmite turmite : turmites) {
+            if (rulesetIndices.putIfAbsent(turmite.getRuleset(), rulesets.size()) == null) rulesets.add(turmite.getRuleset());
+        }
+
+        GridShape shape = type == FULL_FRAME ? GridShape.of(engine.getGridStore()) : null;
+        int size = Integer.BYTES + 2 + Long.BYTES + (shape == null ? 0 : shape.size()) + Long.BYTES + Short.BYTES
+                + Integer.BYTES + turmites.size() * TURMITE_BYTES;
+        for (Ruleset ruleset : rulesets) size += Short.BYTES + ruleset.getRules().size() * RULE_BYTES;
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).put((byte) VERSION).put(type).putLong(mark);
+        if (shape != null) shape.write(buffer);
+        buffer.putLong(engine.getStepCount()).putShort((short) rulesets.size());
+
+        for (Ruleset ruleset : rulesets) {
+            List<Rule> rules = ruleset.getRules();
+            buffer.putShort((short) rules.size());
+            for (Rule rule : rules) {
+                buffer.put((byte) rule.getCurrState()).put((byte) rule.getCurrColor()).put((byte) rule.getTurnDir().getTurnDelta())
+                        .put((byte) rule.getNewColor()).put((byte) rule.getNewState());
+            }
+        }
+
+        buffer.putInt(turmites.size());
+        for (Turmite turmite : turmites) {
+            buffer.putLong(turmite.getX()).putLong(turmite.getY()).put((byte) turmite.getHeading()).putInt(turmite.getState())
+                    .putLong(turmite.getStartX()).putLong(turmite.getStartY()).put((byte) turmite.getStartHeading())
+                    .putShort(rulesetIndices.get(turmite.getRuleset()).shortValue());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Writes one chunk, run-length encoded if that is shorter.
+     *
+     * @param writer The writer of the frame.
+     * @param chunkX The X coordinate of the chunk.
+     * @param chunkY The Y coordinate of the chunk.
+     * @param cells The Colors of the chunk's Grids.
+     * @param encoded A buffer for the run-length encoded cells.
+     */
+    private static void writeChunk(FrameWriter writer, long chunkX, long chunkY, byte[] cells, byte[] encoded) {
+        try {
+            ByteBuffer buffer = writer.reserve(MAX_CHUNK_RECORD);
+            int encodedLength = encodeRuns(cells, encoded);
+            if (encodedLength < 0) {
+                buffer.put(RAW_CHUNK).putLong(chunkX).putLong(chunkY).put(cells);
+            } else {
+                buffer.put(RLE_CHUNK).putLong(chunkX).putLong(chunkY).putShort((short) encodedLength).put(encoded, 0, encodedLength);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Run-length encodes the cells as pairs of a Color and a run length between 1-256.
+     *
+     * @param cells The Colors of the chunk's Grids.
+     * @param encoded The buffer to encode into.
+     * @return The length of the encoded cells, or {@code -1} if encoding would not make them shorter.
+     */
+    private static int encodeRuns(byte[] cells, byte[] encoded) {
+        int length = 0;
+        int i = 0;
+        while (i < cells.length) {
+            byte color = cells[i];
+            int run = 1;
+            while (run < 256 && i + run < cells.length && cells[i + run] == color) run++;
+
+            if (length + 2 > encoded.length - Short.BYTES) return -1;
+            encoded[length++] = color;
+            encoded[length++] = (byte) (run - 1);
+            i += run;
+        }
+        return length;
+    }
+
+    /**
+     * Reads every frame once, without applying it, to find where the valid frames end.
+     *
+     * @return The result of the scan.
+     * @throws IOException If the file cannot be read, or it holds no valid frame.
+     */
+    private FrameScan scanFrames() throws IOException {
+        if (!Files.exists(file)) throw new IOException("The checkpoint does not exist: " + file);
+
+        int frames = 0;
+        int validFrames = 0;
+        int lastFullFrame = 0;
+        long validLength = 0;
+        GridShape shape = null;
+        long lastFrameOffset = 0;
+        long lastMark = 0;
+        int pendingFullFrame = 0;
+        GridShape pendingShape = null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            CountingStream counter = new CountingStream(channel);
+            DataInputStream in = new DataInputStream(new CheckedInputStream(counter, crc));
+
+            while (true) {
+                long frameOffset = counter.getCount();
+                FrameHeader header;
+                try {
+                    header = readFrame(in, crc, null);
+                } catch (IOException | RuntimeException e) {
+                    break;
+                }
+                if (header.type() == FULL_FRAME) {
+                    pendingFullFrame = frames;
+                    pendingShape = header.shape();
+                }
+                frames++;
+
+                // A full frame is only complete with the delta frame written right after it.
+                if (header.type() == DELTA_FRAME && pendingShape != null) {
+                    validFrames = frames;
+                    validLength = counter.getCount();
+                    lastFullFrame = pendingFullFrame;
+                    shape = pendingShape;
+                    lastFrameOffset = frameOffset;
+                    lastMark = header.mark();
+                }
+            }
+        }
+        if (shape == null) throw new IOException("The checkpoint holds no valid frame: " + file);
+        return new FrameScan(validFrames, lastFullFrame, validLength, shape, lastFrameOffset, lastMark);
+    }
+
+    /**
+     * Reads one frame, and checks its CRC32.
+     *
+     * @param in The stream of the file.
+     * @param crc The CRC32 updated by the stream.
+     * @param gridStore The Grid to write the chunks into, or {@code null} to skip them. Chunks are written as they are
+     * read, so frames must be checked by a scan before they are applied.
+     * @return The header of the frame.
+     * @throws IOException If the frame is truncated or corrupted.
+     */
+    private static FrameHeader readFrame(DataInputStream in, CRC32 crc, GridStore gridStore) throws IOException {
+        crc.reset();
+        if (in.readInt() != MAGIC) throw new IOException("Not a checkpoint frame.");
+        int version = in.readByte();
+        if (version != VERSION) throw new IOException("Unsupported checkpoint version: " + version);
+
+        byte type = in.readByte();
+        long mark = in.readLong();
+        GridShape shape = type == FULL_FRAME ? GridShape.read(in) : null;
+        long stepCount = in.readLong();
+
+        Ruleset[] rulesets = new Ruleset[in.readUnsignedShort()];
+        for (int r = 0; r < rulesets.length; r++) {
+            List<Rule> rules = new ArrayList<>();
+            int ruleCount = in.readUnsignedShort();
+            for (int i = 0; i < ruleCount; i++) {
+                rules.add(new Rule(in.readUnsignedByte(), in.readUnsignedByte(), Direction.fromTurnDelta(in.readUnsignedByte()),
+                        in.readUnsignedByte(), in.readUnsignedByte()));
+            }
+            rulesets[r] = new Ruleset(rules);
+        }
+
+        TurmiteRecord[] turmites = new TurmiteRecord[in.readInt()];
+        for (int t = 0; t < turmites.length; t++) {
+            long x = in.readLong();
+            long y = in.readLong();
+            int heading = in.readUnsignedByte();
+            int state = in.readInt();
+            long startX = in.readLong();
+            long startY = in.readLong();
+            int startHeading = in.readUnsignedByte();
+            turmites[t] = new TurmiteRecord(x, y, heading, state, startX, startY, startHeading, rulesets[in.readUnsignedShort()]);
+        }
+
+        if (gridStore != null && type == FULL_FRAME) gridStore.clear();
+
+        int chunkCount = 0;
+        byte[] cells = new byte[GridStore.CHUNK_AREA];
+        byte[] encoded = new byte[GridStore.CHUNK_AREA];
+        while (true) {
+            byte record = in.readByte();
+            if (record == END_RECORD) break;
+
+            long chunkX = in.readLong();
+            long chunkY = in.readLong();
+            if (record == RAW_CHUNK) {
+                in.readFully(cells);
+            } else if (record == RLE_CHUNK) {
+                int length = in.readUnsignedShort();
+                in.readFully(encoded, 0, length);
+                decodeRuns(encoded, length, cells);
+            } else {
+                throw new IOException("Unknown chunk record: " + record);
+            }
+            if (gridStore != null) gridStore.writeChunk(chunkX, chunkY, cells);
+            chunkCount++;
+        }
+
+        if (in.readInt() != chunkCount) throw new IOException("The checkpoint frame is missing chunks.");
+        int expectedCrc = (int) crc.getValue();
+        if (in.readInt() != expectedCrc) throw new IOException("The checkpoint frame is corrupted.");
+        return new FrameHeader(type, mark, stepCount, shape, turmites);
+    }
+
+    /**
+     * @param encoded The run-length encoded cells.
+     * @param length The length of the encoded cells.
+     * @param cells The Colors of the chunk's Grids to decode into.
+     * @throws IOException If the runs do not cover the chunk exactly.
+     */
+    private static void decodeRuns(byte[] encoded, int length, byte[] cells) throws IOException {
+        int i = 0;
+        for (int e = 0; e + 1 < length; e += 2) {
+            int run = (encoded[e + 1] & 0xFF) + 1;
+            if (i + run > cells.length) throw new IOException("The chunk's runs are too long.");
+            Arrays.fill(cells, i, i + run, encoded[e]);
+            i += run;
+        }
+        if (i != cells.length) throw new IOException("The chunk's runs are too short.");
+    }
+
+    /**
+     * @param channel The channel of the file.
+     * @param crc The CRC32 to update while reading.
+     * @return A buffered stream of the file, that updates the CRC32.
+     */
+    private static DataInputStream openStream(FileChannel channel, CRC32 crc) {
+        return new DataInputStream(new CheckedInputStream(new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE), crc));
+    }
+
+    private record TurmiteRecord(long x, long y, int heading, int state, long startX, long startY, int startHeading, Ruleset ruleset) {}
+
+    /**
+     * A frame copied out of the simulation, to be encoded and written outside its lock.
+     *
+     * @param header The encoded header of the frame.
+     * @param chunks The copied chunks.
+     * @param nextVersion The version of the Grid the next delta frame starts at.
+     * @param mark The mark of the frame.
+     */
+    private record FrameCapture(byte[] header, ChunkBatch chunks, long nextVersion, long mark) {}
+
+    private record FrameScan(int validFrames, int lastFullFrame, long validLength, GridShape shape, long lastFrameOffset, long lastMark) {}
+
+    /**
+     * The type of the Grid a full frame was saved from, the size of a torus, and the file of a memory-mapped Grid.
+     */
+    private record GridShape(byte type, int width, int height, String file) {
+        static GridShape of(GridStore gridStore) {
+            if (gridStore instanceof TorusGridStore torus) return new GridShape(TORUS_GRID, torus.getWidth(), torus.getHeight(), null);
+            if (gridStore instanceof MappedGridStore mapped) return new GridShape(MAPPED_GRID, 0, 0, mapped.getFile().toAbsolutePath().toString());
+            if (gridStore instanceof PackedGridStore) return new GridShape(PACKED_GRID, 0, 0, null);
+            return new GridShape(CHUNKED_GRID, 0, 0, null);
+        }
+
+        /**
+         * @param in The stream of the file.
+         * @return The shape recorded by a full frame.
+         * @throws IOException If the frame is truncated, or the type is unknown.
+         */
+        static GridShape read(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            if (type == TORUS_GRID) return new GridShape(type, in.readInt(), in.readInt(), null);
+            if (type == MAPPED_GRID) return new GridShape(type, 0, 0, in.readUTF());
+            if (type < CHUNKED_GRID || type > TORUS_GRID) throw new IOException("Unknown Grid type: " + type);
+            return new GridShape(type, 0, 0, null);
+        }
+
+        int size() {
+            if (type == TORUS_GRID) return 1 + 2 * Integer.BYTES;
+            if (type == MAPPED_GRID) return 1 + Short.BYTES + encodedFile().length;
+            return 1;
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.put(type);
+            if (type == TORUS_GRID) buffer.putInt(width).putInt(height);
+            if (type == MAPPED_GRID) {
+                byte[] encoded = encodedFile();
+                buffer.putShort((short) encoded.length).put(encoded);
+            }
+        }
+
+        /**
+         * @return The file of a memory-mapped Grid, in the modified UTF-8 read by {@link DataInputStream#readUTF}.
+         */
+        private byte[] encodedFile() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                new DataOutputStream(bytes).writeUTF(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return Arrays.copyOfRange(bytes.toByteArray(), Short.BYTES, bytes.size());
+        }
+
+        /**
+         * @param gridStore A Grid to load the checkpoint onto.
+         * @return Whether the Grid is a torus of the same size, or both Grids are unbounded.
+         */
+        boolean matches(GridStore gridStore) {
+            GridShape other = of(gridStore);
+            return type == TORUS_GRID ? equals(other) : other.type() != TORUS_GRID;
+        }
+
+        /**
+         * @return A new, empty Grid of this type, or the memory-mapped Grid opened again from its file.
+         * @throws IOException If the size of the torus is invalid, or the file of the Grid cannot be opened.
+         */
+        GridStore create() throws IOException {
+            try {
+                return switch (type) {
+                    case TORUS_GRID -> new TorusGridStore(width, height);
+                    case MAPPED_GRID -> MappedGridStore.open(Path.of(file));
+                    case PACKED_GRID -> new PackedGridStore();
+                    default -> new ChunkedGridStore();
+                };
+            } catch (IllegalArgumentException e) {
+                throw new IOException("The checkpoint's torus is invalid: " + e.getMessage());
+            }
+        }
+
+        String describe() {
+            return type == TORUS_GRID ? String.format("a %d x %d torus", width, height) : "an unbounded Grid";
+        }
+    }
+
+    private record FrameHeader(byte type, long mark, long stepCount, GridShape shape, TurmiteRecord[] turmites) {
+        /**
+         * Builds the simulation described by the header, on a Grid that already holds its chunks.
+         *
+         * @param gridStore The Grid of the simulation.
+         * @return The restored simulation.
+         * @throws IOException If the frame has no Turmite.
+         */
+        SimulationEngine restore(GridStore gridStore) throws IOException {
+            if (turmites.length == 0) throw new IOException("The checkpoint holds no Turmite.");
+
+            SimulationEngine engine = new SimulationEngine(turmites[0].ruleset(), gridStore);
+            for (int t = 0; t < turmites.length; t++) {
+                TurmiteRecord record = turmites[t];
+                Turmite turmite = t == 0
+                        ? engine.getTurmite()
+                        : engine.addTurmite(record.ruleset(), record.startX(), record.startY(), record.startHeading());
+                turmite.restore(record.x(), record.y(), record.heading(), record.state());
+            }
+            engine.restore(stepCount);
+            return engine;
+        }
+
+        /**
+         * Restores the simulation described by the header into an existing one, whose Grid already holds its chunks.
+         *
+         * @param engine The simulation to restore into.
+         * @throws IOException If the frame has no Turmite, or its Rules are invalid.
+         */
+        void restoreInto(SimulationEngine engine) throws IOException {
+            if (turmites.length == 0) throw new IOException("The checkpoint holds no Turmite.");
+
+            Ruleset firstRuleset = turmites[0].ruleset();
+            Ruleset engineRuleset = engine.getTurmite().getRuleset();
+            try {
+                engineRuleset.loadRules(firstRuleset.getRules());
+            } catch (Ruleset.InvalidRulesetException | IllegalArgumentException e) {
+                throw new IOException("The checkpoint holds an invalid Ruleset: " + e.getMessage());
+            }
+
+            List<Turmite> placed = List.copyOf(engine.getTurmites());
+            for (int t = 1; t < placed.size(); t++) engine.removeTurmite(placed.get(t));
+            for (int t = 0; t < turmites.length; t++) {
+                TurmiteRecord record = turmites[t];
+                Ruleset ruleset = record.ruleset() == firstRuleset ? engineRuleset : record.ruleset();
+                Turmite turmite = t == 0
+                        ? engine.getTurmite()
+                        : engine.addTurmite(ruleset, record.startX(), record.startY(), record.startHeading());
+                turmite.restore(record.x(), record.y(), record.heading(), record.state());
+            }
+            engine.restore(stepCount);
+        }
+    }
+
+    /**
+     * Buffers a frame in a ByteBuffer, and writes it to the channel whenever the buffer fills up.
+     * Every written byte updates the CRC32 of the frame.
+     */
+    private static final class FrameWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+
+        FrameWriter(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * @param bytes The number of bytes about to be written.
+         * @return The buffer, with at least {@code bytes} remaining.
+         * @throws IOException If the buffer cannot be flushed.
+         */
+        ByteBuffer reserve(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) flush();
+            return buffer;
+        }
+
+        /**
+         * @param bytes The bytes to write, of any length.
+         * @throws IOException If the buffer cannot be flushed.
+         */
+        void write(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ByteBuffer buffer = reserve(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        /**
+         * Writes the CRC32 of the frame, and flushes the rest of the frame.
+         *
+         * @throws IOException If the channel cannot be written.
+         */
+        void finish() throws IOException {
+            flush();
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * The coordinates of chunks, and buffers for their cells. The buffers are kept when the batch is cleared,
+     * so the slices of a full frame reuse them.
+     */
+    private static final class ChunkBatch {
+        private long[] chunkXs = new long[16];
+        private long[] chunkYs = new long[16];
+        private byte[][] cells = new byte[16][];
+        private int size;
+
+        /**
+         * Adds a chunk to the batch. Its cells are copied into {@link #getCells} afterwards.
+         *
+         * @param chunkX The X coordinate of the chunk.
+         * @param chunkY The Y coordinate of the chunk.
+         */
+        void add(long chunkX, long chunkY) {
+            if (size == chunkXs.length) {
+                chunkXs = Arrays.copyOf(chunkXs, size * 2);
+                chunkYs = Arrays.copyOf(chunkYs, size * 2);
+                cells = Arrays.copyOf(cells, size * 2);
+            }
+            chunkXs[size] = chunkX;
+            chunkYs[size] = chunkY;
+            if (cells[size] == null) cells[size] = new byte[GridStore.CHUNK_AREA];
+            size++;
+        }
+
+        long getX(int i) {
+            return chunkXs[i];
+        }
+
+        long getY(int i) {
+            return chunkYs[i];
+        }
+
+        byte[] getCells(int i) {
+            return cells[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * A buffered stream of a channel that counts the bytes handed out, so the end of a frame can be found.
+     */
+    private static final class CountingStream extends InputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+        private final FileChannel channel;
+        private long count;
+
+        CountingStream(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            count++;
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!fill()) return -1;
+            int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            count += read;
+            return read;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining()) return true;
+            buffer.clear();
+            int read = channel.read(buffer);
+            buffer.flip();
+            return read > 0;
+        }
+    }
+}
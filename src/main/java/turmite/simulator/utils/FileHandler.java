@@ -1,6 +1,5 @@
 package turmite.simulator.utils;
 
-import turmite.simulator.TurmiteJFrame;
 import turmite.simulator.models.Direction;
 import turmite.simulator.models.Rule;
 import turmite.simulator.ui.Dialogs;
@@ -107,8 +106,4 @@ public class FileHandler {
         writer.write(rulesetObject.build());
         writer.close();
     }
-
-    public static void deleteFile(String fileName) throws IOException {
-        Files.delete(Path.of(TurmiteJFrame.RULESET_DIR, fileName));
-    }
 }
@@ -0,0 +1,210 @@
+package turmite.simulator.utils;
+
+import turmite.simulator.models.GridStore;
+import turmite.simulator.ui.Palette;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A class which exports the colored part of a Grid as a PNG image, at one or more pixels per Grid.
+ * This class cannot be instantiated, all its methods are static.
+ * <p>
+ * The Grid is walked in bands of one chunk row. Every band is assembled from the chunks in it, then streamed
+ * row by row into an {@link IndexedPngWriter}, so memory stays bounded by one band, no matter how large the image is.
+ * Images are indexed, with one palette entry per Color, so they stay small.
+ * <p>
+ * A Grid that is stepped on another thread is exported under its lock, which is only held while the bounding box
+ * is found and while each band is copied, never while it is encoded. The simulation may then move on between bands,
+ * so every band shows the Grid at the step it was copied in.
+ */
+public class GridImageExporter {
+    private GridImageExporter() {}
+
+    /**
+     * Writes the bounding box of every Grid with a Color other than {@code 0} into a PNG file, at one pixel per Grid.
+     * An empty Grid is written as one pixel of Color {@code 0}.
+     *
+     * @param gridStore The Grid to export.
+     * @param numOfColors The number of Colors the Grid uses.
+     * @param file The PNG file to write.
+     * @throws IOException If the image is too large, or the file cannot be written.
+     */
+    public static void writePng(GridStore gridStore, int numOfColors, Path file) throws IOException {
+        writePng(gridStore, numOfColors, 1, file);
+    }
+
+    /**
+     * Writes the bounding box of every Grid with a Color other than {@code 0} into a PNG file.
+     * An empty Grid is written as one Grid of Color {@code 0}.
+     *
+     * @param gridStore The Grid to export. It must not be stepped during the export.
+     * @param numOfColors The number of Colors the Grid uses.
+     * @param scale The size of one Grid in the image, in pixels.
+     * @param file The PNG file to write.
+     * @throws IOException If the image is too large for a PNG, or the file cannot be written.
+     */
+    public static void writePng(GridStore gridStore, int numOfColors, int scale, Path file) throws IOException {
+        writePng(gridStore, gridStore, numOfColors, scale, file);
+    }
+
+    /**
+     * Writes the bounding box of every Grid with a Color other than {@code 0} into a PNG file, while another thread
+     * may step the Grid. An empty Grid is written as one Grid of Color {@code 0}.
+     *
+     * @param gridStore The Grid to export.
+     * @param lock The object the stepping thread holds while it changes the Grid, usually its engine.
+     * @param numOfColors The number of Colors the Grid uses.
+     * @param scale The size of one Grid in the image, in pixels.
+     * @param file The PNG file to write.
+     * @throws IOException If the image is too large for a PNG, or the file cannot be written.
+     */
+    public static void writePng(GridStore gridStore, Object lock, int numOfColors, int scale, Path file) throws IOException {
+        if (scale < 1) throw new IllegalArgumentException("The scale must be at least 1 (got " + scale + ").");
+
+        long[] bounds;
+        synchronized (lock) {
+            bounds = findBounds(gridStore);
+        }
+
+        long minX = bounds[0];
+        long minY = bounds[1];
+        // Grids can be so far apart that the width itself overflows, and then it is negative.
+        long width = bounds[2] - minX + 1;
+        long height = bounds[3] - minY + 1;
+        if (width <= 0 || height <= 0 || width > Integer.MAX_VALUE / scale || height > Integer.MAX_VALUE / scale)
+            throw new IOException(String.format("The Grid is too large for a PNG image (%s x %s Grids).",
+                    Long.toUnsignedString(width), Long.toUnsignedString(height)));
+
+        try (IndexedPngWriter writer = new IndexedPngWriter(new BufferedOutputStream(Files.newOutputStream(file)),
+                (int) width * scale, (int) height * scale, createPalette(numOfColors))) {
+            writeRegion(gridStore, lock, minX, minY, (int) width, (int) height, scale, writer::writeRow);
+        }
+    }
+
+    /**
+     * Finds the bounding box of every Grid with a Color other than {@code 0}. Chunks inside the box found so far
+     * cannot widen it, so their Grids are not read.
+     *
+     * @param gridStore The Grid to read.
+     * @return The lowest X and Y and the highest X and Y coordinates, all {@code 0} if the Grid is empty.
+     */
+    private static long[] findBounds(GridStore gridStore) {
+        long[] bounds = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+        gridStore.forEachChunk((chunkX, chunkY, cells) -> {
+            long baseX = chunkX << GridStore.CHUNK_BITS;
+            long baseY = chunkY << GridStore.CHUNK_BITS;
+            if (baseX >= bounds[0] && baseY >= bounds[1]
+                    && baseX + GridStore.CHUNK_SIZE - 1 <= bounds[2] && baseY + GridStore.CHUNK_SIZE - 1 <= bounds[3]) return;
+
+            for (int i = 0; i < GridStore.CHUNK_AREA; i++) {
+                if (cells[i] == 0) continue;
+                long x = baseX + (i & (GridStore.CHUNK_SIZE - 1));
+                long y = baseY + (i >> GridStore.CHUNK_BITS);
+                bounds[0] = Math.min(bounds[0], x);
+                bounds[1] = Math.min(bounds[1], y);
+                bounds[2] = Math.max(bounds[2], x);
+                bounds[3] = Math.max(bounds[3], y);
+            }
+        });
+        if (bounds[0] > bounds[2]) bounds[0] = bounds[1] = bounds[2] = bounds[3] = 0;
+        return bounds;
+    }
+
+    /**
+     * Streams a region of the Grid row by row, from the top. Every row of Grids is scaled to {@code scale} rows
+     * of {@code width * scale} pixels.
+     *
+     * @param gridStore The Grid to read.
+     * @param lock The object held while a band of the Grid is copied, see {@link #writePng(GridStore, Object, int, int, Path)}.
+     * @param minX The lowest X coordinate of the region.
+     * @param minY The lowest Y coordinate of the region.
+     * @param width The width of the region, in Grids.
+     * @param height The height of the region, in Grids.
+     * @param scale The size of one Grid, in pixels.
+     * @param writer The receiver of the rows.
+     * @throws IOException If the writer cannot write a row.
+     */
+    static void writeRegion(GridStore gridStore, Object lock, long minX, long minY, int width, int height, int scale, RowWriter writer) throws IOException {
+        long maxX = minX + width - 1;
+        long maxY = minY + height - 1;
+        byte[][] band = new byte[GridStore.CHUNK_SIZE][width];
+        byte[] cells = new byte[GridStore.CHUNK_AREA];
+        byte[] row = scale == 1 ? null : new byte[width * scale];
+        long minChunkX = minX >> GridStore.CHUNK_BITS;
+        long maxChunkX = maxX >> GridStore.CHUNK_BITS;
+
+        for (long chunkY = minY >> GridStore.CHUNK_BITS; chunkY <= maxY >> GridStore.CHUNK_BITS; chunkY++) {
+            for (byte[] bandRow : band) Arrays.fill(bandRow, (byte) 0);
+            synchronized (lock) {
+                for (long chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+                    if (gridStore.readChunk(chunkX, chunkY, cells)) copyIntoBand(cells, chunkX, minX, band);
+                }
+            }
+
+            long bandY = chunkY << GridStore.CHUNK_BITS;
+            int fromRow = (int) Math.max(minY - bandY, 0);
+            int toRow = (int) Math.min(maxY - bandY, GridStore.CHUNK_SIZE - 1);
+            for (int y = fromRow; y <= toRow; y++) writeRow(writer, band[y], row, scale);
+        }
+    }
+
+    /**
+     * @param numOfColors The number of Colors to include.
+     * @return The RGB value of every Color, from {@link Palette#numToColor(int)}.
+     */
+    static int[] createPalette(int numOfColors) {
+        int[] palette = new int[numOfColors];
+        for (int color = 0; color < numOfColors; color++) palette[color] = Palette.numToColor(color).getRGB() & 0xFFFFFF;
+        return palette;
+    }
+
+    /**
+     * Copies the part of the chunk inside the bounding box into the band.
+     *
+     * @param cells The Colors of the chunk's Grids.
+     * @param chunkX The X coordinate of the chunk.
+     * @param minX The lowest X coordinate of the bounding box.
+     * @param band The rows of the band, as wide as the bounding box.
+     */
+    private static void copyIntoBand(byte[] cells, long chunkX, long minX, byte[][] band) {
+        int width = band[0].length;
+        // The chunk overlaps the band, so the offset is between -CHUNK_SIZE and the band's width.
+        int offset = (int) ((chunkX << GridStore.CHUNK_BITS) - minX);
+        int from = Math.max(-offset, 0);
+        int to = Math.min(width - offset, GridStore.CHUNK_SIZE);
+
+        for (int y = 0; y < GridStore.CHUNK_SIZE; y++)
+            System.arraycopy(cells, (y << GridStore.CHUNK_BITS) + from, band[y], offset + from, to - from);
+    }
+
+    /**
+     * Writes one row of Grids, repeating every Grid and the whole row {@code scale} times.
+     *
+     * @param writer The receiver of the rows.
+     * @param cells The Colors of the row's Grids.
+     * @param row The buffer of one scaled row, or {@code null} if the scale is {@code 1}.
+     * @param scale The size of one Grid in the image, in pixels.
+     * @throws IOException If the image cannot be written.
+     */
+    private static void writeRow(RowWriter writer, byte[] cells, byte[] row, int scale) throws IOException {
+        if (scale == 1) {
+            writer.writeRow(cells);
+            return;
+        }
+
+        for (int x = 0; x < cells.length; x++) Arrays.fill(row, x * scale, (x + 1) * scale, cells[x]);
+        for (int i = 0; i < scale; i++) writer.writeRow(row);
+    }
+
+    /**
+     * A receiver of image rows, one palette index per pixel.
+     */
+    @FunctionalInterface
+    interface RowWriter {
+        void writeRow(byte[] indices) throws IOException;
+    }
+}
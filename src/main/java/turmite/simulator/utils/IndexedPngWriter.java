@@ -0,0 +1,85 @@
+package turmite.simulator.utils;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A PNG encoder for palette images that is fed one row at a time. Rows are packed at the smallest bit depth
+ * the palette fits into, deflated and written out in {@code IDAT} chunks as they come, so only one row and
+ * the compressor's window are ever held in memory, no matter how large the image is.
+ */
+public class IndexedPngWriter implements Closeable {
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final Deflater deflater = new Deflater();
+    private final DeflaterOutputStream pixels;
+    private final byte[] packedRow;
+    private int rowsWritten;
+
+    /**
+     * Writes the header and palette of the image. The stream is closed with the writer.
+     *
+     * @param out The stream to write the PNG into.
+     * @param width The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @param palette The RGB value of every palette index, at most {@code 256}.
+     * @throws IOException If the stream cannot be written.
+     */
+    public IndexedPngWriter(OutputStream out, int width, int height, int[] palette) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        this.bitDepth = PngEncoding.bitDepthFor(palette.length);
+        this.packedRow = PngEncoding.newPackedRow(width, bitDepth);
+        this.pixels = new DeflaterOutputStream(new PngEncoding.ChunkOutputStream(0,
+                (data, length) -> PngEncoding.writeChunk(this.out, "IDAT", data, length)), deflater, PngEncoding.DATA_CHUNK_SIZE);
+
+        PngEncoding.writeHeader(this.out, width, height, bitDepth, palette);
+    }
+
+    /**
+     * Writes the next row of the image, from the top.
+     *
+     * @param indices The palette index of every pixel of the row, at least {@code width} long.
+     * @throws IOException If the stream cannot be written.
+     * @throws IllegalStateException If every row is already written.
+     */
+    public void writeRow(byte[] indices) throws IOException {
+        if (rowsWritten == height) throw new IllegalStateException("Every row of the image is already written.");
+
+        PngEncoding.packRow(indices, width, bitDepth, packedRow);
+        pixels.write(packedRow);
+        rowsWritten++;
+    }
+
+    /**
+     * @return The bit depth the rows are packed at.
+     */
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * Finishes the image and closes the stream.
+     *
+     * @throws IOException If not every row was written, or the stream cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height)
+                throw new IOException(String.format("Only %d of the %d rows of the image were written.", rowsWritten, height));
+            pixels.close();
+            PngEncoding.writeChunk(out, "IEND", new byte[0], 0);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+}
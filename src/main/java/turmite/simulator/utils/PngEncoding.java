@@ -0,0 +1,189 @@
+package turmite.simulator.utils;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * The parts of the PNG format shared by {@link IndexedPngWriter} and {@link AnimatedPngWriter}:
+ * the header of palette images, row packing and chunk framing. This class cannot be instantiated.
+ */
+final class PngEncoding {
+    static final int DATA_CHUNK_SIZE = 1 << 16;
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final int COLOR_TYPE_PALETTE = 3;
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    private PngEncoding() {}
+
+    /**
+     * @param paletteSize The number of palette entries.
+     * @return The smallest bit depth every palette index fits into.
+     */
+    static int bitDepthFor(int paletteSize) {
+        return paletteSize <= 2 ? 1 : paletteSize <= 4 ? 2 : paletteSize <= 16 ? 4 : 8;
+    }
+
+    /**
+     * @param width The width of a row, in pixels.
+     * @param bitDepth The bit depth of the pixels.
+     * @return A buffer for one packed row, including its filter type.
+     */
+    static byte[] newPackedRow(int width, int bitDepth) {
+        return new byte[1 + (int) (((long) width * bitDepth + 7) / 8)];
+    }
+
+    /**
+     * Packs a row of palette indices from the most significant bit, after filter type 0 (None).
+     *
+     * @param indices The palette index of every pixel of the row.
+     * @param width The width of the row, in pixels.
+     * @param bitDepth The bit depth of the pixels.
+     * @param packedRow The buffer to pack into, from {@link #newPackedRow(int, int)}.
+     */
+    static void packRow(byte[] indices, int width, int bitDepth, byte[] packedRow) {
+        packedRow[0] = 0;
+        if (bitDepth == 8) {
+            System.arraycopy(indices, 0, packedRow, 1, width);
+            return;
+        }
+
+        int pixelsPerByte = 8 / bitDepth;
+        for (int i = 1; i < packedRow.length; i++) packedRow[i] = 0;
+        for (int x = 0; x < width; x++) {
+            int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+            packedRow[1 + x / pixelsPerByte] |= (byte) (indices[x] << shift);
+        }
+    }
+
+    /**
+     * Writes the signature, the header and the palette of a palette image.
+     *
+     * @param out The stream to write into.
+     * @param width The width of the image, in pixels.
+     * @param height The height of the image, in pixels.
+     * @param bitDepth The bit depth of the pixels.
+     * @param palette The RGB value of every palette index.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void writeHeader(DataOutputStream out, int width, int height, int bitDepth, int[] palette) throws IOException {
+        if (width < 1 || height < 1) throw new IllegalArgumentException(String.format("Invalid image size: %d x %d.", width, height));
+        if (palette.length < 1 || palette.length > MAX_PALETTE_SIZE)
+            throw new IllegalArgumentException("The palette must have 1-256 Colors (got " + palette.length + ").");
+
+        out.write(SIGNATURE);
+
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = (byte) bitDepth;
+        header[9] = COLOR_TYPE_PALETTE;
+        writeChunk(out, "IHDR", header, header.length);
+
+        byte[] colors = new byte[palette.length * 3];
+        for (int i = 0; i < palette.length; i++) {
+            colors[i * 3] = (byte) (palette[i] >> 16);
+            colors[i * 3 + 1] = (byte) (palette[i] >> 8);
+            colors[i * 3 + 2] = (byte) palette[i];
+        }
+        writeChunk(out, "PLTE", colors, colors.length);
+    }
+
+    /**
+     * Writes one chunk: its length, type, data and checksum.
+     *
+     * @param out The stream to write into.
+     * @param type The type of the chunk.
+     * @param data The data of the chunk.
+     * @param length The number of bytes of data to write.
+     * @throws IOException If the stream cannot be written.
+     */
+    static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    static void writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    /**
+     * A receiver of full data chunks.
+     */
+    @FunctionalInterface
+    interface ChunkSink {
+        /**
+         * @param data The data of the chunk, starting with the reserved bytes.
+         * @param length The length of the data, including the reserved bytes.
+         * @throws IOException If the chunk cannot be written.
+         */
+        void write(byte[] data, int length) throws IOException;
+    }
+
+    /**
+     * Collects compressed pixels, and hands them to a sink whenever {@code DATA_CHUNK_SIZE} bytes are collected.
+     * Every chunk starts with a number of reserved bytes, which the sink fills in.
+     */
+    static final class ChunkOutputStream extends OutputStream {
+        private final int reserved;
+        private final ChunkSink sink;
+        private final byte[] buffer;
+        private int size;
+
+        ChunkOutputStream(int reserved, ChunkSink sink) {
+            this.reserved = reserved;
+            this.sink = sink;
+            this.buffer = new byte[reserved + DATA_CHUNK_SIZE];
+            this.size = reserved;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) flushChunk();
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == buffer.length) flushChunk();
+                int n = Math.min(len, buffer.length - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Hands the remaining bytes to the sink. The underlying stream is not closed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (size > reserved) flushChunk();
+        }
+
+        private void flushChunk() throws IOException {
+            sink.write(buffer, size);
+            size = reserved;
+        }
+    }
+}
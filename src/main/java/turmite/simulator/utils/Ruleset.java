@@ -7,7 +7,10 @@ import turmite.simulator.models.Rule;
 import javax.json.*;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,8 +24,8 @@ public class Ruleset {
         }
     }
 
-    public static final int MAX_STATES = 3;
-    public static final int MAX_COLORS = 3;
+    public static final int MAX_STATES = 16;
+    public static final int MAX_COLORS = 256;
     public static final int MAX_RULES = MAX_STATES * MAX_COLORS;
 
     public static final int SQUARE_GRID_MAX_TURN_DIRS = 4;
@@ -30,14 +33,18 @@ public class Ruleset {
     private int highestState;
     private int highestColor;
 
-    private final List<Rule> rules = new ArrayList<>(MAX_RULES);
+    private final List<Rule> rules = new ArrayList<>();
+    private volatile TransitionTable transitionTable;
 
     public Ruleset() {
         rules.add(new Rule());
+        compileTransitionTable();
     }
 
     public Ruleset(List<Rule> rules) {
         this.rules.addAll(rules);
+        recalculateNumOfStatesAndColors();
+        compileTransitionTable();
     }
 
     /**
@@ -52,35 +59,87 @@ public class Ruleset {
      * @see #validateRuleCells(int, int, char, int, int)
      */
     public void readRulesetFromFile(String fileName) throws FileNotFoundException, IllegalArgumentException, InvalidRulesetException {
-        InputStream fileStream = new FileInputStream(String.format("%s/%s", TurmiteJFrame.RULESET_DIR, fileName));
-        JsonReader reader = Json.createReader(fileStream);
-        JsonObject rulesetObj = reader.readObject();
+        readRulesetFromFile(Path.of(TurmiteJFrame.RULESET_DIR, fileName));
+    }
 
-        JsonArray ruleset = rulesetObj.getJsonArray("ruleset");
+    /**
+     * Read a Ruleset from the given file, anywhere on the file system. If a Ruleset is invalid for any reason,
+     * no modification is done to one already loaded.
+     *
+     * @param file The path of the Ruleset file.
+     * @throws FileNotFoundException If the file does not exist, is a directory rather than a regular file,
+     * or for some other reason cannot be opened for reading.
+     * @throws IllegalArgumentException If a Rule from the file is not valid.
+     *
+     * @see #validateRuleCells(int, int, char, int, int)
+     */
+    public void readRulesetFromFile(Path file) throws FileNotFoundException, IllegalArgumentException, InvalidRulesetException {
+        try (InputStream fileStream = new FileInputStream(file.toFile())) {
+            readRuleset(fileStream);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        List<Rule> rulesSnapshot = new ArrayList<>(rules);
-        rules.clear();
+    /**
+     * Read a Ruleset from a stream of its JSON form. If a Ruleset is invalid for any reason,
+     * no modification is done to one already loaded.
+     *
+     * @param jsonStream The stream to read, it is not closed.
+     * @throws IllegalArgumentException If a Rule from the stream is not valid.
+     * @throws javax.json.JsonException If the stream is not a JSON object.
+     *
+     * @see #validateRuleCells(int, int, char, int, int)
+     */
+    public void readRuleset(InputStream jsonStream) throws IllegalArgumentException, InvalidRulesetException {
+        JsonReader reader = Json.createReader(jsonStream);
+        JsonArray ruleset = reader.readObject().getJsonArray("ruleset");
+        if (ruleset == null) throw new InvalidRulesetException("The file has no \"ruleset\" array.");
 
+        List<Rule> newRules = new ArrayList<>(ruleset.size());
+        List<String> ruleNames = Rule.RuleCells.getRuleCellNames();
         for (JsonValue rule : ruleset) {
             JsonObject ruleObj = (JsonObject) rule;
+            newRules.add(validateRuleCells(
+                    ruleObj.getInt(ruleNames.getFirst()),
+                    ruleObj.getInt(ruleNames.get(1)),
+                    ruleObj.getString(ruleNames.get(2)).charAt(0),
+                    ruleObj.getInt(ruleNames.get(3)),
+                    ruleObj.getInt(ruleNames.getLast())
+            ));
+        }
+
+        loadRules(newRules);
+    }
+
+    /**
+     * Replaces the Rules of the Ruleset with copies of the given ones. If the Rules are invalid for any reason,
+     * no modification is done to the ones already loaded.
+     *
+     * @param newRules The Rules to load.
+     * @throws IllegalArgumentException If a Rule is not valid.
+     * @throws InvalidRulesetException If the Rules do not form a valid Ruleset.
+     */
+    public void loadRules(List<Rule> newRules) throws IllegalArgumentException, InvalidRulesetException {
+        List<Rule> rulesSnapshot = new ArrayList<>(rules);
+        rules.clear();
+
+        for (Rule rule : newRules) {
             try {
-                List<String> ruleNames = Rule.RuleCells.getRuleCellNames();
-                addRule(
-                        ruleObj.getInt(ruleNames.getFirst()),
-                        ruleObj.getInt(ruleNames.get(1)),
-                        ruleObj.getString(ruleNames.get(2)).charAt(0),
-                        ruleObj.getInt(ruleNames.get(3)),
-                        ruleObj.getInt(ruleNames.getLast())
-                );
+                addRule(rule.getCurrState(), rule.getCurrColor(), Direction.getCharFromTurnDir(rule.getTurnDir()),
+                        rule.getNewColor(), rule.getNewState());
             } catch (IllegalArgumentException e) {
                 resetToSnapshot(rulesSnapshot);
+                compileTransitionTable();
                 throw e;
             }
         }
 
-        reader.close();
-
-        if (!validateRuleset(rulesSnapshot))
+        boolean valid = validateRuleset(rulesSnapshot);
+        compileTransitionTable();
+        if (!valid)
             throw new InvalidRulesetException("The Ruleset does not cover every {currState-currColor} combination and/or does not have the number of Rules needed (highestState * highestColor).");
     }
 
@@ -113,8 +172,16 @@ public class Ruleset {
                     validateRuleCells(rule.getCurrState(), rule.getCurrColor(), Direction.getCharFromTurnDir(rule.getTurnDir()), rule.getNewColor(), (int)newValue);
         };
 
-        rules.set(rules.indexOf(rule), newRule);
+        rules.set(ruleRow, newRule);
         recalculateRulesetTable();
+        compileTransitionTable();
+    }
+
+    /**
+     * Compiles the Rules into the TransitionTable read by Turmites. Must be called after every change to the Rules.
+     */
+    private void compileTransitionTable() {
+        transitionTable = TransitionTable.compile(rules, highestState + 1, highestColor + 1);
     }
 
     /**
@@ -252,6 +319,27 @@ public class Ruleset {
         return (highestState + 1) * (highestColor + 1);
     }
 
+    /**
+     * @return The number of States this Ruleset uses.
+     */
+    public int getNumOfStates() {
+        return highestState + 1;
+    }
+
+    /**
+     * @return The number of Colors this Ruleset uses.
+     */
+    public int getNumOfColors() {
+        return highestColor + 1;
+    }
+
+    /**
+     * @return The compiled form of the Ruleset.
+     */
+    public TransitionTable getTransitionTable() {
+        return transitionTable;
+    }
+
     /**
      * @return The List of Rules in the Ruleset.
      */
@@ -0,0 +1,225 @@
+package turmite.simulator.utils;
+
+import turmite.simulator.models.Rule;
+
+import javax.json.JsonException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An index of the Ruleset files of a directory, kept up to date with a {@link WatchService}.
+ * <p>
+ * Only the names of the files are listed up front, a file is read when its Ruleset is first loaded. Parsed Rulesets
+ * are cached by the SHA-256 hash of the file's content, so a Ruleset is parsed and validated once, however many times
+ * it is selected or how many files share it. A file is only hashed again if its modification time or size changed.
+ * Invalid files are cached too, with the reason they are invalid, and are never deleted.
+ */
+public class RulesetLibrary {
+    private static final String RESERVED_NAME = "NewRuleset";
+
+    private final Path dir;
+    private final String ext;
+    private final Map<String, FileEntry> files = new ConcurrentHashMap<>();
+    private final Map<String, ParsedRuleset> rulesetsByHash = new ConcurrentHashMap<>();
+    private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile List<String> names = List.of();
+    private Thread watcher;
+
+    /**
+     * @param dir The directory of the Ruleset files.
+     * @param ext The extension of the Ruleset files, like {@code ".json"}.
+     */
+    public RulesetLibrary(Path dir, String ext) {
+        this.dir = dir;
+        this.ext = ext;
+    }
+
+    /**
+     * Lists the directory, then starts watching it on a daemon thread. Listeners are called from that thread
+     * whenever a file is added, changed or removed.
+     */
+    public synchronized void start() {
+        if (watcher != null) return;
+        rescan();
+
+        watcher = new Thread(this::watch, "ruleset-library-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @return The names of the Rulesets, without their extension, in alphabetical order.
+     */
+    public List<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @param listener Called whenever the names of the Rulesets or the content of a file changed.
+     */
+    public void addChangeListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Loads the Rules of a Ruleset. The file is only read if it is new or changed since it was last loaded,
+     * and only parsed if no file with the same content was parsed before.
+     *
+     * @param name The name of the Ruleset, without its extension.
+     * @return The validated Rules of the Ruleset, which must not be modified.
+     * @throws IOException If the file cannot be read.
+     * @throws Ruleset.InvalidRulesetException If the file is not a valid Ruleset.
+     */
+    public List<Rule> load(String name) throws IOException, Ruleset.InvalidRulesetException {
+        Path file = dir.resolve(name + ext);
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        FileEntry entry = files.get(name);
+        if (entry == null || entry.hash == null || entry.modified != modified || entry.size != attributes.size()) {
+            byte[] content = Files.readAllBytes(file);
+            String hash = hash(content);
+            rulesetsByHash.computeIfAbsent(hash, h -> parse(content));
+            entry = new FileEntry(modified, attributes.size(), hash);
+            if (files.put(name, entry) == null) publishNames();
+        }
+
+        ParsedRuleset parsed = rulesetsByHash.get(entry.hash);
+        if (parsed.error != null) throw new Ruleset.InvalidRulesetException(parsed.error);
+        return parsed.rules;
+    }
+
+    /**
+     * @return The number of distinct Rulesets parsed so far, valid or not.
+     */
+    public int getCachedCount() {
+        return rulesetsByHash.size();
+    }
+
+    /**
+     * Lists every Ruleset file of the directory again, keeping what is known of the unchanged ones.
+     */
+    private void rescan() {
+        Set<String> found = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + ext)) {
+            for (Path file : stream) {
+                String name = toName(file);
+                if (name != null) found.add(name);
+            }
+        } catch (NoSuchFileException e) {
+            // An empty library.
+        } catch (IOException e) {
+            System.err.println("Could not list the Rulesets in " + dir + ": " + e.getMessage());
+            return;
+        }
+
+        files.keySet().retainAll(found);
+        for (String name : found) files.putIfAbsent(name, FileEntry.UNREAD);
+        publishNames();
+    }
+
+    /**
+     * Applies the events of the directory as they come, until the thread is interrupted.
+     */
+    private void watch() {
+        try (WatchService watchService = dir.getFileSystem().newWatchService()) {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            // Files added between the first listing and the registration.
+            rescan();
+
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                boolean namesChanged = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                        continue;
+                    }
+
+                    String name = toName((Path) event.context());
+                    if (name == null) continue;
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) namesChanged |= files.remove(name) != null;
+                    else namesChanged |= files.put(name, FileEntry.UNREAD) == null;
+                }
+                key.reset();
+
+                if (namesChanged) publishNames();
+                else notifyListeners();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | ClosedWatchServiceException e) {
+            System.err.println("Stopped watching the Rulesets in " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param file The path of a file in the directory.
+     * @return The name of its Ruleset, or {@code null} if it is not a Ruleset file, or its name is reserved.
+     */
+    private String toName(Path file) {
+        String fileName = file.getFileName().toString();
+        if (!fileName.endsWith(ext)) return null;
+        String name = fileName.substring(0, fileName.length() - ext.length());
+        return name.isEmpty() || name.equals(RESERVED_NAME) ? null : name;
+    }
+
+    private synchronized void publishNames() {
+        String[] sorted = files.keySet().toArray(new String[0]);
+        Arrays.sort(sorted, String.CASE_INSENSITIVE_ORDER);
+        names = List.of(sorted);
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : listeners) listener.run();
+    }
+
+    /**
+     * Parses and validates a Ruleset file.
+     *
+     * @param content The content of the file.
+     * @return The Rules of the Ruleset, or the reason it is invalid.
+     */
+    private static ParsedRuleset parse(byte[] content) {
+        Ruleset ruleset = new Ruleset();
+        try {
+            ruleset.readRuleset(new ByteArrayInputStream(content));
+            return new ParsedRuleset(List.copyOf(ruleset.getRules()), null);
+        } catch (Ruleset.InvalidRulesetException | IllegalArgumentException e) {
+            return new ParsedRuleset(null, e.getMessage());
+        } catch (JsonException | ClassCastException | NullPointerException e) {
+            return new ParsedRuleset(null, "The file is not a valid Ruleset JSON object.");
+        }
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    /**
+     * What is known of a file: its modification time and size when it was last read, and the hash of its content then.
+     * The hash is {@code null} until the file is read.
+     */
+    private record FileEntry(long modified, long size, String hash) {
+        private static final FileEntry UNREAD = new FileEntry(-1, -1, null);
+    }
+
+    /**
+     * A parsed file: either its validated Rules, or the reason it is invalid.
+     */
+    private record ParsedRuleset(List<Rule> rules, String error) {}
+}
@@ -0,0 +1,227 @@
+package turmite.simulator.utils;
+
+import turmite.simulator.SimulationEngine;
+import turmite.simulator.models.GridStore;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low-overhead counters of a running simulation, exposed as a JMX MBean.
+ * <p>
+ * The hot paths only record raw events: a repaint request, the duration of a paint, the time of a Simulator step.
+ * Everything derived from them (rates, percentiles, the colored Grid count) is computed by a daemon sampler thread,
+ * started by {@link #start()}, about once per second.
+ */
+public class SimulationMetrics implements SimulationMetricsMBean {
+    public static final String OBJECT_NAME = "turmite.simulator:type=SimulationMetrics";
+
+    private static final int PAINT_WINDOW = 1024;
+    private static final long SAMPLE_PERIOD_MILLIS = 1000;
+    private static final double LAG_SMOOTHING = 0.1;
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final SimulationEngine engine;
+
+    private final LongAdder repaintRequests = new LongAdder();
+    private final long[] paintNanos = new long[PAINT_WINDOW];
+    private volatile long paints;
+
+    private volatile double targetStepsPerSecond;
+    private volatile double stepLagMillis;
+
+    private volatile double stepsPerSecond;
+    private volatile double[] paintPercentiles = new double[4];
+    private volatile long coloredCells;
+    private long lastSampleSteps;
+    private long lastSampleNanos;
+    private long nextCellScanNanos;
+
+    private ScheduledExecutorService sampler;
+
+    public SimulationMetrics(SimulationEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Registers the metrics on the platform MBean server, and starts sampling them.
+     *
+     * @throws JMException If the MBean cannot be registered.
+     */
+    public synchronized void start() throws JMException {
+        if (sampler != null) return;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) server.registerMBean(this, name);
+
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "simulation-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        lastSampleNanos = System.nanoTime();
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_PERIOD_MILLIS, SAMPLE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Counts one repaint request of the Grid Panel.
+     */
+    public void recordRepaintRequest() {
+        repaintRequests.increment();
+    }
+
+    /**
+     * Records how long painting a frame took. Only called from the Event Dispatch Thread.
+     *
+     * @param nanos The duration of the paint, in nanoseconds.
+     */
+    public void recordPaint(long nanos) {
+        long paint = paints;
+        paintNanos[(int) (paint % PAINT_WINDOW)] = nanos;
+        paints = paint + 1;
+    }
+
+    /**
+     * Records how far the Simulator is behind its schedule. Only called from the Simulator's thread.
+     *
+     * @param stepsPerSecond The speed the Simulator is set to.
+     * @param lagMillis How far the Simulator is behind, in milliseconds.
+     */
+    public void recordSimulatorSchedule(double stepsPerSecond, double lagMillis) {
+        targetStepsPerSecond = stepsPerSecond;
+        stepLagMillis += (lagMillis - stepLagMillis) * LAG_SMOOTHING;
+    }
+
+    /**
+     * Records that the Simulator was paused, so it is not behind any schedule.
+     */
+    public void recordSimulatorPause() {
+        stepLagMillis = 0;
+    }
+
+    /**
+     * Computes the derived metrics. The colored Grids are counted by scanning the chunks, so the scan is done
+     * less often as the Grid grows, to keep it at about a tenth of the sampler's time.
+     */
+    private void sample() {
+        long now = System.nanoTime();
+        long steps = engine.getStepCount();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        stepsPerSecond = steps >= lastSampleSteps && seconds > 0 ? (steps - lastSampleSteps) / seconds : 0;
+        lastSampleSteps = steps;
+        lastSampleNanos = now;
+
+        paintPercentiles = computePaintPercentiles();
+
+        if (now >= nextCellScanNanos) {
+            coloredCells = countColoredCells(engine.getGridStore());
+            long scanNanos = System.nanoTime() - now;
+            nextCellScanNanos = now + scanNanos * 10;
+        }
+    }
+
+    /**
+     * @return The 50th, 90th and 99th percentiles and the maximum of the paint durations in the window, in milliseconds.
+     */
+    private double[] computePaintPercentiles() {
+        int count = (int) Math.min(paints, PAINT_WINDOW);
+        if (count == 0) return new double[4];
+
+        long[] window = Arrays.copyOf(paintNanos, count);
+        Arrays.sort(window);
+        return new double[] {
+                window[(count - 1) / 2] / NANOS_PER_MILLI,
+                window[(int) ((count - 1) * 0.9)] / NANOS_PER_MILLI,
+                window[(int) ((count - 1) * 0.99)] / NANOS_PER_MILLI,
+                window[count - 1] / NANOS_PER_MILLI
+        };
+    }
+
+    /**
+     * @param gridStore The Grid to scan.
+     * @return The number of Grids with a Color other than {@code 0}.
+     */
+    private static long countColoredCells(GridStore gridStore) {
+        long[] count = new long[1];
+        gridStore.forEachChunk((chunkX, chunkY, cells) -> {
+            int colored = 0;
+            for (byte cell : cells) if (cell != 0) colored++;
+            count[0] += colored;
+        });
+        return count[0];
+    }
+
+    @Override
+    public long getStepCount() {
+        return engine.getStepCount();
+    }
+
+    @Override
+    public double getStepsPerSecond() {
+        return stepsPerSecond;
+    }
+
+    @Override
+    public double getPaintMillisP50() {
+        return paintPercentiles[0];
+    }
+
+    @Override
+    public double getPaintMillisP90() {
+        return paintPercentiles[1];
+    }
+
+    @Override
+    public double getPaintMillisP99() {
+        return paintPercentiles[2];
+    }
+
+    @Override
+    public double getPaintMillisMax() {
+        return paintPercentiles[3];
+    }
+
+    @Override
+    public long getRepaintRequests() {
+        return repaintRequests.sum();
+    }
+
+    @Override
+    public long getPaints() {
+        return paints;
+    }
+
+    @Override
+    public long getColoredCells() {
+        return coloredCells;
+    }
+
+    @Override
+    public int getChunkCount() {
+        return engine.getGridStore().getChunkCount();
+    }
+
+    @Override
+    public double getEstimatedBytesPerCell() {
+        long cells = coloredCells;
+        return cells == 0 ? 0 : (double) engine.getGridStore().getFootprintBytes() / cells;
+    }
+
+    @Override
+    public double getTargetStepsPerSecond() {
+        return targetStepsPerSecond;
+    }
+
+    @Override
+    public double getStepLagMillis() {
+        return stepLagMillis;
+    }
+}
@@ -0,0 +1,72 @@
+package turmite.simulator.utils;
+
+/**
+ * The JMX view of {@link SimulationMetrics}. Rates and percentiles are refreshed by the metrics' sampler,
+ * about once per second.
+ */
+public interface SimulationMetricsMBean {
+    /**
+     * @return The number of steps taken since the last reset.
+     */
+    long getStepCount();
+
+    /**
+     * @return The number of steps taken per second, over the last sample.
+     */
+    double getStepsPerSecond();
+
+    /**
+     * @return The median time it took to paint a frame, in milliseconds.
+     */
+    double getPaintMillisP50();
+
+    /**
+     * @return The 90th percentile of the time it took to paint a frame, in milliseconds.
+     */
+    double getPaintMillisP90();
+
+    /**
+     * @return The 99th percentile of the time it took to paint a frame, in milliseconds.
+     */
+    double getPaintMillisP99();
+
+    /**
+     * @return The longest time it took to paint a frame, in milliseconds.
+     */
+    double getPaintMillisMax();
+
+    /**
+     * @return The number of repaints requested from the Grid Panel.
+     */
+    long getRepaintRequests();
+
+    /**
+     * @return The number of frames actually painted. Swing merges repaint requests, so this is at most the number of requests.
+     */
+    long getPaints();
+
+    /**
+     * @return The number of Grids with a Color other than {@code 0}.
+     */
+    long getColoredCells();
+
+    /**
+     * @return The number of chunks in the Grid's store.
+     */
+    int getChunkCount();
+
+    /**
+     * @return The estimated number of bytes the Grid's store takes up per colored Grid.
+     */
+    double getEstimatedBytesPerCell();
+
+    /**
+     * @return The speed set on the Speed Slider, in steps per second. Infinite if the Simulator runs flat out.
+     */
+    double getTargetStepsPerSecond();
+
+    /**
+     * @return How far the Simulator is behind its schedule, on average, in milliseconds.
+     */
+    double getStepLagMillis();
+}
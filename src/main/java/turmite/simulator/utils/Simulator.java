@@ -1,59 +1,179 @@
 package turmite.simulator.utils;
 
+import turmite.simulator.SimulationEngine;
+import turmite.simulator.ui.Dialogs;
 import turmite.simulator.ui.SquareGridPanel;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * This class manages a GridPanel's simulation. It uses a separate Thread
+ * This class runs a SimulationEngine for a GridPanel. It uses a separate Thread
  * to run the simulation, so other UI elements are not affected.
+ * <p>
+ * The simulation rate is independent of the frame rate. The Thread steps the engine in batches to keep up with
+ * the set steps per second, or as fast as it can, while a Swing Timer repaints the GridPanel {@code FRAMES_PER_SECOND}
+ * times per second. Batches are sized to take about {@code BATCH_NANOS}, so a frame never waits long for the engine.
+ * <p>
+ * If a {@link Checkpoint} is set, the simulation is saved into it every {@code CHECKPOINT_NANOS} while it runs,
+ * and whenever it pauses. Saves after the first one only append the chunks colored since the previous save.
+ * A second Thread does the saving, so the simulation keeps stepping while the frames are encoded and written.
  */
 public class Simulator extends Thread {
+    public static final int FRAMES_PER_SECOND = 60;
+
+    private static final long FRAME_NANOS = 1_000_000_000L / FRAMES_PER_SECOND;
+    private static final long BATCH_NANOS = 2_000_000;
+    private static final long MAX_BATCH_STEPS = 1L << 24;
+    private static final double MAX_BACKLOG_SECONDS = 0.25;
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final long CHECKPOINT_NANOS = 30_000_000_000L;
+
+    private final SimulationEngine engine;
     private final SquareGridPanel gridPanel;
+    private final SimulationMetrics metrics;
+    private final Timer renderTimer;
 
-    private final AtomicInteger interval;
-    private final AtomicBoolean paused = new AtomicBoolean(true);
+    private volatile double stepsPerSecond;
+    private volatile boolean paused = true;
+    private final Thread checkpointSaver;
+    private final Object checkpointLock = new Object();
+    private volatile Checkpoint checkpoint;
+    private volatile boolean saveRequested;
+    private long checkpointSavedNanos = System.nanoTime();
 
-    public Simulator(SquareGridPanel gridPanel, int interval) {
+    public Simulator(SimulationEngine engine, SquareGridPanel gridPanel, double stepsPerSecond, SimulationMetrics metrics) {
+        super("simulator");
+        this.engine = engine;
         this.gridPanel = gridPanel;
-        this.interval = new AtomicInteger(interval);
+        this.metrics = metrics;
+        this.stepsPerSecond = stepsPerSecond;
+        this.renderTimer = new Timer(1000 / FRAMES_PER_SECOND, e -> gridPanel.repaint());
+        this.checkpointSaver = new Thread(this::saveCheckpoints, "checkpoint-save");
+        checkpointSaver.setDaemon(true);
+        setDaemon(true);
     }
 
     /**
-     * Steps the simulation one time after the set interval (if it isn't paused) in an infinite loop.
+     * Steps the simulation in an infinite loop while it isn't paused. While paused, the Thread blocks.
      * Use {@code start()} to start the Thread, which will also call this method.
      */
     // An infinite loop is intended here.
     @SuppressWarnings("InfiniteLoopStatement")
     @Override
-    public synchronized void run() {
+    public void run() {
+        checkpointSaver.start();
+        long batchSteps = 1;
+
         while (true) {
             try {
-                if (paused.get()) continue;
-                stepSimulation();
-                wait(interval.get());
+                awaitResume();
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
+                return;
             }
+
+            double rate = stepsPerSecond;
+            long scheduleStart = System.nanoTime();
+            long stepsDone = 0;
+
+            while (!paused && rate == stepsPerSecond) {
+                long now = System.nanoTime();
+                long batch = batchSteps;
+
+                if (!Double.isInfinite(rate)) {
+                    long stepsDue = (long) ((now - scheduleStart) * rate / NANOS_PER_SECOND);
+                    long behind = stepsDue - stepsDone;
+                    metrics.recordSimulatorSchedule(rate, Math.max(0, behind) / rate * 1000);
+
+                    if (behind <= 0) {
+                        long nextStepNanos = scheduleStart + (long) ((stepsDone + 1) * NANOS_PER_SECOND / rate);
+                        LockSupport.parkNanos(Math.min(nextStepNanos - now, FRAME_NANOS));
+                        continue;
+                    }
+                    if (behind > rate * MAX_BACKLOG_SECONDS) {
+                        // The engine cannot keep up, so drop the backlog instead of stepping at full speed forever.
+                        scheduleStart = now;
+                        stepsDone = 0;
+                    }
+                    batch = Math.min(batch, behind);
+                } else {
+                    metrics.recordSimulatorSchedule(rate, 0);
+                }
+
+                engine.step(batch);
+                stepsDone += batch;
+                batchSteps = nextBatchSteps(batchSteps, batch, System.nanoTime() - now);
+                if (checkpoint != null && now - checkpointSavedNanos >= CHECKPOINT_NANOS) requestCheckpointSave();
+            }
+            engine.publishSnapshot();
+            if (paused && checkpoint != null) requestCheckpointSave();
         }
     }
 
     /**
-     * Calls the GridPanel's {@code stepSimulation()} and {@code repaint()} methods.
+     * Wakes up the saving Thread. Requests made while a save is running are merged into one more save.
+     */
+    private void requestCheckpointSave() {
+        checkpointSavedNanos = System.nanoTime();
+        saveRequested = true;
+        LockSupport.unpark(checkpointSaver);
+    }
+
+    /**
+     * Saves the simulation into the checkpoint whenever a save is requested. If a save fails, the error is shown,
+     * and the checkpoint is unset, so a full disk is not written to again every batch.
+     */
+    // An infinite loop is intended here.
+    @SuppressWarnings("InfiniteLoopStatement")
+    private void saveCheckpoints() {
+        while (true) {
+            while (!saveRequested) LockSupport.park(this);
+            saveRequested = false;
+
+            synchronized (checkpointLock) {
+                Checkpoint currCheckpoint = checkpoint;
+                if (currCheckpoint == null) continue;
+                try {
+                    currCheckpoint.save(engine);
+                } catch (IOException e) {
+                    checkpoint = null;
+                    SwingUtilities.invokeLater(() -> Dialogs.showErrorDialog(gridPanel,
+                            String.format("Stopped saving the checkpoint %s: %s", currCheckpoint.getFile(), e.getMessage())));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the checkpoint the simulation is saved into while it runs, and whenever it pauses.
+     * Waits for a save that is running, so the previous checkpoint is not written to after this returns.
+     *
+     * @param checkpoint The checkpoint, or {@code null} to stop saving.
+     */
+    public void setCheckpoint(Checkpoint checkpoint) {
+        synchronized (checkpointLock) {
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    /**
+     * Steps the engine once and repaints the GridPanel.
      */
     public void stepSimulation() {
-        gridPanel.stepSimulation();
+        engine.step();
         gridPanel.repaint();
     }
 
     /**
-     * Sets the interval between simulation steps.
+     * Sets the speed of the simulation.
      *
-     * @param interval The interval to set.
+     * @param stepsPerSecond The steps per second, or {@code Double.POSITIVE_INFINITY} to run as fast as possible.
      */
-    public void setInterval(int interval) {
-        this.interval.set(interval);
+    public void setStepsPerSecond(double stepsPerSecond) {
+        this.stepsPerSecond = stepsPerSecond;
     }
 
     /**
@@ -61,15 +181,50 @@ public class Simulator extends Thread {
      *
      * @return Whether the simulation is paused after this.
      */
-    public boolean toggleSimulation() {
-        paused.set(!paused.get());
-        return paused.get();
+    public synchronized boolean toggleSimulation() {
+        paused = !paused;
+        if (paused) {
+            renderTimer.stop();
+            gridPanel.repaint();
+        } else {
+            renderTimer.start();
+            notifyAll();
+        }
+        return paused;
     }
 
     /**
-     * Resets the simulation by calling the GridPanel's {@code reset()} method.
+     * Resets the engine and the GridPanel.
      */
     public void resetSimulation() {
+        engine.reset();
         gridPanel.reset();
     }
+
+    /**
+     * Blocks while the simulation is paused.
+     *
+     * @throws InterruptedException If the Thread is interrupted while waiting.
+     */
+    private synchronized void awaitResume() throws InterruptedException {
+        while (paused) {
+            metrics.recordSimulatorPause();
+            wait();
+        }
+    }
+
+    /**
+     * Sizes the next batch, so it takes about {@code BATCH_NANOS}.
+     *
+     * @param batchSteps The current batch size.
+     * @param steps The number of steps just taken.
+     * @param nanos The time the steps took.
+     * @return The next batch size.
+     */
+    private static long nextBatchSteps(long batchSteps, long steps, long nanos) {
+        if (steps < batchSteps) return batchSteps;
+        if (nanos < BATCH_NANOS / 2) return Math.min(batchSteps * 2, MAX_BATCH_STEPS);
+        if (nanos > BATCH_NANOS * 2) return Math.max(batchSteps / 2, 1);
+        return batchSteps;
+    }
 }
@@ -0,0 +1,261 @@
+package turmite.simulator.utils;
+
+import turmite.simulator.SimulationEngine;
+import turmite.simulator.models.GridStore;
+import turmite.simulator.models.PackedGridStore;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Exports the evolution of a simulation as an animated PNG, with one frame every {@code stepsPerFrame} steps.
+ * <p>
+ * The exporter steps its own copies of the simulation, so it can run on a background thread without ever holding up
+ * the simulation on screen. An APNG has to declare its size and number of frames before its first frame, so the
+ * simulation is run twice: the first run only finds the bounding box of every frame and the frames without changes,
+ * the second run encodes the frames as it goes.
+ * <p>
+ * The image is cropped to the bounding box. The first frame covers all of it, and every later frame only covers the
+ * Grids that changed since the frame before it, found through the chunks stamped since then. Samples without any change
+ * extend the frame before them instead.
+ */
+public class TimeLapseExporter {
+    private final Supplier<SimulationEngine> engineFactory;
+    private final int numOfColors;
+    private final long stepsPerFrame;
+    private final int numOfSamples;
+    private final int delayMillis;
+    private final int scale;
+
+    private volatile int samplesDone;
+
+    /**
+     * @param engineFactory Creates a new simulation in its starting state. Every simulation it creates must step the same way.
+     * @param numOfColors The number of Colors the simulation uses.
+     * @param stepsPerFrame The number of steps between two samples.
+     * @param numOfSamples The number of samples, the first one taken after {@code stepsPerFrame} steps.
+     * @param delayMillis How long every sample is shown, in milliseconds.
+     * @param scale The size of one Grid in the image, in pixels.
+     */
+    public TimeLapseExporter(Supplier<SimulationEngine> engineFactory, int numOfColors, long stepsPerFrame, int numOfSamples, int delayMillis, int scale) {
+        if (stepsPerFrame < 1) throw new IllegalArgumentException("The number of steps per frame must be at least 1 (got " + stepsPerFrame + ").");
+        if (numOfSamples < 1) throw new IllegalArgumentException("The number of frames must be at least 1 (got " + numOfSamples + ").");
+        if (delayMillis < 1) throw new IllegalArgumentException("The frame delay must be at least 1 ms (got " + delayMillis + ").");
+        if (scale < 1) throw new IllegalArgumentException("The scale must be at least 1 (got " + scale + ").");
+
+        this.engineFactory = engineFactory;
+        this.numOfColors = numOfColors;
+        this.stepsPerFrame = stepsPerFrame;
+        this.numOfSamples = numOfSamples;
+        this.delayMillis = delayMillis;
+        this.scale = scale;
+    }
+
+    /**
+     * Runs the simulation twice and writes the animation into the file.
+     *
+     * @param file The APNG file to write.
+     * @throws IOException If the image is too large, or the file cannot be written.
+     * @throws InterruptedIOException If the thread is interrupted during the export.
+     */
+    public void export(Path file) throws IOException {
+        samplesDone = 0;
+        Plan plan = plan();
+
+        long width = plan.maxX - plan.minX + 1;
+        long height = plan.maxY - plan.minY + 1;
+        if (width <= 0 || height <= 0 || width > Integer.MAX_VALUE / scale || height > Integer.MAX_VALUE / scale)
+            throw new IOException(String.format("The Grid is too large for a PNG image (%s x %s Grids).",
+                    Long.toUnsignedString(width), Long.toUnsignedString(height)));
+
+        SimulationEngine engine = engineFactory.get();
+        GridStore gridStore = engine.getGridStore();
+        GridStore previous = new PackedGridStore(numOfColors);
+        long sinceVersion = gridStore.getVersion();
+        long[] diff = new long[5];
+
+        try (AnimatedPngWriter writer = new AnimatedPngWriter(new BufferedOutputStream(Files.newOutputStream(file)),
+                (int) width * scale, (int) height * scale, GridImageExporter.createPalette(numOfColors), plan.numOfFrames)) {
+            for (int sample = 0; sample < numOfSamples; sample++) {
+                engine.step(stepsPerFrame);
+                long nextVersion = gridStore.advanceVersion();
+                findChanges(gridStore, previous, sinceVersion, diff);
+                sinceVersion = nextVersion;
+
+                if (sample == 0) {
+                    writeFrame(writer, gridStore, plan, plan.minX, plan.minY, plan.maxX, plan.maxY, plan.delays[0]);
+                } else if ((diff[4] != 0) != plan.changed[sample]) {
+                    throw new IllegalStateException("The simulation did not step the same way twice.");
+                } else if (diff[4] != 0) {
+                    int delay = plan.delays[writer.getFramesWritten()];
+                    // A chunk may have been colored and changed back, then one Grid is drawn again to keep the frame.
+                    if (diff[0] > diff[2]) writeFrame(writer, gridStore, plan, plan.minX, plan.minY, plan.minX, plan.minY, delay);
+                    else writeFrame(writer, gridStore, plan, diff[0], diff[1], diff[2], diff[3], delay);
+                }
+
+                samplesDone = sample + 1;
+                if (Thread.interrupted()) throw new InterruptedIOException("The time-lapse export was interrupted.");
+            }
+        }
+    }
+
+    /**
+     * @return The number of samples encoded so far, by the second run of the current export.
+     */
+    public int getSamplesDone() {
+        return samplesDone;
+    }
+
+    /**
+     * @return The number of samples of the export.
+     */
+    public int getNumOfSamples() {
+        return numOfSamples;
+    }
+
+    /**
+     * Runs the simulation once to find the bounding box of every sample, and which samples changed any chunk.
+     *
+     * @return The plan of the animation.
+     * @throws InterruptedIOException If the thread is interrupted.
+     */
+    private Plan plan() throws InterruptedIOException {
+        SimulationEngine engine = engineFactory.get();
+        GridStore gridStore = engine.getGridStore();
+        Plan plan = new Plan(numOfSamples);
+        long[] bounds = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE};
+        long sinceVersion = gridStore.getVersion();
+
+        int frame = -1;
+        for (int sample = 0; sample < numOfSamples; sample++) {
+            engine.step(stepsPerFrame);
+            long nextVersion = gridStore.advanceVersion();
+            boolean[] changed = {sample == 0};
+            gridStore.forEachChunkSince(sinceVersion, (chunkX, chunkY, cells) -> {
+                changed[0] = true;
+                for (int i = 0; i < GridStore.CHUNK_AREA; i++) {
+                    if (cells[i] == 0) continue;
+                    long x = (chunkX << GridStore.CHUNK_BITS) | (i & (GridStore.CHUNK_SIZE - 1));
+                    long y = (chunkY << GridStore.CHUNK_BITS) | (i >> GridStore.CHUNK_BITS);
+                    bounds[0] = Math.min(bounds[0], x);
+                    bounds[1] = Math.min(bounds[1], y);
+                    bounds[2] = Math.max(bounds[2], x);
+                    bounds[3] = Math.max(bounds[3], y);
+                }
+            });
+            sinceVersion = nextVersion;
+
+            plan.changed[sample] = changed[0];
+            if (changed[0]) frame++;
+            plan.delays[frame] += delayMillis;
+            if (Thread.interrupted()) throw new InterruptedIOException("The time-lapse export was interrupted.");
+        }
+
+        if (bounds[0] > bounds[2]) bounds[0] = bounds[1] = bounds[2] = bounds[3] = 0;
+        plan.minX = bounds[0];
+        plan.minY = bounds[1];
+        plan.maxX = bounds[2];
+        plan.maxY = bounds[3];
+        plan.numOfFrames = frame + 1;
+        return plan;
+    }
+
+    /**
+     * Finds the bounding box of the Grids that differ from the previous sample, and brings the previous sample up to date.
+     *
+     * @param gridStore The Grid of the simulation.
+     * @param previous The Grid at the previous sample.
+     * @param sinceVersion The version of the previous sample.
+     * @param diff Receives the bounding box of the changed Grids, then whether any chunk was stamped.
+     */
+    private static void findChanges(GridStore gridStore, GridStore previous, long sinceVersion, long[] diff) {
+        diff[0] = diff[1] = Long.MAX_VALUE;
+        diff[2] = diff[3] = Long.MIN_VALUE;
+        diff[4] = 0;
+        byte[] before = new byte[GridStore.CHUNK_AREA];
+
+        gridStore.forEachChunkSince(sinceVersion, (chunkX, chunkY, cells) -> {
+            diff[4] = 1;
+            if (!previous.readChunk(chunkX, chunkY, before)) Arrays.fill(before, (byte) 0);
+            for (int i = 0; i < GridStore.CHUNK_AREA; i++) {
+                if (cells[i] == before[i]) continue;
+                long x = (chunkX << GridStore.CHUNK_BITS) | (i & (GridStore.CHUNK_SIZE - 1));
+                long y = (chunkY << GridStore.CHUNK_BITS) | (i >> GridStore.CHUNK_BITS);
+                diff[0] = Math.min(diff[0], x);
+                diff[1] = Math.min(diff[1], y);
+                diff[2] = Math.max(diff[2], x);
+                diff[3] = Math.max(diff[3], y);
+            }
+            previous.writeChunk(chunkX, chunkY, cells);
+        });
+    }
+
+    /**
+     * Writes a frame covering a region of the Grid.
+     *
+     * @param writer The writer of the animation.
+     * @param gridStore The Grid of the simulation.
+     * @param plan The plan of the animation, for its bounding box.
+     * @param minX The lowest X coordinate of the region.
+     * @param minY The lowest Y coordinate of the region.
+     * @param maxX The highest X coordinate of the region.
+     * @param maxY The highest Y coordinate of the region.
+     * @param delay How long the frame is shown, in milliseconds.
+     * @throws IOException If the frame cannot be written.
+     */
+    private void writeFrame(AnimatedPngWriter writer, GridStore gridStore, Plan plan, long minX, long minY, long maxX, long maxY, int delay) throws IOException {
+        // Every frame lies inside the bounding box, whose size in pixels was checked to fit into an int.
+        int width = (int) (maxX - minX + 1);
+        int height = (int) (maxY - minY + 1);
+        writer.beginFrame((int) (minX - plan.minX) * scale, (int) (minY - plan.minY) * scale, width * scale, height * scale, delay);
+        GridImageExporter.writeRegion(gridStore, gridStore, minX, minY, width, height, scale, writer::writeRow);
+        writer.endFrame();
+    }
+
+    /**
+     * The outcome of the first run: the bounding box, which samples changed, and how long every frame is shown.
+     */
+    private static final class Plan {
+        private final boolean[] changed;
+        private final int[] delays;
+        private int numOfFrames;
+        private long minX;
+        private long minY;
+        private long maxX;
+        private long maxY;
+
+        Plan(int numOfSamples) {
+            changed = new boolean[numOfSamples];
+            delays = new int[numOfSamples];
+        }
+    }
+
+    /**
+     * Exports a time-lapse of a Ruleset file from the command line, without any UI.
+     * <p>
+     * Usage: {@code TimeLapseExporter <ruleset> <stepsPerFrame> <frames> <output> [delayMillis] [scale]}
+     *
+     * @param args The command line arguments.
+     * @throws Exception If the Ruleset cannot be read, or the animation cannot be written.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: TimeLapseExporter <ruleset> <stepsPerFrame> <frames> <output> [delayMillis] [scale]");
+            System.exit(1);
+        }
+
+        Ruleset ruleset = new Ruleset();
+        ruleset.readRulesetFromFile(Path.of(args[0]));
+        int delay = args.length > 4 ? Integer.parseInt(args[4]) : 40;
+        int scale = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+
+        TimeLapseExporter exporter = new TimeLapseExporter(() -> new SimulationEngine(ruleset), ruleset.getNumOfColors(),
+                Long.parseLong(args[1]), Integer.parseInt(args[2]), delay, scale);
+        exporter.export(Path.of(args[3]));
+    }
+}
@@ -0,0 +1,126 @@
+package turmite.simulator.utils;
+
+import turmite.simulator.models.Direction;
+import turmite.simulator.models.Rule;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The compiled form of a Ruleset. Every {@code currState-currColor} combination has one entry packed into a
+ * {@code char}, found at index {@code state << COLOR_BITS | color}, that holds the new Color, the turn and the new State.
+ * <p>
+ * There is one row per State the Ruleset uses, and every row covers all {@code Ruleset.MAX_COLORS} Colors a Grid
+ * can hold, so a lookup never needs a bounds check, and a Turmite can walk over Colors written by a Turmite with
+ * a different Ruleset. Colors the Ruleset does not use are kept, and the Turmite goes straight on.
+ * At {@code Ruleset.MAX_STATES} States the table takes 8 KiB.
+ * <p>
+ * Turns are stored as heading deltas, see {@link Direction#getTurnDelta()}.
+ */
+public final class TransitionTable {
+    private static final int COLOR_MASK = 0xFF;
+    private static final int TURN_SHIFT = 8;
+    private static final int TURN_MASK = 0x3;
+    private static final int STATE_SHIFT = 10;
+    private static final int STATE_MASK = 0xF;
+
+    private static final int COLOR_BITS = 8;
+
+    private final char[] entries;
+    private final int numOfStates;
+    private final int numOfColors;
+
+    private TransitionTable(char[] entries, int numOfStates, int numOfColors) {
+        this.entries = entries;
+        this.numOfStates = numOfStates;
+        this.numOfColors = numOfColors;
+    }
+
+    /**
+     * Compiles the given Rules into a TransitionTable. Combinations not covered by any Rule keep their Color,
+     * do not turn and keep their State.
+     *
+     * @param rules The Rules to compile.
+     * @param numOfStates The number of States the Rules use.
+     * @param numOfColors The number of Colors the Rules use.
+     * @return The compiled TransitionTable.
+     */
+    public static TransitionTable compile(List<Rule> rules, int numOfStates, int numOfColors) {
+        char[] entries = new char[numOfStates << COLOR_BITS];
+        for (int state = 0; state < numOfStates; state++)
+            for (int color = 0; color < Ruleset.MAX_COLORS; color++)
+                entries[state << COLOR_BITS | color] = (char) pack(color, 0, state);
+
+        for (Rule rule : rules) {
+            if (rule.getCurrState() >= numOfStates || rule.getCurrColor() >= numOfColors) continue;
+            entries[rule.getCurrState() << COLOR_BITS | rule.getCurrColor()] =
+                    (char) pack(rule.getNewColor(), rule.getTurnDir().getTurnDelta(), rule.getNewState());
+        }
+
+        return new TransitionTable(entries, numOfStates, numOfColors);
+    }
+
+    /**
+     * @param state The current State.
+     * @param color The current Color.
+     * @return The packed entry for the {@code currState-currColor} combination.
+     */
+    public int get(int state, int color) {
+        return entries[state << COLOR_BITS | color];
+    }
+
+    /**
+     * @return A copy of the packed entries, indexed by {@code state << 8 | color}.
+     */
+    public char[] getEntries() {
+        return Arrays.copyOf(entries, entries.length);
+    }
+
+    /**
+     * @return The number of States covered by the table.
+     */
+    public int getNumOfStates() {
+        return numOfStates;
+    }
+
+    /**
+     * @return The number of Colors covered by the table.
+     */
+    public int getNumOfColors() {
+        return numOfColors;
+    }
+
+    /**
+     * @param newColor The new Color.
+     * @param turnDelta The heading delta of the turn.
+     * @param newState The new State.
+     * @return The packed entry.
+     */
+    public static int pack(int newColor, int turnDelta, int newState) {
+        return (newColor & COLOR_MASK) | ((turnDelta & TURN_MASK) << TURN_SHIFT) | ((newState & STATE_MASK) << STATE_SHIFT);
+    }
+
+    /**
+     * @param entry The packed entry.
+     * @return The new Color of the entry.
+     */
+    public static int newColor(int entry) {
+        return entry & COLOR_MASK;
+    }
+
+    /**
+     * @param entry The packed entry.
+     * @return The heading delta of the entry's turn.
+     */
+    public static int turnDelta(int entry) {
+        return (entry >>> TURN_SHIFT) & TURN_MASK;
+    }
+
+    /**
+     * @param entry The packed entry.
+     * @return The new State of the entry.
+     */
+    public static int newState(int entry) {
+        return (entry >>> STATE_SHIFT) & STATE_MASK;
+    }
+}